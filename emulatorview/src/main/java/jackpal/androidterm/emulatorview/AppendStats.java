@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import android.util.Log;
+
+/**
+ * Throughput statistics for the emulator, see {@link
+ * EmulatorDebug#LOG_APPEND_TIMES}.
+ * <p>
+ * Only the time spent in the emulator is counted, not the time spent
+ * waiting for output, so the figures are the same whether the output comes
+ * from a live process or a replayed log.  Times per call are kept in a
+ * histogram of power-of-two buckets, so the percentile is an upper bound
+ * within a factor of two.
+ */
+final class AppendStats {
+    /** Output processed between reports */
+    private static final long REPORT_BYTES = 4 * 1024 * 1024;
+    /** Buckets of the histogram; bucket i counts calls of < 2^i us */
+    private static final int BUCKETS = 32;
+
+    private final String mName;
+    private final int[] mHistogram = new int[BUCKETS];
+    private int mCalls;
+    private long mBytes;
+    private long mNanos;
+    private long mMaxNanos;
+
+    AppendStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Record one call to the emulator.
+     *
+     * @param nanos How long the call took.
+     * @param bytes How much output it processed.
+     */
+    void record(long nanos, int bytes) {
+        int micros = (int) Math.min(nanos / 1000, Integer.MAX_VALUE);
+        mHistogram[32 - Integer.numberOfLeadingZeros(micros)]++;
+        mCalls++;
+        mBytes += bytes;
+        mNanos += nanos;
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+        if (mBytes >= REPORT_BYTES) {
+            report();
+        }
+    }
+
+    private void report() {
+        int p99Calls = mCalls - mCalls / 100;
+        int calls = 0;
+        int bucket = 0;
+        while (bucket < BUCKETS - 1) {
+            calls += mHistogram[bucket];
+            if (calls >= p99Calls) {
+                break;
+            }
+            bucket++;
+        }
+        double seconds = mNanos / 1e9;
+        Log.d(EmulatorDebug.LOG_TAG, mName + ": "
+                + String.format("%.1f", mBytes / seconds / (1024 * 1024)) + " MB/s over "
+                + mBytes + " bytes in " + mCalls + " calls; avg "
+                + (mNanos / mCalls / 1000) + " us, p99 < " + (1L << bucket)
+                + " us, max " + (mMaxNanos / 1000) + " us");
+        for (int i = 0; i < BUCKETS; i++) {
+            mHistogram[i] = 0;
+        }
+        mCalls = 0;
+        mBytes = 0;
+        mNanos = 0;
+        mMaxNanos = 0;
+    }
+}
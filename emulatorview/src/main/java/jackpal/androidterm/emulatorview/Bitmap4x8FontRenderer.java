@@ -26,6 +26,7 @@
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.text.TextPaint;
+import android.util.LongSparseArray;
 
 
 class Bitmap4x8FontRenderer extends BaseTextRenderer {
@@ -35,6 +36,11 @@ class Bitmap4x8FontRenderer extends BaseTextRenderer {
     private int mCurrentForeColor;
     private int mCurrentBackColor;
     private float[] mColorMatrix;
+    /** Color filters already built, keyed by foreground and background */
+    private final LongSparseArray<ColorMatrixColorFilter> mColorFilters =
+            new LongSparseArray<ColorMatrixColorFilter>();
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDestRect = new Rect();
     private final Paint mPaint;
     private static final float BYTE_SCALE = 1.0f / 255.0f;
 
@@ -117,8 +123,8 @@ private void drawTextRunHelper(Canvas canvas, float x, float y, int lineOffset,
         setColorMatrix(mPalette[foreColor], mPalette[backColor]);
         int destX = (int) x + kCharacterWidth * lineOffset;
         int destY = (int) y;
-        Rect srcRect = new Rect();
-        Rect destRect = new Rect();
+        Rect srcRect = mSrcRect;
+        Rect destRect = mDestRect;
         destRect.top = (destY - kCharacterHeight);
         destRect.bottom = destY;
         boolean drawSpaces = mPalette[backColor] != mPalette[TextStyle.ciBackground];
@@ -158,7 +164,13 @@ private void setColorMatrix(int foreColor, int backColor) {
                 mColorMatrix[component * 6] = delta * BYTE_SCALE;
                 mColorMatrix[component * 5 + 4] = fore;
             }
-            mPaint.setColorFilter(new ColorMatrixColorFilter(mColorMatrix));
+            long key = ((long) foreColor << 32) | (backColor & 0xffffffffL);
+            ColorMatrixColorFilter filter = mColorFilters.get(key);
+            if (filter == null) {
+                filter = new ColorMatrixColorFilter(mColorMatrix);
+                mColorFilters.put(key, filter);
+            }
+            mPaint.setColorFilter(filter);
         }
     }
 }
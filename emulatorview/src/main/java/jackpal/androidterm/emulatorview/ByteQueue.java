@@ -16,19 +16,154 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * A multi-thread-safe produce-consumer byte array.
  * Only allows one producer and one consumer.
+ * <p>
+ * The queue does not take a lock: the producer owns the tail counter and the
+ * consumer owns the head counter, and each side only reads the other's
+ * counter.  A thread only parks when the queue is actually empty (reader) or
+ * full (writer), and the other side only pays for an unpark when it sees
+ * that somebody is parked, so a busy stream runs without any wakeups at all.
  */
 
 class ByteQueue {
+    /**
+     * Create a queue.
+     *
+     * @param size The capacity of the queue in bytes.  Rounded up to the
+     *             next power of two.
+     */
     public ByteQueue(int size) {
-        mBuffer = new byte[size];
+        if (size <= 0) {
+            throw new IllegalArgumentException("size <= 0");
+        }
+        int capacity = Integer.highestOneBit(size);
+        if (capacity < size) {
+            capacity <<= 1;
+        }
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
     }
 
     public int getBytesAvailable() {
-        synchronized(this) {
-            return mStoredBytes;
+        return (int) (mTail - mHead);
+    }
+
+    /**
+     * @return The number of bytes which can be written without blocking.
+     *         Only the producer can rely on this, and only as a lower bound,
+     *         since the consumer may make more room at any time.
+     */
+    public int getFreeSpace() {
+        return mBuffer.length - (int) (mTail - mHead);
+    }
+
+    /*
+     * The methods below let the producer and the consumer work on the array
+     * behind the queue in place, instead of copying through read() and
+     * write().  The producer fills the run of free bytes at the write offset
+     * and then commits them; the consumer uses the run of bytes at the read
+     * offset and then commits that.  Until then the other side leaves those
+     * bytes alone.
+     */
+
+    /**
+     * @return The array behind the queue.
+     */
+    byte[] getArray() {
+        return mBuffer;
+    }
+
+    /**
+     * @return Where in the array the next byte written goes.
+     */
+    int getWriteOffset() {
+        return (int) mTail & mMask;
+    }
+
+    /**
+     * @return The number of bytes which can be put at the write offset
+     *         without wrapping around the end of the array.
+     */
+    int getContiguousFreeSpace() {
+        long tail = mTail;
+        int free = mBuffer.length - (int) (tail - mHead);
+        return Math.min(free, mBuffer.length - ((int) tail & mMask));
+    }
+
+    /**
+     * Wait until there is free space, as write() does.
+     *
+     * @return {@link #getContiguousFreeSpace}, which is at least 1.
+     */
+    int waitForFreeSpace() throws InterruptedException {
+        int bufferLength = mBuffer.length;
+        long tail = mTail;
+        long head = mHead;
+        while (tail - head == bufferLength) {
+            mWaitingWriter = Thread.currentThread();
+            head = mHead;
+            if (tail - head == bufferLength) {
+                LockSupport.park(this);
+                head = mHead;
+            }
+            mWaitingWriter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return getContiguousFreeSpace();
+    }
+
+    /**
+     * Publish bytes put in the array at the write offset.
+     *
+     * @param count The number of bytes, at most {@link
+     *              #getContiguousFreeSpace}.
+     */
+    void commitWrite(int count) {
+        mTail += count;
+        Thread reader = mWaitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    /**
+     * @return Where in the array the next byte to read is.
+     */
+    int getReadOffset() {
+        return (int) mHead & mMask;
+    }
+
+    /**
+     * @return The number of bytes which can be used at the read offset
+     *         without wrapping around the end of the array.
+     */
+    int getContiguousBytesAvailable() {
+        long head = mHead;
+        int available = (int) (mTail - head);
+        return Math.min(available, mBuffer.length - ((int) head & mMask));
+    }
+
+    /**
+     * Give back bytes used at the read offset, making room for the producer.
+     *
+     * @param count The number of bytes, at most {@link
+     *              #getContiguousBytesAvailable}.
+     */
+    void commitRead(int count) {
+        mHead += count;
+        Thread writer = mWaitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
         }
     }
 
@@ -46,31 +181,38 @@ public int read(byte[] buffer, int offset, int length)
         if (length == 0) {
             return 0;
         }
-        synchronized(this) {
-            while (mStoredBytes == 0) {
-                wait();
-            }
-            int totalRead = 0;
-            int bufferLength = mBuffer.length;
-            boolean wasFull = bufferLength == mStoredBytes;
-            while (length > 0 && mStoredBytes > 0) {
-                int oneRun = Math.min(bufferLength - mHead, mStoredBytes);
-                int bytesToCopy = Math.min(length, oneRun);
-                System.arraycopy(mBuffer, mHead, buffer, offset, bytesToCopy);
-                mHead += bytesToCopy;
-                if (mHead >= bufferLength) {
-                    mHead = 0;
-                }
-                mStoredBytes -= bytesToCopy;
-                length -= bytesToCopy;
-                offset += bytesToCopy;
-                totalRead += bytesToCopy;
+
+        long head = mHead;
+        long tail = mTail;
+        while (tail == head) {
+            // Empty -- park until the writer publishes something
+            mWaitingReader = Thread.currentThread();
+            tail = mTail;
+            if (tail == head) {
+                LockSupport.park(this);
+                tail = mTail;
             }
-            if (wasFull) {
-                notify();
+            mWaitingReader = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
-            return totalRead;
         }
+
+        int bytesToCopy = (int) Math.min(length, tail - head);
+        int bufferLength = mBuffer.length;
+        int start = (int) head & mMask;
+        int firstRun = Math.min(bytesToCopy, bufferLength - start);
+        System.arraycopy(mBuffer, start, buffer, offset, firstRun);
+        if (firstRun < bytesToCopy) {
+            System.arraycopy(mBuffer, 0, buffer, offset + firstRun, bytesToCopy - firstRun);
+        }
+        mHead = head + bytesToCopy;
+
+        Thread writer = mWaitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+        return bytesToCopy;
     }
 
     /**
@@ -93,32 +235,46 @@ public int write(byte[] buffer, int offset, int length)
         if (length == 0) {
             return 0;
         }
-        synchronized(this) {
-            int bufferLength = mBuffer.length;
-            boolean wasEmpty = mStoredBytes == 0;
-            while(bufferLength == mStoredBytes) {
-                wait();
-            }
-            int tail = mHead + mStoredBytes;
-            int oneRun;
-            if (tail >= bufferLength) {
-                tail = tail - bufferLength;
-                oneRun = mHead - tail;
-            } else {
-                oneRun = bufferLength - tail;
+
+        int bufferLength = mBuffer.length;
+        long tail = mTail;
+        long head = mHead;
+        while (tail - head == bufferLength) {
+            // Full -- park until the reader makes room
+            mWaitingWriter = Thread.currentThread();
+            head = mHead;
+            if (tail - head == bufferLength) {
+                LockSupport.park(this);
+                head = mHead;
             }
-            int bytesToCopy = Math.min(oneRun, length);
-            System.arraycopy(buffer, offset, mBuffer, tail, bytesToCopy);
-            offset += bytesToCopy;
-            mStoredBytes += bytesToCopy;
-            if (wasEmpty) {
-                notify();
+            mWaitingWriter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
-            return bytesToCopy;
         }
+
+        int bytesToCopy = (int) Math.min(length, bufferLength - (tail - head));
+        int start = (int) tail & mMask;
+        int firstRun = Math.min(bytesToCopy, bufferLength - start);
+        System.arraycopy(buffer, offset, mBuffer, start, firstRun);
+        if (firstRun < bytesToCopy) {
+            System.arraycopy(buffer, offset + firstRun, mBuffer, 0, bytesToCopy - firstRun);
+        }
+        mTail = tail + bytesToCopy;
+
+        Thread reader = mWaitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+        return bytesToCopy;
     }
 
     private final byte[] mBuffer;
-    private int mHead;
-    private int mStoredBytes;
+    private final int mMask;
+    /** Total bytes ever read; only written by the consumer. */
+    private volatile long mHead;
+    /** Total bytes ever written; only written by the producer. */
+    private volatile long mTail;
+    private volatile Thread mWaitingReader;
+    private volatile Thread mWaitingWriter;
 }
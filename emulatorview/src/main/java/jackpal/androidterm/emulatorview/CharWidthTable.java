@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 Steven Luo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * The display widths of the code points of planes 0 to 3, as worked out by
+ * {@link UnicodeTranscript#computeCharWidth}, so that looking one up takes
+ * a couple of array reads instead of a Character.getType() call and
+ * several binary searches.
+ * <p>
+ * The code points are split into blocks of 128, each filled in the first
+ * time one of its code points is looked up; computing every width up front
+ * would take a quarter of a million getType() calls, when most text only
+ * touches a handful of blocks.  East Asian ambiguous characters are stored
+ * as {@link #AMBIGUOUS}, so switching their width doesn't need a new table.
+ */
+final class CharWidthTable {
+    /** The width stored for East Asian ambiguous characters */
+    static final int AMBIGUOUS = 3;
+    /** The first code point not in the table */
+    static final int END = 0x40000;
+
+    private static final int BLOCK_SHIFT = 7;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    /**
+     * The widths of one block.  Blocks are shared between threads without
+     * locking, which the final field makes safe.
+     */
+    private static final class Block {
+        final byte[] mWidths;
+
+        Block(byte[] widths) {
+            mWidths = widths;
+        }
+    }
+
+    private final Block[] mBlocks = new Block[END >> BLOCK_SHIFT];
+    private final boolean mUnicode9;
+
+    /**
+     * @param unicode9 Whether to use the Unicode 9 width rules, as the
+     *        ambiguous width mode 3 does, rather than vim's.
+     */
+    CharWidthTable(boolean unicode9) {
+        mUnicode9 = unicode9;
+    }
+
+    boolean isUnicode9() {
+        return mUnicode9;
+    }
+
+    /**
+     * @param codePoint A code point from 0 up to {@link #END}.
+     * @return Its width, or {@link #AMBIGUOUS}.
+     */
+    int get(int codePoint) {
+        Block block = mBlocks[codePoint >> BLOCK_SHIFT];
+        if (block == null) {
+            block = fillBlock(codePoint >> BLOCK_SHIFT);
+        }
+        return block.mWidths[codePoint & BLOCK_MASK];
+    }
+
+    private Block fillBlock(int index) {
+        // Threads racing to fill the same block compute the same widths
+        byte[] widths = new byte[BLOCK_SIZE];
+        int base = index << BLOCK_SHIFT;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            widths[i] = (byte) UnicodeTranscript.computeCharWidth(base + i, AMBIGUOUS, mUnicode9);
+        }
+        Block block = new Block(widths);
+        mBlocks[index] = block;
+        return block;
+    }
+}
@@ -0,0 +1,672 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+/**
+ * The cold tier of a transcript's scrollback: rows which fell off the top of
+ * the {@link UnicodeTranscript}'s ring buffer.
+ * <p>
+ * Rows are serialized as they arrive, and collected into blocks of {@link
+ * #BLOCK_ROWS} rows, which are compressed with Deflate once full.  Compressed
+ * blocks are kept in memory up to a fixed budget; older blocks are then
+ * written to a spill file, if a spill directory was configured, or dropped.
+ * The space of spilled blocks which are dropped is reused, so the spill
+ * file stays within a small multiple of what the row limit lets it hold.
+ * Blocks are decompressed when one of their rows is read, and the last few decompressed blocks are kept
+ * around, so scrolling through the cold tier or exporting it decompresses
+ * each block about once.
+ * <p>
+ * Rows in the cold tier are read-only.  They keep the width they had when
+ * they were archived; after the screen width changes, they are padded or
+ * truncated to the new width when read, rather than being reflowed.
+ */
+final class ColdScrollback {
+    private static final String TAG = "ColdScrollback";
+
+    static final int BLOCK_ROWS = 256;
+
+    /** Compressed bytes kept in memory before spilling or dropping blocks */
+    private static final int MEMORY_BUDGET = 1 << 20;
+
+    private static final int CACHED_BLOCKS = 2;
+
+    /** Dropped bytes at the start of the spill file worth compacting */
+    private static final int SPILL_COMPACT_MIN = 1 << 20;
+
+    private static final int TEXT_BASIC = 1;
+    private static final int TEXT_FULL = 2;
+    private static final int TEXT_MASK = 3;
+    private static final int COLOR_SOLID = 4;
+    private static final int COLOR_RUNS = 8;
+    private static final int COLOR_MASK = 12;
+    private static final int LINE_WRAP = 16;
+
+    private static int sMaxRows = 0;
+    private static File sSpillDir;
+
+    /**
+     * Decoded rows of a block, as the transcript stores them.
+     */
+    private static final class Block {
+        final int mColumns;
+        final Object[] mLines = new Object[BLOCK_ROWS];
+        final StyleRow[] mColors = new StyleRow[BLOCK_ROWS];
+        final boolean[] mWraps = new boolean[BLOCK_ROWS];
+
+        Block(int columns) {
+            mColumns = columns;
+        }
+    }
+
+    /**
+     * A compressed block, in memory or in the spill file.
+     */
+    private static final class Sealed {
+        final int mFirstRow;
+        final int mRows;
+        final int mRawLength;
+        byte[] mData;
+        long mFileOffset;
+        int mLength;
+
+        Sealed(int firstRow, int rows, int rawLength, byte[] data) {
+            mFirstRow = firstRow;
+            mRows = rows;
+            mRawLength = rawLength;
+            mData = data;
+            mLength = data.length;
+        }
+    }
+
+    private final ArrayList<Sealed> mSealed = new ArrayList<Sealed>();
+    /** Rows dropped from the front since this tier was created */
+    private int mDroppedRows;
+    /** Rows ever sealed, including dropped ones */
+    private int mSealedRows;
+    private int mMemoryUsed;
+
+    /** Serialized rows of the block being filled */
+    private byte[] mPending = new byte[8192];
+    private int mPendingLength;
+    private int mPendingRows;
+    /** The pending rows, decoded, if any of them was read */
+    private Block mPendingBlock;
+    private int mColumns;
+
+    private final Sealed[] mCacheKey = new Sealed[CACHED_BLOCKS];
+    private final Block[] mCacheBlock = new Block[CACHED_BLOCKS];
+    private int mCacheNext;
+    /** The index of the first row of the block last returned by findBlock */
+    private int mFoundFirstRow;
+
+    private final int mRowLimit;
+    private final File mSpillDirectory;
+    private RandomAccessFile mSpillFile;
+    private long mSpillLength;
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater mInflater = new Inflater();
+    private byte[] mCompressBuffer = new byte[8192];
+    private byte[] mInflated = new byte[8192];
+    /** The serialized rows being decoded, and the position in them */
+    private byte[] mInput;
+    private int mInputPos;
+    private char[] mChars;
+
+    private ColdScrollback(int columns, int maxRows, File spillDir) {
+        mColumns = columns;
+        mRowLimit = maxRows;
+        mSpillDirectory = spillDir;
+    }
+
+    /**
+     * Set how many rows the cold tier of transcripts created from now on may
+     * hold, and where blocks over the memory budget are spilled to.
+     *
+     * @param maxRows The number of rows, or 0 to disable the cold tier.
+     * @param spillDir A directory for spill files, or null to drop blocks
+     *        which don't fit in memory instead.
+     */
+    static void configure(int maxRows, File spillDir) {
+        if (maxRows < 0) {
+            throw new IllegalArgumentException("maxRows must not be negative");
+        }
+        sMaxRows = maxRows;
+        sSpillDir = spillDir;
+    }
+
+    /**
+     * @return A new cold tier, or null if cold tiers are disabled.
+     */
+    static ColdScrollback create(int columns) {
+        if (sMaxRows == 0) {
+            return null;
+        }
+        return new ColdScrollback(columns, sMaxRows, sSpillDir);
+    }
+
+    /**
+     * @return The number of rows available in this tier.
+     */
+    int getRows() {
+        return mSealedRows - mDroppedRows + mPendingRows;
+    }
+
+    /**
+     * Change the width rows are returned in.
+     */
+    void setColumns(int columns) {
+        if (columns == mColumns) {
+            return;
+        }
+        mColumns = columns;
+        mPendingBlock = null;
+        for (int i = 0; i < CACHED_BLOCKS; i++) {
+            mCacheKey[i] = null;
+            mCacheBlock[i] = null;
+        }
+    }
+
+    /**
+     * Archive the row which just fell off the top of the transcript.  The
+     * row is copied, so the objects passed in may be reused afterwards.
+     *
+     * @param line The text of the row: null, a char[] or a FullUnicodeLine.
+     * @param color The styles of the row, or null.
+     * @param wrap Whether the row wraps onto the next one.
+     * @param columns The width of the row.
+     */
+    void append(Object line, StyleRow color, boolean wrap, int columns) {
+        encodeRow(line, color, wrap, columns);
+        mPendingBlock = null;
+        if (++mPendingRows == BLOCK_ROWS) {
+            seal();
+        }
+    }
+
+    Object getLine(int index) {
+        Block block = findBlock(index);
+        return block.mLines[index - mFoundFirstRow];
+    }
+
+    StyleRow getLineColor(int index) {
+        Block block = findBlock(index);
+        return block.mColors[index - mFoundFirstRow];
+    }
+
+    boolean getLineWrap(int index) {
+        Block block = findBlock(index);
+        return block.mWraps[index - mFoundFirstRow];
+    }
+
+    /**
+     * Release the spill file.
+     */
+    void close() {
+        if (mSpillFile != null) {
+            try {
+                mSpillFile.close();
+            } catch (IOException e) {
+                // Nothing we can do about it
+            }
+            mSpillFile = null;
+        }
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    private Block findBlock(int index) {
+        if (index < 0 || index >= getRows()) {
+            throw new IllegalArgumentException("cold row " + index);
+        }
+        int row = index + mDroppedRows;
+        if (row >= mSealedRows) {
+            mFoundFirstRow = mSealedRows - mDroppedRows;
+            if (mPendingBlock == null) {
+                mPendingBlock = decodeRows(mPending, mPendingRows);
+            }
+            return mPendingBlock;
+        }
+
+        ArrayList<Sealed> sealed = mSealed;
+        int lo = 0;
+        int hi = sealed.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (sealed.get(mid).mFirstRow <= row) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        Sealed block = sealed.get(lo);
+        mFoundFirstRow = block.mFirstRow - mDroppedRows;
+
+        for (int i = 0; i < CACHED_BLOCKS; i++) {
+            if (mCacheKey[i] == block) {
+                return mCacheBlock[i];
+            }
+        }
+        Block decoded = decode(block);
+        cache(block, decoded);
+        return decoded;
+    }
+
+    private void cache(Sealed key, Block block) {
+        int slot = mCacheNext;
+        mCacheKey[slot] = key;
+        mCacheBlock[slot] = block;
+        mCacheNext = (slot + 1) % CACHED_BLOCKS;
+    }
+
+    /**
+     * Compress the pending block, then enforce the row limit and memory
+     * budget.
+     */
+    private void seal() {
+        int rawLength = mPendingLength;
+        Deflater deflater = mDeflater;
+        deflater.reset();
+        deflater.setInput(mPending, 0, rawLength);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == mCompressBuffer.length) {
+                byte[] bigger = new byte[2 * length];
+                System.arraycopy(mCompressBuffer, 0, bigger, 0, length);
+                mCompressBuffer = bigger;
+            }
+            length += deflater.deflate(mCompressBuffer, length, mCompressBuffer.length - length);
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(mCompressBuffer, 0, data, 0, length);
+
+        Sealed sealed = new Sealed(mSealedRows, mPendingRows, rawLength, data);
+        mSealed.add(sealed);
+        mSealedRows += mPendingRows;
+        mMemoryUsed += length;
+        if (mPendingBlock != null) {
+            cache(sealed, mPendingBlock);
+            mPendingBlock = null;
+        }
+        mPendingLength = 0;
+        mPendingRows = 0;
+
+        while (getRows() > mRowLimit && !mSealed.isEmpty()) {
+            dropOldest();
+        }
+        while (mMemoryUsed > MEMORY_BUDGET) {
+            if (!spillOldest()) {
+                dropOldest();
+            }
+        }
+    }
+
+    private void dropOldest() {
+        Sealed oldest = mSealed.remove(0);
+        mDroppedRows += oldest.mRows;
+        if (oldest.mData != null) {
+            mMemoryUsed -= oldest.mLength;
+        }
+        for (int i = 0; i < CACHED_BLOCKS; i++) {
+            if (mCacheKey[i] == oldest) {
+                mCacheKey[i] = null;
+                mCacheBlock[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Move the oldest block still in memory to the spill file.
+     *
+     * @return false if there is no spill file to move it to.
+     */
+    private boolean spillOldest() {
+        if (mSpillDirectory == null) {
+            return false;
+        }
+        Sealed oldest = null;
+        for (Sealed block : mSealed) {
+            if (block.mData != null) {
+                oldest = block;
+                break;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        try {
+            if (mSpillFile == null) {
+                File file = File.createTempFile("scrollback", ".tmp", mSpillDirectory);
+                mSpillFile = new RandomAccessFile(file, "rw");
+                // The open file stays usable, and is cleaned up by the system
+                // even if we never get to close it
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+            compactSpillFile();
+            mSpillFile.seek(mSpillLength);
+            mSpillFile.write(oldest.mData, 0, oldest.mLength);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to spill scrollback: " + e);
+            return false;
+        }
+        oldest.mFileOffset = mSpillLength;
+        mSpillLength += oldest.mLength;
+        oldest.mData = null;
+        mMemoryUsed -= oldest.mLength;
+        return true;
+    }
+
+    /**
+     * Move the spilled blocks still in use to the start of the spill file,
+     * over those which were dropped, once the dropped ones take up as much
+     * room as the others.  Blocks are spilled and dropped oldest first, so
+     * the spilled blocks are the oldest ones, in file order, and the dropped
+     * ones are always the start of the file.
+     */
+    private void compactSpillFile() throws IOException {
+        long start = mSpillLength;
+        if (!mSealed.isEmpty() && mSealed.get(0).mData == null) {
+            start = mSealed.get(0).mFileOffset;
+        }
+        long used = mSpillLength - start;
+        if (start < SPILL_COMPACT_MIN || start < used) {
+            return;
+        }
+
+        RandomAccessFile file = mSpillFile;
+        byte[] buffer = new byte[65536];
+        for (long done = 0; done < used; ) {
+            int length = (int) Math.min(buffer.length, used - done);
+            file.seek(start + done);
+            file.readFully(buffer, 0, length);
+            file.seek(done);
+            file.write(buffer, 0, length);
+            done += length;
+        }
+        for (Sealed block : mSealed) {
+            if (block.mData != null) {
+                break;
+            }
+            block.mFileOffset -= start;
+        }
+        mSpillLength = used;
+        file.setLength(used);
+    }
+
+    /**
+     * @return The length of the spill file, or 0 if there is none.
+     */
+    long getSpillFileLength() throws IOException {
+        return mSpillFile == null ? 0 : mSpillFile.length();
+    }
+
+    private Block decode(Sealed sealed) {
+        byte[] data = sealed.mData;
+        if (data == null) {
+            data = new byte[sealed.mLength];
+            try {
+                mSpillFile.seek(sealed.mFileOffset);
+                mSpillFile.readFully(data);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read spilled scrollback: " + e);
+                return blankBlock();
+            }
+        }
+
+        if (mInflated.length < sealed.mRawLength) {
+            mInflated = new byte[sealed.mRawLength];
+        }
+        Inflater inflater = mInflater;
+        inflater.reset();
+        inflater.setInput(data, 0, sealed.mLength);
+        try {
+            int length = 0;
+            while (length < sealed.mRawLength) {
+                int count = inflater.inflate(mInflated, length, sealed.mRawLength - length);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new DataFormatException("block is truncated");
+                }
+                length += count;
+            }
+        } catch (DataFormatException e) {
+            Log.e(TAG, "Corrupt scrollback block: " + e);
+            return blankBlock();
+        }
+
+        return decodeRows(mInflated, sealed.mRows);
+    }
+
+    private Block decodeRows(byte[] input, int rows) {
+        Block block = new Block(mColumns);
+        mInput = input;
+        mInputPos = 0;
+        for (int row = 0; row < rows; row++) {
+            decodeRow(block, row);
+        }
+        mInput = null;
+        return block;
+    }
+
+    private Block blankBlock() {
+        return new Block(mColumns);
+    }
+
+    /*
+     * Row format, with every number (including chars) stored as a varint:
+     * the width of the row, a flags byte, then
+     *   basic text: length (trailing blanks trimmed), chars
+     *   full text:  space used, chars, then one offset per column
+     *   solid color: style
+     *   color runs: (length, style) per run, until the width is covered
+     */
+
+    private void encodeRow(Object line, StyleRow color, boolean wrap, int columns) {
+        int flags = wrap ? LINE_WRAP : 0;
+        if (line instanceof char[]) {
+            flags |= TEXT_BASIC;
+        } else if (line != null) {
+            flags |= TEXT_FULL;
+        }
+        if (color != null) {
+            flags |= color.isSolidStyle() ? COLOR_SOLID : COLOR_RUNS;
+        }
+        int textLength = columns;
+        if ((flags & TEXT_MASK) == TEXT_FULL) {
+            textLength = ((FullUnicodeLine) line).getSpaceUsed();
+        }
+        ensurePending(mPendingLength + 16 + 3 * (textLength + columns) + 8 * columns);
+        putVar(columns);
+        mPending[mPendingLength++] = (byte) flags;
+
+        if ((flags & TEXT_MASK) == TEXT_BASIC) {
+            char[] text = (char[]) line;
+            int length = text.length;
+            while (length > 0 && text[length - 1] == ' ') {
+                --length;
+            }
+            putVar(length);
+            putChars(text, length);
+        } else if ((flags & TEXT_MASK) == TEXT_FULL) {
+            FullUnicodeLine full = (FullUnicodeLine) line;
+            putVar(textLength);
+            putChars(full.getLine(), textLength);
+            char[] offsets = charBuffer(columns);
+            full.saveOffsets(offsets, 0);
+            putChars(offsets, columns);
+        }
+
+        if ((flags & COLOR_MASK) == COLOR_SOLID) {
+            putVar(color.getSolidStyle());
+        } else if ((flags & COLOR_MASK) == COLOR_RUNS) {
+            int column = 0;
+            while (column < columns) {
+                int style = color.get(column);
+                int length = 1;
+                while (column + length < columns && color.get(column + length) == style) {
+                    ++length;
+                }
+                putVar(length);
+                putVar(style);
+                column += length;
+            }
+        }
+    }
+
+    private void decodeRow(Block block, int row) {
+        int width = getVar();
+        int flags = mInput[mInputPos++];
+        int columns = block.mColumns;
+
+        if ((flags & TEXT_MASK) == TEXT_BASIC) {
+            int length = getVar();
+            char[] text = new char[columns];
+            for (int i = 0; i < length; i++) {
+                char c = (char) getVar();
+                if (i < columns) {
+                    text[i] = c;
+                }
+            }
+            for (int i = length; i < columns; i++) {
+                text[i] = ' ';
+            }
+            block.mLines[row] = text;
+        } else if ((flags & TEXT_MASK) == TEXT_FULL) {
+            int length = getVar();
+            char[] chars = charBuffer(length + width);
+            for (int i = 0; i < length + width; i++) {
+                chars[i] = (char) getVar();
+            }
+            FullUnicodeLine line = new FullUnicodeLine(width);
+            line.restore(chars, 0, length, length);
+            if (width != columns) {
+                line = resizeLine(line, width, columns);
+            }
+            block.mLines[row] = line;
+        }
+
+        if ((flags & COLOR_MASK) == COLOR_SOLID) {
+            block.mColors[row] = new StyleRow(getVar(), columns);
+        } else if ((flags & COLOR_MASK) == COLOR_RUNS) {
+            StyleRow color = new StyleRow(0, columns);
+            color.ensureData();
+            int column = 0;
+            while (column < width) {
+                int length = getVar();
+                int style = getVar();
+                if (column < columns) {
+                    color.set(column, Math.min(length, columns - column), style);
+                }
+                column += length;
+            }
+            block.mColors[row] = color;
+        }
+
+        block.mWraps[row] = (flags & LINE_WRAP) != 0;
+    }
+
+    /**
+     * Copy a full row into one of a different width, truncating it or
+     * padding it with blanks.
+     */
+    private static FullUnicodeLine resizeLine(FullUnicodeLine line, int oldColumns,
+            int columns) {
+        FullUnicodeLine resized = new FullUnicodeLine(columns);
+        char[] text = line.getLine();
+        int spaceUsed = line.getSpaceUsed();
+        int limit = Math.min(oldColumns, columns);
+        for (int column = 0; column < limit; column++) {
+            int start = line.findStartOfColumn(column);
+            if (column > 0 && start == line.findStartOfColumn(column - 1)) {
+                // Second column of a wide character
+                continue;
+            }
+            int end = column + 1 < oldColumns ? line.findStartOfColumn(column + 1) : spaceUsed;
+            if (end == start && column + 2 < oldColumns) {
+                end = line.findStartOfColumn(column + 2);
+            }
+            for (int i = start; i < end; ) {
+                int codePoint = Character.codePointAt(text, i, end);
+                resized.setChar(column, codePoint);
+                i += Character.charCount(codePoint);
+            }
+        }
+        return resized;
+    }
+
+    private char[] charBuffer(int length) {
+        if (mChars == null || mChars.length < length) {
+            mChars = new char[Math.max(length, 256)];
+        }
+        return mChars;
+    }
+
+    private void ensurePending(int length) {
+        if (mPending.length < length) {
+            byte[] bigger = new byte[Math.max(length, 2 * mPending.length)];
+            System.arraycopy(mPending, 0, bigger, 0, mPendingLength);
+            mPending = bigger;
+        }
+    }
+
+    /**
+     * Append an unsigned number, seven bits per byte, low bits first.
+     */
+    private void putVar(int value) {
+        byte[] buffer = mPending;
+        int pos = mPendingLength;
+        while ((value & ~0x7f) != 0) {
+            buffer[pos++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        mPendingLength = pos;
+    }
+
+    private void putChars(char[] chars, int length) {
+        for (int i = 0; i < length; i++) {
+            putVar(chars[i]);
+        }
+    }
+
+    private int getVar() {
+        byte[] input = mInput;
+        int pos = mInputPos;
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = input[pos++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        mInputPos = pos;
+        return value;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * Compact storage for the rows of a {@link UnicodeTranscript} which have
+ * scrolled off the screen.
+ * <p>
+ * On screen, each row is a char[] or {@link FullUnicodeLine} plus a {@link
+ * StyleRow}, which is convenient to modify but costs several heap objects
+ * per row.  Rows in the scrollback are hardly ever modified, so they are
+ * packed into two large shared slabs instead:
+ * <ul>
+ * <li>the text of "basic" rows, without trailing blanks, or the text and
+ * column offsets of full rows, in a char[] slab;</li>
+ * <li>the styles of the row, run-length encoded, in an int[] slab.  Rows
+ * whose StyleRow is solid, which includes all blank rows, keep their style
+ * in the row table and take no slab space at all.</li>
+ * </ul>
+ * Slots are indexed by the transcript's internal row numbers.  Space freed
+ * by removed rows is reclaimed by compacting a slab when it fills up.
+ */
+final class CompactRowStore {
+    private static final int FLAG_STORED = 1;
+    /** The text is that of a FullUnicodeLine, followed by its column offsets */
+    private static final int FLAG_FULL = 2;
+    /** The row had no text at all (mLines[row] was null) */
+    private static final int FLAG_NO_TEXT = 4;
+    /** The row had no style information (mColor[row] was null) */
+    private static final int FLAG_NO_COLOR = 8;
+    /** The row is in a single style, which is kept in mStyleStart */
+    private static final int FLAG_SOLID = 16;
+
+    private static final int MIN_SLAB_SIZE = 4096;
+
+    /** Style runs are packed into an int: length - 1 above the 24-bit style */
+    private static final int RUN_LENGTH_SHIFT = 24;
+    private static final int MAX_RUN_LENGTH = 1 << (32 - RUN_LENGTH_SHIFT);
+    private static final int STYLE_MASK = (1 << RUN_LENGTH_SHIFT) - 1;
+
+    private final int mColumns;
+
+    private final byte[] mFlags;
+    private final int[] mTextStart;
+    private final char[] mTextLength;
+    private final int[] mStyleStart;
+    private final char[] mStyleRuns;
+
+    private char[] mText = new char[MIN_SLAB_SIZE];
+    private int mTextUsed;
+    private int mTextLive;
+
+    private int[] mStyles = new int[MIN_SLAB_SIZE / 4];
+    private int mStylesUsed;
+    private int mStylesLive;
+
+    /*
+     * Rows are normally stored in the order they scroll off the screen, one
+     * slot after another, and removed in the same order.  As long as that
+     * holds, the data in each slab is in the circular order of the slots
+     * following mLastStored, and a slab can be compacted in place by moving
+     * each row down in turn.  Compaction restores that order in any case.
+     */
+    private int mLastStored;
+    private boolean mTextInOrder = true;
+    private boolean mStylesInOrder = true;
+
+    CompactRowStore(int columns, int totalRows) {
+        mColumns = columns;
+        mFlags = new byte[totalRows];
+        mTextStart = new int[totalRows];
+        mTextLength = new char[totalRows];
+        mStyleStart = new int[totalRows];
+        mStyleRuns = new char[totalRows];
+    }
+
+    boolean contains(int row) {
+        return mFlags[row] != 0;
+    }
+
+    /**
+     * Whether a stored row has any text.  If it does, {@link #isFull} tells
+     * whether the text was kept in a {@link FullUnicodeLine}.
+     */
+    boolean hasText(int row) {
+        return (mFlags[row] & FLAG_NO_TEXT) == 0;
+    }
+
+    boolean isFull(int row) {
+        return (mFlags[row] & FLAG_FULL) != 0;
+    }
+
+    boolean hasColor(int row) {
+        return (mFlags[row] & FLAG_NO_COLOR) == 0;
+    }
+
+    /**
+     * Whether the styles of a stored row came from a solid StyleRow.
+     */
+    boolean isSolidColor(int row) {
+        return (mFlags[row] & FLAG_SOLID) != 0;
+    }
+
+    /**
+     * Pack a row into the store.  Any row previously stored in the same slot
+     * is replaced.
+     *
+     * @param row The slot (internal row number) to store the row in.
+     * @param line The text of the row: null, a char[] or a FullUnicodeLine.
+     * @param color The styles of the row, or null.
+     */
+    void store(int row, Object line, StyleRow color) {
+        remove(row);
+        int flags = FLAG_STORED;
+        if (row != (mLastStored + 1) % mFlags.length) {
+            mTextInOrder = false;
+            mStylesInOrder = false;
+        }
+
+        if (line == null) {
+            flags |= FLAG_NO_TEXT;
+        } else if (line instanceof char[]) {
+            char[] text = (char[]) line;
+            int length = text.length;
+            while (length > 0 && text[length - 1] == ' ') {
+                --length;
+            }
+            mTextStart[row] = appendText(text, 0, length, null);
+            mTextLength[row] = (char) length;
+        } else {
+            FullUnicodeLine full = (FullUnicodeLine) line;
+            int length = full.getSpaceUsed();
+            mTextStart[row] = appendText(full.getLine(), 0, length, full);
+            mTextLength[row] = (char) length;
+            flags |= FLAG_FULL;
+        }
+
+        if (color == null) {
+            flags |= FLAG_NO_COLOR;
+        } else {
+            if (color.isSolidStyle()) {
+                flags |= FLAG_SOLID;
+                mStyleStart[row] = color.getSolidStyle();
+            } else {
+                int runs = countRuns(color);
+                mStyleStart[row] = appendRuns(color, runs);
+                mStyleRuns[row] = (char) runs;
+            }
+        }
+
+        mFlags[row] = (byte) flags;
+        mLastStored = row;
+    }
+
+    /**
+     * Forget the row stored in a slot, if any.
+     */
+    void remove(int row) {
+        int flags = mFlags[row];
+        if (flags == 0) {
+            return;
+        }
+        if ((flags & FLAG_NO_TEXT) == 0) {
+            mTextLive -= textSize(row);
+        }
+        if ((flags & (FLAG_NO_COLOR | FLAG_SOLID)) == 0) {
+            mStylesLive -= mStyleRuns[row];
+        }
+        mFlags[row] = 0;
+    }
+
+    /**
+     * Copy the text of a stored basic row into a buffer.
+     *
+     * @param out A buffer at least as long as the row.
+     */
+    void loadBasicLine(int row, char[] out) {
+        int length = mTextLength[row];
+        System.arraycopy(mText, mTextStart[row], out, 0, length);
+        for (int i = length; i < mColumns; i++) {
+            out[i] = ' ';
+        }
+    }
+
+    /**
+     * Replace the contents of a FullUnicodeLine with those of a stored full
+     * row.
+     */
+    void loadFullLine(int row, FullUnicodeLine out) {
+        int start = mTextStart[row];
+        int length = mTextLength[row];
+        out.restore(mText, start, length, start + length);
+    }
+
+    /**
+     * Make a StyleRow hold the styles of a stored row.  Reusing the same
+     * StyleRow for rows which are not {@link #isSolidColor solid} doesn't
+     * allocate.
+     */
+    void loadColor(int row, StyleRow out) {
+        if ((mFlags[row] & FLAG_SOLID) != 0) {
+            out.setSolidStyle(mStyleStart[row]);
+            return;
+        }
+        int[] styles = mStyles;
+        int start = mStyleStart[row];
+        int end = start + mStyleRuns[row];
+        int column = 0;
+        // The runs cover every column; keep the row per-column, like the one
+        // which was stored
+        out.ensureData();
+        for (int i = start; i < end; i++) {
+            int run = styles[i];
+            int length = (run >>> RUN_LENGTH_SHIFT) + 1;
+            out.set(column, length, run & STYLE_MASK);
+            column += length;
+        }
+    }
+
+    private int textSize(int row) {
+        int size = mTextLength[row];
+        if ((mFlags[row] & FLAG_FULL) != 0) {
+            size += mColumns;
+        }
+        return size;
+    }
+
+    private int appendText(char[] text, int offset, int length, FullUnicodeLine full) {
+        int size = length + (full != null ? mColumns : 0);
+        if (mTextUsed + size > mText.length) {
+            compactText(size);
+        }
+        int start = mTextUsed;
+        System.arraycopy(text, offset, mText, start, length);
+        if (full != null) {
+            full.saveOffsets(mText, start + length);
+        }
+        mTextUsed += size;
+        mTextLive += size;
+        return start;
+    }
+
+    private int countRuns(StyleRow color) {
+        int columns = mColumns;
+        int runs = 0;
+        int column = 0;
+        while (column < columns) {
+            column += runLength(color, column);
+            ++runs;
+        }
+        return runs;
+    }
+
+    private int runLength(StyleRow color, int column) {
+        int style = color.get(column);
+        int length = 1;
+        while (column + length < mColumns && length < MAX_RUN_LENGTH
+                && color.get(column + length) == style) {
+            ++length;
+        }
+        return length;
+    }
+
+    private int appendRuns(StyleRow color, int runs) {
+        if (mStylesUsed + runs > mStyles.length) {
+            compactStyles(runs);
+        }
+        int[] styles = mStyles;
+        int start = mStylesUsed;
+        int pos = start;
+        int column = 0;
+        while (column < mColumns) {
+            int length = runLength(color, column);
+            styles[pos++] = ((length - 1) << RUN_LENGTH_SHIFT)
+                    | (color.get(column) & STYLE_MASK);
+            column += length;
+        }
+        mStylesUsed += runs;
+        mStylesLive += runs;
+        return start;
+    }
+
+    /**
+     * Reclaim the space of removed rows in the text slab, growing it if even
+     * that won't leave room for another needed chars.
+     */
+    private void compactText(int needed) {
+        int capacity = Math.max(MIN_SLAB_SIZE, 2 * (mTextLive + needed));
+        boolean inPlace = mTextInOrder && capacity <= mText.length
+                && 2 * capacity > mText.length;
+        char[] text = inPlace ? mText : new char[capacity];
+        int rows = mFlags.length;
+        int used = 0;
+        for (int i = 1; i <= rows; i++) {
+            int row = (mLastStored + i) % rows;
+            if (mFlags[row] == 0 || (mFlags[row] & FLAG_NO_TEXT) != 0) {
+                continue;
+            }
+            int size = textSize(row);
+            System.arraycopy(mText, mTextStart[row], text, used, size);
+            mTextStart[row] = used;
+            used += size;
+        }
+        mText = text;
+        mTextUsed = used;
+        mTextInOrder = true;
+    }
+
+    /**
+     * Reclaim the space of removed rows in the style slab, growing it if
+     * even that won't leave room for another needed runs.
+     */
+    private void compactStyles(int needed) {
+        int capacity = Math.max(MIN_SLAB_SIZE / 4, 2 * (mStylesLive + needed));
+        boolean inPlace = mStylesInOrder && capacity <= mStyles.length
+                && 2 * capacity > mStyles.length;
+        int[] styles = inPlace ? mStyles : new int[capacity];
+        int rows = mFlags.length;
+        int used = 0;
+        for (int i = 1; i <= rows; i++) {
+            int row = (mLastStored + i) % rows;
+            if (mFlags[row] == 0 || (mFlags[row] & (FLAG_NO_COLOR | FLAG_SOLID)) != 0) {
+                continue;
+            }
+            int runs = mStyleRuns[row];
+            System.arraycopy(mStyles, mStyleStart[row], styles, used, runs);
+            mStyleStart[row] = used;
+            used += runs;
+        }
+        mStyles = styles;
+        mStylesUsed = used;
+        mStylesInOrder = true;
+    }
+}
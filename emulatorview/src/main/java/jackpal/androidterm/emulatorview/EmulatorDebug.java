@@ -43,6 +43,26 @@ class EmulatorDebug {
      */
     public static final boolean LOG_UNKNOWN_ESCAPE_SEQUENCES = DEBUG & false;
 
+    /**
+     * Set to true to log how long EmulatorView.onDraw takes, averaged over a
+     * number of frames, to compare renderers and the row cache.
+     */
+    public static final boolean LOG_FRAME_TIMES = DEBUG & false;
+
+    /**
+     * Set to true to log each time EmulatorView resizes the terminal, along
+     * with how many size changes it has seen.
+     */
+    public static final boolean LOG_RESIZES = DEBUG & false;
+
+    /**
+     * Set to true to log the throughput of the emulator and how long each
+     * batch of output keeps it busy, every few MB of output.  For repeatable
+     * figures, record a session with {@link SessionLogger} and play the log
+     * back through a session with {@link SessionLogger#openReplay}.
+     */
+    public static final boolean LOG_APPEND_TIMES = DEBUG & false;
+
     /**
      * The tag we use when logging, so that our messages can be distinguished
      * from other messages in the log. Public because it's used by several
@@ -25,6 +25,7 @@
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.hardware.input.InputManager;
 import android.os.Build;
 import android.os.Bundle;
@@ -57,8 +58,11 @@
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.preference.PreferenceManager;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.BitSet;
 import java.util.Hashtable;
+import java.util.regex.Pattern;
 
 import jackpal.androidterm.emulatorview.compat.AndroidCompat;
 import jackpal.androidterm.emulatorview.compat.ClipboardManagerCompat;
@@ -136,6 +140,15 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 
     private Paint mBackgroundPaint;
 
+    /**
+     * The search of the transcript in progress, if any, and the paints for
+     * its matches.
+     */
+    private TranscriptSearch mSearch;
+    private final Paint mMatchPaint = new Paint();
+    private final Paint mCurrentMatchPaint = new Paint();
+    private final GrowableIntArray mHighlights = new GrowableIntArray(12);
+
     private boolean mUseCookedIme;
     private boolean mUseDirectCookedIme;
 
@@ -221,8 +234,7 @@ public void run() {
             } else {
                 mCursorVisible = true;
             }
-            // Perhaps just invalidate the character with the cursor.
-            invalidate();
+            invalidateCursor();
         }
     };
 
@@ -362,29 +374,186 @@ public void run() {
     private String mImeBuffer = "";
     private SpannableString mImeSpannableString = null;
 
+    /**
+     * Screen rows which need to be redrawn, and what we compare against to
+     * find them.
+     */
+    private final BitSet mDirtyRows = new BitSet();
+    private TranscriptScreen mLastScreen;
+    private ScreenSnapshot mLastSnapshot;
+    private int mLastCursorRow = -1;
+    private int mLastCursorCol = -1;
+    private final Rect mClipRect = new Rect();
+
+    /**
+     * Rendered rows, if row caching is enabled.
+     */
+    private RowBitmapCache mRowCache;
+
+    /**
+     * Frame time statistics, see {@link EmulatorDebug#LOG_FRAME_TIMES}.
+     */
+    private static final int FRAME_STATS_INTERVAL = 120;
+    private int mFrameCount;
+    private long mFrameTimeTotal;
+    private long mFrameTimeMax;
+
     /**
      * Our message handler class. Implements a periodic callback.
      */
     private final Handler mHandler = new Handler();
 
+    /**
+     * How long the view's size must stay the same before the terminal is
+     * resized to fit it, in ms.
+     */
+    private static final int RESIZE_SETTLE_DELAY = 150;
+
+    /**
+     * Whether the view has changed size since the terminal was last resized
+     * to fit it.  Until it settles, the screen is drawn at its old size,
+     * clipped to the view.
+     */
+    private boolean mResizePending;
+
+    /**
+     * Resize statistics, see {@link #getResizeRequestCount} and
+     * {@link #getResizeCount}.
+     */
+    private int mResizeRequests;
+    private int mResizes;
+
+    private final Runnable mCommitResize = new Runnable() {
+        public void run() {
+            if (mResizePending) {
+                updateSize(mVisibleWidth, mVisibleHeight, false);
+            }
+        }
+    };
+
     /**
      * Called by the TermSession when the contents of the view need updating
      */
     private final UpdateCallback mUpdateNotify = new UpdateCallback() {
         public void onUpdate() {
             doEscCtrl();
-            if (mIsSelectingText) {
-                int rowShift = mEmulator.getScrollCounter();
-                mSelY1 -= rowShift;
-                mSelY2 -= rowShift;
-                mSelYAnchor -= rowShift;
+            int rowShift;
+            int transcriptRows;
+            boolean scrollbackChanged;
+            synchronized (mTermSession.getEmulatorLock()) {
+                rowShift = mEmulator.getScrollCounter();
+                transcriptRows = mEmulator.getScreen().getActiveTranscriptRows();
+                if (mIsSelectingText) {
+                    mSelY1 -= rowShift;
+                    mSelY2 -= rowShift;
+                    mSelYAnchor -= rowShift;
+                }
+                mEmulator.clearScrollCounter();
+                scrollbackChanged = collectDirtyRows();
+            }
+            if (mSearch != null) {
+                mSearch.onTranscriptChanged();
+            }
+            int oldTopRow = mTopRow;
+            int oldLeftColumn = mLeftColumn;
+            if (mTopRow < -transcriptRows) {
+                // The oldest rows of the cold scrollback were dropped
+                mTopRow = -transcriptRows;
             }
-            mEmulator.clearScrollCounter();
             ensureCursorVisible();
-            invalidate();
+            // Redraw on the next vsync; further updates before then are
+            // folded into the same frame
+            if (oldTopRow != mTopRow || oldLeftColumn != mLeftColumn
+                    || (mIsSelectingText && rowShift != 0) || scrollbackChanged) {
+                mDirtyRows.clear();
+                postInvalidateOnAnimation();
+            } else {
+                invalidateDirtyRows();
+            }
         }
     };
 
+    /**
+     * Find the screen rows which changed since the last update, including
+     * the rows the cursor moved between.  Called with the emulator lock held.
+     *
+     * @return Whether scrollback rows on view changed too, which the dirty
+     *         rows can't tell.
+     */
+    private boolean collectDirtyRows() {
+        ScreenSnapshot snapshot = mTermSession.getScreenSnapshot();
+        if (snapshot != null) {
+            boolean scrollbackChanged = snapshot.collectDirtyRows(mLastSnapshot, mDirtyRows);
+            mLastSnapshot = snapshot;
+            return scrollbackChanged;
+        }
+
+        TranscriptScreen screen = mEmulator.getScreen();
+        if (screen != mLastScreen) {
+            // Switched between the main and alternate screens
+            mLastScreen = screen;
+            mDirtyRows.set(0, mRows);
+        }
+        screen.takeDirtyRows(mDirtyRows);
+        int cx = mEmulator.getCursorCol();
+        int cy = mEmulator.getCursorRow();
+        if (cx != mLastCursorCol || cy != mLastCursorRow) {
+            if (mLastCursorRow >= 0) {
+                mDirtyRows.set(mLastCursorRow);
+            }
+            mDirtyRows.set(cy);
+            mLastCursorCol = cx;
+            mLastCursorRow = cy;
+        }
+        return false;
+    }
+
+    /**
+     * Invalidate the part of the view covering the dirty rows.
+     */
+    private void invalidateDirtyRows() {
+        if (mDirtyRows.isEmpty()) {
+            return;
+        }
+        int first = mDirtyRows.nextSetBit(0);
+        int last = mDirtyRows.length() - 1;
+        mDirtyRows.clear();
+        if (mResizePending) {
+            // onDraw() may shift the rows up by however far the cursor is
+            // below the view when it draws
+            postInvalidateOnAnimation();
+            return;
+        }
+        int top = mTopOfScreenMargin + (first - mTopRow) * mCharacterHeight;
+        int bottom = mTopOfScreenMargin + (last + 1 - mTopRow) * mCharacterHeight;
+        postInvalidateOnAnimation(0, top, getWidth(), bottom);
+    }
+
+    /**
+     * Invalidate just the cell under the cursor (or the cursor row, while
+     * the IME is composing text there, or the whole view, while a resize is
+     * pending and onDraw() may shift the rows).
+     */
+    private void invalidateCursor() {
+        if (mEmulator == null || mResizePending) {
+            invalidate();
+            return;
+        }
+        ScreenSnapshot snapshot = mTermSession.getScreenSnapshot();
+        int cx = snapshot != null ? snapshot.getCursorCol() : mEmulator.getCursorCol();
+        int cy = snapshot != null ? snapshot.getCursorRow() : mEmulator.getCursorRow();
+        int top = mTopOfScreenMargin + (cy - mTopRow) * mCharacterHeight;
+        int bottom = top + mCharacterHeight;
+        if (!mImeBuffer.equals("")) {
+            invalidate(0, top, getWidth(), bottom);
+            return;
+        }
+        // Two cells, in case the cursor is on an East Asian wide character
+        int left = (int) ((cx - mLeftColumn) * mCharacterWidth);
+        int right = (int) Math.ceil((cx - mLeftColumn + 2) * mCharacterWidth);
+        invalidate(left, top, right, bottom);
+    }
+
     /**
      * Create an <code>EmulatorView</code> for a {@link TermSession}.
      *
@@ -439,6 +608,7 @@ private void commonConstructor(Context context) {
      * @param session The {@link TermSession} this view will be displaying.
      */
     public void attachSession(TermSession session) {
+        stopSearch();
         mTextRenderer = null;
         mForegroundPaint = new Paint();
         mBackgroundPaint = new Paint();
@@ -487,6 +657,10 @@ public void setDensity(DisplayMetrics metrics) {
      */
     public void onResume() {
         updateSize(false);
+        if (mResizePending) {
+            mHandler.removeCallbacks(mCommitResize);
+            mHandler.postDelayed(mCommitResize, RESIZE_SETTLE_DELAY);
+        }
         if (mCursorBlink != 0) {
             mHandler.postDelayed(mBlinkCursor, CURSOR_BLINK_PERIOD);
         }
@@ -502,6 +676,7 @@ public void onPause() {
         if (mCursorBlink != 0) {
             mHandler.removeCallbacks(mBlinkCursor);
         }
+        mHandler.removeCallbacks(mCommitResize);
         if (mKeyListener != null) {
             mKeyListener.onPause();
         }
@@ -1056,7 +1231,7 @@ public int getVisibleHeight() {
     /**
      * Gets the visible number of rows for the view, useful when updating Ptysize with the correct number of rows/columns
      *
-     * @return The rows for the visible number of rows, this is calculate in updateSize(int w, int h), please call
+     * @return The rows for the visible number of rows, this is calculate in updateSize(int w, int h, boolean force), please call
      * updateSize(true) if the view changed, to get the correct calculation before calling this.
      */
     public int getVisibleRows() {
@@ -1151,6 +1326,23 @@ static public float getTextSize(AppCompatActivity activity) {
         return fontSize;
     }
 
+    /**
+     * Set how much memory may be spent caching rendered rows of text as
+     * bitmaps.  With a cache, rows which are drawn again unchanged -- when
+     * scrolling through the transcript or repainting a static screen -- are
+     * copied from a bitmap instead of being rendered again.
+     *
+     * @param maxBytes The memory budget for the cache, in bytes, or 0 to
+     *                 disable row caching (the default).
+     */
+    public void setRowCacheSize(int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        mRowCache = maxBytes > 0 ? new RowBitmapCache(maxBytes) : null;
+        invalidate();
+    }
+
     public void setTextLeading(int fontLeading) {
         mTextLeading = fontLeading;
         updateText();
@@ -1566,7 +1758,7 @@ private void pasteClipboard() {
             return;
         }
         CharSequence paste = clip.getText();
-        mTermSession.write(paste.toString());
+        mTermSession.paste(paste);
     }
 
     public void setIMECtrlBeginBatchEditDisable(boolean mode) {
@@ -2250,6 +2442,9 @@ private void clearSpecialKeyStatus() {
     }
 
     private void updateText() {
+        if (mRowCache != null) {
+            mRowCache.clear();
+        }
         ColorScheme scheme = mColorScheme;
         if (mTextSize > 0) {
             mTextRenderer = new PaintRenderer(mTextSize, scheme, mTextFont, (int) Math.ceil(mTextLeading * mTextScale));
@@ -2286,14 +2481,26 @@ protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         }
     }
 
-    private void updateSize(int w, int h) {
+    private void updateSize(int w, int h, boolean force) {
+        mResizePending = false;
+        mHandler.removeCallbacks(mCommitResize);
+        int columns = mColumns;
+        int rows = mRows;
         mColumns = Math.max(1, (int) (((float) w) / mCharacterWidth));
         mVisibleColumns = Math.max(1, (int) (((float) mVisibleWidth) / mCharacterWidth));
 
         mTopOfScreenMargin = mTextRenderer.getTopMargin();
         mRows = Math.max(1, (h - mTopOfScreenMargin) / mCharacterHeight);
         mVisibleRows = Math.max(1, (mVisibleHeight - mTopOfScreenMargin) / mCharacterHeight);
-        mTermSession.updateSize(mColumns, mRows);
+        if (force || columns != mColumns || rows != mRows) {
+            mTermSession.updateSize(mColumns, mRows);
+            ++mResizes;
+            if (EmulatorDebug.LOG_RESIZES) {
+                Log.d(EmulatorDebug.LOG_TAG, "resize to " + mColumns + "x" + mRows
+                        + ": " + mResizes + " of " + mResizeRequests
+                        + " size changes resized the terminal");
+            }
+        }
 
         // Reset our paging:
         mTopRow = 0;
@@ -2305,6 +2512,12 @@ private void updateSize(int w, int h) {
     /**
      * Update the view's idea of its size.
      *
+     * <p>
+     * Unless forced, the terminal isn't resized until the view's size has
+     * stayed the same for a short while, so that animations which change it
+     * on every frame (such as the IME sliding in) resize the terminal and
+     * its process once at the end, rather than on each frame.
+     *
      * @param force Whether a size adjustment should be performed even if the
      *              view's size has not changed.
      */
@@ -2318,11 +2531,37 @@ public void updateSize(boolean force) {
             if (force || w != mVisibleWidth || h != mVisibleHeight) {
                 mVisibleWidth = w;
                 mVisibleHeight = h;
-                updateSize(mVisibleWidth, mVisibleHeight);
+                ++mResizeRequests;
+                if (force || mEmulator == null) {
+                    updateSize(mVisibleWidth, mVisibleHeight, true);
+                } else {
+                    mResizePending = true;
+                    mHandler.removeCallbacks(mCommitResize);
+                    mHandler.postDelayed(mCommitResize, RESIZE_SETTLE_DELAY);
+                    invalidate();
+                }
             }
         }
     }
 
+    /**
+     * @return The number of times the view's size has changed, or a resize
+     *         was forced.
+     */
+    public int getResizeRequestCount() {
+        return mResizeRequests;
+    }
+
+    /**
+     * @return The number of times the terminal has been resized to fit the
+     *         view.  Size changes which didn't lead to one were either
+     *         superseded before they settled, or didn't change the number
+     *         of rows or columns.
+     */
+    public int getResizeCount() {
+        return mResizes;
+    }
+
     /**
      * Draw the view to the provided {@link Canvas}.
      *
@@ -2339,21 +2578,54 @@ protected void onDraw(Canvas canvas) {
             return;
         }
 
-        int w = getWidth();
-        int h = getHeight();
+        long drawStart = EmulatorDebug.LOG_FRAME_TIMES ? System.nanoTime() : 0;
+
+        // If the emulator runs on its own thread, draw the screen, and the
+        // scrollback above it on view, from its latest snapshot instead of
+        // racing with it
+        ScreenSnapshot snapshot = mTermSession.getScreenSnapshot(Math.min(0, mTopRow));
+        TranscriptScreen screen = mEmulator.getScreen();
 
-        boolean reverseVideo = mEmulator.getReverseVideo();
+        boolean reverseVideo = snapshot != null ? snapshot.getReverseVideo() : mEmulator.getReverseVideo();
         mTextRenderer.setReverseVideo(reverseVideo);
 
+        int cx;
+        int cy;
+        boolean cursorVisible;
+        if (snapshot != null) {
+            cx = snapshot.getCursorCol();
+            cy = snapshot.getCursorRow();
+            cursorVisible = mCursorVisible && snapshot.getShowCursor();
+        } else {
+            cx = mEmulator.getCursorCol();
+            cy = mEmulator.getCursorRow();
+            cursorVisible = mCursorVisible && mEmulator.getShowCursor();
+        }
+
         Paint backgroundPaint =
                 reverseVideo ? mForegroundPaint : mBackgroundPaint;
-        canvas.drawRect(0, 0, w, h, backgroundPaint);
+        Rect clip = mClipRect;
+        if (!canvas.getClipBounds(clip)) {
+            return;
+        }
+        canvas.drawRect(clip, backgroundPaint);
+
+        // Until a resize settles, the screen is still its old size; if the
+        // view has become too short for it, shift it up to keep the cursor
+        // row in view
+        int shift = 0;
+        if (mResizePending) {
+            int cursorBottom = mTopOfScreenMargin + (cy - mTopRow + 1) * mCharacterHeight;
+            shift = Math.max(0, cursorBottom - mVisibleHeight);
+            clip.offset(0, shift);
+        }
+
+        // Only draw the rows which intersect the area being redrawn
+        int firstLine = mTopRow + Math.max(0, (clip.top - mTopOfScreenMargin) / mCharacterHeight);
+        int endLine = mTopRow + Math.min(mRows,
+                Math.max(0, (clip.bottom - mTopOfScreenMargin + mCharacterHeight - 1) / mCharacterHeight));
         float x = -mLeftColumn * mCharacterWidth;
-        float y = mCharacterHeight + mTopOfScreenMargin;
-        int endLine = mTopRow + mRows;
-        int cx = mEmulator.getCursorCol();
-        int cy = mEmulator.getCursorRow();
-        boolean cursorVisible = mCursorVisible && mEmulator.getShowCursor();
+        float y = mCharacterHeight + mTopOfScreenMargin + (firstLine - mTopRow) * mCharacterHeight - shift;
         String effectiveImeBuffer = mImeBuffer;
         int combiningAccent = mKeyListener.getCombiningAccent();
         if (combiningAccent != 0) {
@@ -2364,7 +2636,15 @@ protected void onDraw(Canvas canvas) {
             ((AppCompatActivity) this.getContext()).onKeyUp(EscCmd.VKEYCODE_1364, null);
         }
 
-        for (int i = mTopRow; i < endLine; i++) {
+        TranscriptSearch search = mSearch;
+        long scrolledRows = 0;
+        if (search != null) {
+            synchronized (mTermSession.getEmulatorLock()) {
+                scrolledRows = screen.getScrolledRows();
+            }
+        }
+
+        for (int i = firstLine; i < endLine; i++) {
             int cursorX = -1;
             if (i == cy && cursorVisible) {
                 cursorX = cx;
@@ -2381,9 +2661,78 @@ protected void onDraw(Canvas canvas) {
                     selx2 = mColumns;
                 }
             }
-            mEmulator.getScreen().drawText(i, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, effectiveImeBuffer, cursorStyle, mImeSpannableString);
+            // Rows with the cursor or a selection on them aren't cached
+            boolean cacheRow = mRowCache != null
+                    && cursorX == -1 && selx1 == -1 && selx2 == -1;
+            if (snapshot == null) {
+                drawScreenRow(canvas, screen, i, x, y, cursorX, selx1, selx2,
+                        effectiveImeBuffer, cursorStyle, cacheRow, backgroundPaint.getColor(), reverseVideo);
+            } else if (cacheRow) {
+                mRowCache.drawRow(canvas, x, y, screen, mTextRenderer,
+                        snapshot.getLine(i), snapshot.getLineColor(i),
+                        snapshot.getDefaultStyle(), snapshot.getColumns(),
+                        backgroundPaint.getColor(), reverseVideo);
+            } else {
+                snapshot.drawText(i, screen, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, effectiveImeBuffer, cursorStyle, mImeSpannableString);
+            }
+            if (search != null) {
+                drawMatches(canvas, search, screen, scrolledRows + i, x, y);
+            }
             y += mCharacterHeight;
         }
+
+        if (EmulatorDebug.LOG_FRAME_TIMES) {
+            recordFrameTime(System.nanoTime() - drawStart);
+        }
+    }
+
+    private void drawScreenRow(Canvas canvas, TranscriptScreen screen, int row,
+            float x, float y, int cursorX, int selx1, int selx2,
+            String imeBuffer, int cursorStyle, boolean cacheRow, int backColor,
+            boolean reverseVideo) {
+        if (cacheRow) {
+            mRowCache.drawRow(canvas, x, y, screen, mTextRenderer,
+                    screen.getScriptLine(row), screen.getScriptLineColor(row),
+                    screen.getDefaultStyle(), screen.getColumns(), backColor,
+                    reverseVideo);
+        } else {
+            screen.drawText(row, canvas, x, y, mTextRenderer, cursorX, selx1, selx2, imeBuffer, cursorStyle, mImeSpannableString);
+        }
+    }
+
+    /**
+     * Shade the matches of the search on a row over the text already drawn.
+     */
+    private void drawMatches(Canvas canvas, TranscriptSearch search,
+            TranscriptScreen screen, long row, float x, float y) {
+        GrowableIntArray highlights = mHighlights;
+        search.getHighlights(screen, row, mColumns, highlights);
+        float top = y - mCharacterHeight;
+        for (int j = 0; j < highlights.length(); j += 3) {
+            Paint paint = highlights.at(j + 2) != 0 ? mCurrentMatchPaint : mMatchPaint;
+            canvas.drawRect(x + highlights.at(j) * mCharacterWidth, top,
+                    x + highlights.at(j + 1) * mCharacterWidth, y, paint);
+        }
+    }
+
+    private void recordFrameTime(long nanos) {
+        mFrameTimeTotal += nanos;
+        mFrameTimeMax = Math.max(mFrameTimeMax, nanos);
+        if (++mFrameCount < FRAME_STATS_INTERVAL) {
+            return;
+        }
+        String cacheStats = "off";
+        if (mRowCache != null) {
+            cacheStats = mRowCache.getHits() + " hits, " + mRowCache.getMisses() + " misses";
+            mRowCache.resetStats();
+        }
+        Log.d(EmulatorDebug.LOG_TAG, mTextRenderer.getClass().getSimpleName()
+                + " onDraw: avg " + (mFrameTimeTotal / mFrameCount / 1000)
+                + " us, max " + (mFrameTimeMax / 1000) + " us over "
+                + mFrameCount + " frames; row cache " + cacheStats);
+        mFrameCount = 0;
+        mFrameTimeTotal = 0;
+        mFrameTimeMax = 0;
     }
 
     private void ensureCursorVisible() {
@@ -2420,13 +2769,113 @@ public boolean getSelectingText() {
         return mIsSelectingText;
     }
 
+    /**
+     * Start searching the transcript, replacing any search already in
+     * progress.  Matches are highlighted as they are found, newest first,
+     * and kept up to date as more output arrives.
+     *
+     * @param query The text to search for.
+     * @param regex Whether the query is a regular expression rather than
+     *        literal text.
+     * @param ignoreCase Whether to ignore case when matching.
+     * @param callback Called on the UI thread as matches are found.
+     * @throws java.util.regex.PatternSyntaxException If the regular
+     *         expression isn't valid.
+     */
+    public void startSearch(String query, boolean regex, boolean ignoreCase,
+            final SearchCallback callback) {
+        int flags = ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0;
+        Pattern pattern = Pattern.compile(regex ? query : Pattern.quote(query), flags);
+        stopSearch();
+        if (mTermSession == null) {
+            return;
+        }
+        mMatchPaint.setColor(0x66ffff00);
+        mCurrentMatchPaint.setColor(0xaaff8000);
+        mSearch = new TranscriptSearch(mTermSession, pattern, new SearchCallback() {
+            public void onSearchUpdate(int matches, boolean done) {
+                invalidate();
+                if (callback != null) {
+                    callback.onSearchUpdate(matches, done);
+                }
+            }
+        }, mHandler);
+        mSearch.start();
+    }
+
+    /**
+     * Stop the search started by {@link #startSearch}, if any, and remove
+     * its highlights.
+     */
+    public void stopSearch() {
+        if (mSearch == null) {
+            return;
+        }
+        mSearch.stop();
+        mSearch = null;
+        invalidate();
+    }
+
+    /**
+     * Get the number of matches the current search has found so far.
+     */
+    public int getSearchMatchCount() {
+        return mSearch != null ? mSearch.getMatchCount() : 0;
+    }
+
+    /**
+     * Scroll to the match of the current search after the one last shown,
+     * or the newest match if none was shown yet.
+     *
+     * @return Whether there was a match to show.
+     */
+    public boolean findNext() {
+        return showMatch(1);
+    }
+
+    /**
+     * Scroll to the match of the current search before the one last shown,
+     * or the newest match if none was shown yet.
+     *
+     * @return Whether there was a match to show.
+     */
+    public boolean findPrevious() {
+        return showMatch(-1);
+    }
+
+    private boolean showMatch(int direction) {
+        if (mSearch == null || mEmulator == null) {
+            return false;
+        }
+        TranscriptSearch.Match match = mSearch.select(direction);
+        if (match == null) {
+            return false;
+        }
+        long scrolledRows;
+        int transcriptRows;
+        synchronized (mTermSession.getEmulatorLock()) {
+            TranscriptScreen screen = mEmulator.getScreen();
+            scrolledRows = screen.getScrolledRows();
+            transcriptRows = screen.getActiveTranscriptRows();
+        }
+        long row = match.mStartRow - scrolledRows;
+        if (row < mTopRow || row >= mTopRow + mRows) {
+            long top = row - mRows / 2;
+            mTopRow = (int) Math.min(0, Math.max(-transcriptRows, top));
+        }
+        invalidate();
+        return true;
+    }
+
     /**
      * Get selected text.
      *
      * @return A {@link String} with the selected text.
      */
     public String getSelectedText() {
-        return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        synchronized (mTermSession.getEmulatorLock()) {
+            return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        }
     }
 
     /**
@@ -2490,6 +2939,27 @@ static public void setForceFlush(boolean flush) {
         TranscriptScreen.setForceFlush(chr);
     }
 
+    /**
+     * Whether sessions started from now on keep their scrollback packed to
+     * save memory.  On by default.
+     */
+    static public void setCompactScrollback(boolean compact) {
+        UnicodeTranscript.setCompactScrollback(compact);
+    }
+
+    /**
+     * Keep up to maxRows rows which scroll out of the transcript of sessions
+     * started from now on in a compressed cold tier, spilling the oldest
+     * ones to a file in spillDir once they take too much memory.
+     *
+     * @param maxRows The number of rows to keep, or 0 to keep none.
+     * @param spillDir The directory for the spill files, or null to keep
+     *        the cold tier in memory only.
+     */
+    static public void setColdScrollback(int maxRows, File spillDir) {
+        ColdScrollback.configure(maxRows, spillDir);
+    }
+
     /**
      * Set the keycode corresponding to the Ctrl key.
      */
@@ -2519,24 +2989,30 @@ public String getTranscriptScreenText() {
         if (mEmulator == null) return null;
         TranscriptScreen ts = mEmulator.getScreen();
         if (ts == null) return null;
-        return ts.getTranscriptScreenText();
+        synchronized (mTermSession.getEmulatorLock()) {
+            return ts.getTranscriptScreenText();
+        }
     }
 
     public String getTranscriptText() {
         if (mEmulator == null) return null;
         TranscriptScreen ts = mEmulator.getScreen();
         if (ts == null) return null;
-        return ts.getTranscriptText();
+        synchronized (mTermSession.getEmulatorLock()) {
+            return ts.getTranscriptText();
+        }
     }
 
     public String getTranscriptCurrentText() {
         if (mEmulator == null) return null;
         TranscriptScreen ts = mEmulator.getScreen();
         if (ts == null) return null;
-        String str = ts.getSelectedText(0, mTopRow, mVisibleColumns, mTopRow);
-        for (int i = mTopRow + 1; i < mVisibleRows + mTopRow; i++) {
-            str = str + "\n" + ts.getSelectedText(0, i, mVisibleColumns, i);
+        synchronized (mTermSession.getEmulatorLock()) {
+            String str = ts.getSelectedText(0, mTopRow, mVisibleColumns, mTopRow);
+            for (int i = mTopRow + 1; i < mVisibleRows + mTopRow; i++) {
+                str = str + "\n" + ts.getSelectedText(0, i, mVisibleColumns, i);
+            }
+            return str;
         }
-        return str;
     }
 }
@@ -16,6 +16,10 @@ void append(int i) {
         mData[mLength++] = i;
     }
 
+    void clear() {
+        mLength = 0;
+    }
+
     int length() {
         return mLength;
     }
@@ -95,7 +95,8 @@ public void drawTextRun(Canvas canvas, float x, float y, int lineOffset,
         }
 
         float left = x + lineOffset * mCharWidth;
-        float textWidth = mTextPaint.measureText(new String(text));
+        // Cells are a fixed width, so there's no need to measure the text
+        float textWidth = runWidth * mCharWidth;
         canvas.drawRect(left, y + mCharAscent - mCharDescent - mTextLeading,
                 left + textWidth, y,
                 mTextPaint);
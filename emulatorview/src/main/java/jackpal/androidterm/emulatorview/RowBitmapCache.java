@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.util.LruCache;
+
+/**
+ * A cache of rendered rows of text, so that rows which show up again
+ * unchanged -- a static screen being repainted, or the scrollback being
+ * scrolled through -- can be drawn with a single bitmap blit instead of a
+ * series of styled text runs.
+ * <p>
+ * Rows are keyed by their contents and styles, so it doesn't matter where
+ * in the transcript a row is.  Rows with the cursor, the selection or IME
+ * text on them change too often to be worth caching and are drawn directly.
+ * The least recently drawn rows are evicted once the bitmaps exceed the
+ * memory budget.
+ * <p>
+ * The cache must be {@link #clear cleared} whenever anything else which
+ * affects the rendering changes: the renderer, font or color scheme.
+ */
+final class RowBitmapCache {
+    /**
+     * The contents of a row.  Keys stored in the cache own their arrays;
+     * the probe key used for lookups just points at the row being drawn.
+     */
+    private static final class RowKey {
+        char[] mChars;
+        int mLength;
+        int[] mStyles;
+        int mColumns;
+        boolean mReverseVideo;
+        int mHash;
+
+        void set(char[] chars, int length, int[] styles, int columns,
+                boolean reverseVideo) {
+            mChars = chars;
+            mLength = length;
+            mStyles = styles;
+            mColumns = columns;
+            mReverseVideo = reverseVideo;
+            int hash = reverseVideo ? 1 : 0;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + chars[i];
+            }
+            for (int i = 0; i < columns; i++) {
+                hash = 31 * hash + styles[i];
+            }
+            mHash = hash;
+        }
+
+        RowKey freeze() {
+            RowKey key = new RowKey();
+            key.mChars = Arrays.copyOf(mChars, mLength);
+            key.mLength = mLength;
+            key.mStyles = Arrays.copyOf(mStyles, mColumns);
+            key.mColumns = mColumns;
+            key.mReverseVideo = mReverseVideo;
+            key.mHash = mHash;
+            return key;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RowKey)) {
+                return false;
+            }
+            RowKey other = (RowKey) o;
+            if (mHash != other.mHash || mLength != other.mLength
+                    || mColumns != other.mColumns
+                    || mReverseVideo != other.mReverseVideo) {
+                return false;
+            }
+            for (int i = 0; i < mLength; i++) {
+                if (mChars[i] != other.mChars[i]) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < mColumns; i++) {
+                if (mStyles[i] != other.mStyles[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final LruCache<RowKey, Bitmap> mCache;
+    private final RowKey mProbe = new RowKey();
+    private int[] mStyles = new int[0];
+    private final Canvas mRowCanvas = new Canvas();
+
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * @param maxBytes The most memory the cached bitmaps may take up.
+     */
+    RowBitmapCache(int maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        mCache = new LruCache<RowKey, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(RowKey key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Draw a row of text through the cache.  The row must not carry the
+     * cursor, a selection or IME text.
+     *
+     * @param canvas The canvas to draw to.
+     * @param x The x coordinate of the left edge of the row.
+     * @param y The y coordinate of the bottom edge of the row.
+     * @param screen The screen whose drawing code renders the row on a miss.
+     * @param renderer The renderer to use on a miss.
+     * @param line The characters of the row, or null if the row is blank.
+     * @param color The styles of the row.
+     * @param defaultStyle The style used for blank cells.
+     * @param columns The width of the row, in columns.
+     * @param backColor The background color of the view.
+     * @param reverseVideo Whether the screen is in reverse video mode.
+     */
+    void drawRow(Canvas canvas, float x, float y, TranscriptScreen screen,
+            TextRenderer renderer, char[] line, StyleRow color,
+            int defaultStyle, int columns, int backColor,
+            boolean reverseVideo) {
+        if (line == null || color == null) {
+            // Blank rows are just background
+            return;
+        }
+
+        int length = 0;
+        while (length < line.length && line[length] != 0) {
+            ++length;
+        }
+        if (mStyles.length < columns) {
+            mStyles = new int[columns];
+        }
+        int[] styles = mStyles;
+        for (int i = 0; i < columns; i++) {
+            styles[i] = color.get(i);
+        }
+        RowKey probe = mProbe;
+        probe.set(line, length, styles, columns, reverseVideo);
+
+        int height = renderer.getCharacterHeight();
+        Bitmap bitmap = mCache.get(probe);
+        if (bitmap == null) {
+            ++mMisses;
+            int width = (int) Math.ceil(columns * renderer.getCharacterWidth());
+            bitmap = Bitmap.createBitmap(Math.max(1, width), Math.max(1, height),
+                    Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(backColor);
+            Canvas rowCanvas = mRowCanvas;
+            rowCanvas.setBitmap(bitmap);
+            screen.drawText(line, color, defaultStyle, columns, rowCanvas,
+                    0, height, renderer, -1, -1, -1, "", 0, null);
+            rowCanvas.setBitmap(null);
+            mCache.put(probe.freeze(), bitmap);
+        } else {
+            ++mHits;
+        }
+        canvas.drawBitmap(bitmap, x, y - height, null);
+    }
+
+    /**
+     * Forget all cached rows.
+     */
+    void clear() {
+        mCache.evictAll();
+    }
+
+    int getHits() {
+        return mHits;
+    }
+
+    int getMisses() {
+        return mMisses;
+    }
+
+    void resetStats() {
+        mHits = 0;
+        mMisses = 0;
+    }
+}
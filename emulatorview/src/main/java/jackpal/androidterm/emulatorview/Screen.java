@@ -49,6 +49,19 @@ interface Screen {
      */
     void set(int x, int y, byte b, int style);
 
+    /**
+     * Store a run of ASCII characters into the screen, starting at location
+     * (x, y) and continuing to the right on the same row.
+     *
+     * @param x X coordinate of the first character (also known as column)
+     * @param y Y coordinate (also known as row)
+     * @param buffer Array containing the ASCII characters to store
+     * @param offset Index of the first character in the array
+     * @param count Number of characters to store; must fit within the row
+     * @param style the text style
+     */
+    void set(int x, int y, byte[] buffer, int offset, int count, int style);
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
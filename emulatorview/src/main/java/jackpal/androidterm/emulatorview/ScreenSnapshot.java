@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.util.BitSet;
+
+import android.graphics.Canvas;
+import android.text.SpannableString;
+
+/**
+ * An immutable copy of the screen rows of a {@link TranscriptScreen}, and of
+ * the scrollback rows above them which the view shows, together with the
+ * emulator state needed to draw them.
+ * <p>
+ * When a {@link TermSession} runs its emulator on a separate thread, that
+ * thread takes a snapshot after each batch of input and hands it to the UI
+ * thread, which can then draw the screen without waiting for the emulator.
+ * Rows which did not change since the previous snapshot share their storage
+ * with it, which lets {@link #collectDirtyRows} tell what changed between any
+ * two snapshots of the same screen.
+ * <p>
+ * Rows are numbered as in the transcript: the screen is rows 0 up to
+ * {@link #getRows}, and the captured scrollback rows {@link #getFirstRow}
+ * up to 0.
+ */
+final class ScreenSnapshot {
+    private final int mColumns;
+    private final int mRows;
+    private final int mFirstRow;
+    private final char[][] mLines;
+    private final StyleRow[] mColors;
+    private final int mDefaultStyle;
+    private final int mCursorCol;
+    private final int mCursorRow;
+    private final boolean mShowCursor;
+    private final boolean mReverseVideo;
+
+    private ScreenSnapshot(TerminalEmulator emulator, TranscriptScreen screen,
+            int firstRow, ScreenSnapshot previous) {
+        int columns = screen.getColumns();
+        int rows = screen.getScreenRows();
+        mColumns = columns;
+        mRows = rows;
+        mFirstRow = firstRow;
+        mLines = new char[rows - firstRow][];
+        mColors = new StyleRow[rows - firstRow];
+        mDefaultStyle = screen.getDefaultStyle();
+        mCursorCol = emulator.getCursorCol();
+        mCursorRow = emulator.getCursorRow();
+        mShowCursor = emulator.getShowCursor();
+        mReverseVideo = emulator.getReverseVideo();
+
+        boolean comparable = previous != null
+                && previous.mColumns == columns
+                && previous.mRows == rows
+                && previous.mDefaultStyle == mDefaultStyle
+                && previous.mReverseVideo == mReverseVideo;
+
+        // Scrollback rows which don't exist (yet) are left blank
+        int oldest = Math.max(firstRow, -screen.getActiveTranscriptRows());
+        for (int row = oldest; row < rows; row++) {
+            int index = row - firstRow;
+            char[] line = screen.getScriptLine(row);
+            StyleRow color = screen.getScriptLineColor(row);
+            int length = line == null ? 0 : lineLength(line);
+            if (comparable && row >= previous.mFirstRow) {
+                int oldIndex = row - previous.mFirstRow;
+                if (sameLine(previous.mLines[oldIndex], line, length)
+                        && sameColor(previous.mColors[oldIndex], color)) {
+                    mLines[index] = previous.mLines[oldIndex];
+                    mColors[index] = previous.mColors[oldIndex];
+                    continue;
+                }
+            }
+            if (line != null) {
+                char[] copy = new char[length];
+                System.arraycopy(line, 0, copy, 0, length);
+                mLines[index] = copy;
+            }
+            if (color != null) {
+                mColors[index] = color.duplicate();
+            }
+        }
+    }
+
+    /**
+     * Take a snapshot of the emulator's current screen, which is the
+     * alternate screen while a program uses it.  The caller must hold the
+     * session's emulator lock.
+     *
+     * @param firstRow The first scrollback row to capture, 0 or less.
+     * @param previous The last snapshot taken, or null.
+     */
+    static ScreenSnapshot capture(TerminalEmulator emulator, int firstRow,
+            ScreenSnapshot previous) {
+        return new ScreenSnapshot(emulator, emulator.getScreen(), firstRow, previous);
+    }
+
+    private static int lineLength(char[] line) {
+        int length = 0;
+        while (length < line.length && line[length] != 0) {
+            ++length;
+        }
+        return length;
+    }
+
+    private static boolean sameLine(char[] old, char[] line, int length) {
+        if (old == null || line == null) {
+            return old == line;
+        }
+        if (old.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (old[i] != line[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameColor(StyleRow old, StyleRow color) {
+        if (old == null || color == null) {
+            return old == color;
+        }
+        return old.sameStyles(color);
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
+    int getRows() {
+        return mRows;
+    }
+
+    /**
+     * @return The oldest scrollback row captured, or 0 if none was.
+     */
+    int getFirstRow() {
+        return mFirstRow;
+    }
+
+    /**
+     * @return The characters of a row, or null if the row is blank or was
+     *         not captured.
+     */
+    char[] getLine(int row) {
+        return row >= mFirstRow && row < mRows ? mLines[row - mFirstRow] : null;
+    }
+
+    StyleRow getLineColor(int row) {
+        return row >= mFirstRow && row < mRows ? mColors[row - mFirstRow] : null;
+    }
+
+    int getDefaultStyle() {
+        return mDefaultStyle;
+    }
+
+    int getCursorCol() {
+        return mCursorCol;
+    }
+
+    int getCursorRow() {
+        return mCursorRow;
+    }
+
+    boolean getShowCursor() {
+        return mShowCursor;
+    }
+
+    boolean getReverseVideo() {
+        return mReverseVideo;
+    }
+
+    /**
+     * Find the screen rows which differ between this snapshot and an older
+     * one, including the rows the cursor left and entered.  If there is no
+     * older snapshot, or the screen was resized in between, every row is
+     * dirty.
+     *
+     * @param since The older snapshot, or null.
+     * @param rows The set to which the changed screen rows are added.
+     * @return Whether any scrollback row captured by both differs too.
+     */
+    boolean collectDirtyRows(ScreenSnapshot since, BitSet rows) {
+        if (since == this) {
+            return false;
+        }
+        if (since == null || since.mColumns != mColumns || since.mRows != mRows) {
+            rows.set(0, mRows);
+            return mFirstRow < 0;
+        }
+        boolean scrollbackChanged = false;
+        for (int row = Math.max(mFirstRow, since.mFirstRow); row < mRows; row++) {
+            int index = row - mFirstRow;
+            int oldIndex = row - since.mFirstRow;
+            if (mLines[index] != since.mLines[oldIndex]
+                    || mColors[index] != since.mColors[oldIndex]) {
+                if (row < 0) {
+                    scrollbackChanged = true;
+                } else {
+                    rows.set(row);
+                }
+            }
+        }
+        if (since.mCursorCol != mCursorCol || since.mCursorRow != mCursorRow
+                || since.mShowCursor != mShowCursor) {
+            if (since.mCursorRow >= 0 && since.mCursorRow < mRows) {
+                rows.set(since.mCursorRow);
+            }
+            if (mCursorRow >= 0 && mCursorRow < mRows) {
+                rows.set(mCursorRow);
+            }
+        }
+        return scrollbackChanged;
+    }
+
+    /**
+     * Draw one row of the snapshot.
+     *
+     * @param screen A screen of the session; only its drawing code is used,
+     *               not its contents.
+     * @see TranscriptScreen#drawText(int, Canvas, float, float, TextRenderer, int, int, int, String, int, SpannableString)
+     */
+    void drawText(int row, TranscriptScreen screen, Canvas canvas, float x,
+            float y, TextRenderer renderer, int curx, int selx1, int selx2,
+            String imeText, int cursorMode, SpannableString imeSpannableString) {
+        if (row < mFirstRow || row >= mRows) {
+            return;
+        }
+        int index = row - mFirstRow;
+        screen.drawText(mLines[index], mColors[index], mDefaultStyle, mColumns,
+                canvas, x, y, renderer, curx, selx1, selx2, imeText,
+                cursorMode, imeSpannableString);
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * Callback to be invoked on the main thread as a search of the transcript
+ * started with {@link EmulatorView#startSearch} finds matches.
+ */
+public interface SearchCallback {
+    /**
+     * Callback function to be invoked when the matches found so far change.
+     *
+     * @param matches The number of matches found so far.
+     * @param done Whether the whole transcript has been searched.  Matches
+     *        can still change afterwards, as new output arrives.
+     */
+    void onSearchUpdate(int matches, boolean done);
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Vector;
+
+/**
+ * Records the output of a session's process to log files on disk.
+ * <p>
+ * Attach a logger with {@link TermSession#setLogger}.  The session hands
+ * each read from the process to the logger, which copies it into a bounded
+ * queue; a thread of the logger's own writes the queue out to disk, so the
+ * emulator never waits on the disk.  If the disk can't keep up and the queue
+ * fills, the logger either drops data (the default) or holds up the
+ * session's reader thread until there is room, which in turn holds up the
+ * process once the pty's own buffer fills.
+ * <p>
+ * A session whose I/O is done by a {@link TermSession.IOListener} has no
+ * reader thread of its own: its reads are done on a thread the listener may
+ * share between sessions.  Holding up that thread would stall every session
+ * on it, so such a session's output is always dropped, and counted in
+ * {@link #getBytesDropped}, when the queue is full.
+ * <p>
+ * When a log file reaches its size limit it is renamed, with ".1" appended
+ * (an older ".1" file becoming ".2", and so on), and a new one started; the
+ * oldest file is deleted once the limit on the number of files is reached.
+ * {@link #openReplay} reads a set of log files back, to be fed to a session
+ * with {@link TermSession#setTermIn}, so that the output can be replayed
+ * through the emulator.
+ */
+public class SessionLogger {
+    /**
+     * Log files hold the bytes read from the process, exactly as they were
+     * read.
+     */
+    public static final int FORMAT_RAW = 0;
+
+    /**
+     * Log files hold a sequence of records, each of which is the time of a
+     * read in ms since the epoch, as a big-endian long, the number of bytes
+     * read, as a big-endian int, and the bytes read.  A record with a
+     * negative length and no data notes that that many bytes were dropped.
+     */
+    public static final int FORMAT_TIMESTAMPED = 1;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int DEFAULT_QUEUE_SIZE = 256 * 1024;
+    private static final long DEFAULT_MAX_FILE_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_MAX_FILES = 4;
+
+    /** The longest pause a real time replay makes between two reads */
+    private static final long MAX_REPLAY_DELAY = 1000;
+
+    private final File mFile;
+    private final int mFormat;
+    private final long mMaxFileSize;
+    private final int mMaxFiles;
+    private final boolean mBlockWhenFull;
+    private final ByteQueue mQueue;
+    private final Thread mWriterThread;
+    private volatile boolean mClosed;
+
+    // Only used by the thread logging data
+    private final byte[] mHeader = new byte[HEADER_SIZE];
+    private long mUnrecordedDrops;
+    private volatile long mBytesLogged;
+    private volatile long mBytesDropped;
+
+    // Only used by the writer thread
+    private OutputStream mOut;
+    private long mFileSize;
+    private final byte[] mRecordHeader = new byte[HEADER_SIZE];
+    private int mHeaderRead;
+    private int mRecordLeft;
+
+    /**
+     * Start logging to a file, with the default limits: a 256 KB queue, and
+     * at most 4 files of 4 MB each.  Data is dropped if the queue is full.
+     *
+     * @param file The log file.  Any existing file is overwritten.
+     * @param format {@link #FORMAT_RAW} or {@link #FORMAT_TIMESTAMPED}.
+     */
+    public SessionLogger(File file, int format) throws IOException {
+        this(file, format, DEFAULT_QUEUE_SIZE, DEFAULT_MAX_FILE_SIZE,
+                DEFAULT_MAX_FILES, false);
+    }
+
+    /**
+     * Start logging to a file.
+     *
+     * @param file The log file.  Any existing file is overwritten.
+     * @param format {@link #FORMAT_RAW} or {@link #FORMAT_TIMESTAMPED}.
+     * @param queueSize The capacity of the queue between the session and the
+     *        disk, in bytes.
+     * @param maxFileSize The size at which a log file is rotated, in bytes.
+     * @param maxFiles The number of files kept, including the current one.
+     * @param blockWhenFull Whether the session's reader thread waits for
+     *        room in the queue when it is full, rather than dropping data.
+     *        Reads done through an {@link TermSession.IOListener} never
+     *        wait.
+     */
+    public SessionLogger(File file, int format, int queueSize, long maxFileSize,
+            int maxFiles, boolean blockWhenFull) throws IOException {
+        if (format != FORMAT_RAW && format != FORMAT_TIMESTAMPED) {
+            throw new IllegalArgumentException("format: " + format);
+        }
+        if (queueSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("queueSize: " + queueSize);
+        }
+        if (maxFileSize <= 0) {
+            throw new IllegalArgumentException("maxFileSize: " + maxFileSize);
+        }
+        if (maxFiles <= 0) {
+            throw new IllegalArgumentException("maxFiles: " + maxFiles);
+        }
+        mFile = file;
+        mFormat = format;
+        mMaxFileSize = maxFileSize;
+        mMaxFiles = maxFiles;
+        mBlockWhenFull = blockWhenFull;
+        mQueue = new ByteQueue(queueSize);
+        mOut = new BufferedOutputStream(new FileOutputStream(file));
+
+        mWriterThread = new Thread() {
+            @Override
+            public void run() {
+                writeQueue();
+            }
+        };
+        mWriterThread.setName("TermSession logger");
+        mWriterThread.start();
+    }
+
+    /**
+     * @return The number of bytes of output put in the queue so far.
+     */
+    public long getBytesLogged() {
+        return mBytesLogged;
+    }
+
+    /**
+     * @return The number of bytes of output dropped so far because the queue
+     *         was full.
+     */
+    public long getBytesDropped() {
+        return mBytesDropped;
+    }
+
+    /**
+     * Stop logging.  What is already in the queue is still written out, and
+     * the log file closed, by the logger's thread.
+     */
+    public void close() {
+        mClosed = true;
+        mWriterThread.interrupt();
+    }
+
+    /**
+     * Log output from the process.  Only called from one thread at a time.
+     *
+     * @param mayBlock Whether the calling thread may wait for room in the
+     *        queue, if the logger was asked to; false for a thread which
+     *        other sessions depend on.
+     */
+    void log(byte[] data, int offset, int count, boolean mayBlock) {
+        if (mClosed || count <= 0) {
+            return;
+        }
+        boolean block = mBlockWhenFull && mayBlock;
+        ByteQueue queue = mQueue;
+        try {
+            if (mFormat == FORMAT_RAW) {
+                if (!block && queue.getFreeSpace() < count) {
+                    drop(count);
+                    return;
+                }
+                put(data, offset, count);
+                mBytesLogged += count;
+                return;
+            }
+
+            long time = System.currentTimeMillis();
+            if (mUnrecordedDrops > 0 && queue.getFreeSpace() >= HEADER_SIZE) {
+                putHeader(time, (int) -Math.min(mUnrecordedDrops, Integer.MAX_VALUE));
+                mUnrecordedDrops = 0;
+            }
+            int maxChunk = queue.getCapacity() - HEADER_SIZE;
+            while (count > 0) {
+                int chunk = Math.min(count, maxChunk);
+                if (!block && queue.getFreeSpace() < HEADER_SIZE + chunk) {
+                    drop(count);
+                    return;
+                }
+                putHeader(time, chunk);
+                put(data, offset, chunk);
+                mBytesLogged += chunk;
+                offset += chunk;
+                count -= chunk;
+            }
+        } catch (InterruptedException e) {
+            // Leave it to the caller to notice
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drop(int count) {
+        mBytesDropped += count;
+        mUnrecordedDrops += count;
+    }
+
+    private void putHeader(long time, int length) throws InterruptedException {
+        byte[] header = mHeader;
+        for (int i = 7; i >= 0; i--) {
+            header[i] = (byte) time;
+            time >>= 8;
+        }
+        for (int i = 11; i >= 8; i--) {
+            header[i] = (byte) length;
+            length >>= 8;
+        }
+        put(header, 0, HEADER_SIZE);
+    }
+
+    private void put(byte[] data, int offset, int count) throws InterruptedException {
+        // Once closed, nothing reads the queue any more
+        while (count > 0 && !mClosed) {
+            int written = mQueue.write(data, offset, count);
+            offset += written;
+            count -= written;
+        }
+    }
+
+    private void writeQueue() {
+        ByteQueue queue = mQueue;
+        byte[] buffer = new byte[8192];
+        try {
+            try {
+                while (!mClosed) {
+                    if (queue.getBytesAvailable() == 0) {
+                        // Idle -- get what we have onto the disk
+                        mOut.flush();
+                    }
+                    int read = queue.read(buffer, 0, buffer.length);
+                    writeOut(buffer, read);
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            }
+            // Write out whatever was queued before we were closed
+            int available;
+            while ((available = queue.getBytesAvailable()) > 0) {
+                int read = queue.read(buffer, 0, Math.min(available, buffer.length));
+                writeOut(buffer, read);
+            }
+        } catch (IOException e) {
+            Log.e(EmulatorDebug.LOG_TAG, "Session log " + mFile + ": " + e);
+        } catch (InterruptedException e) {
+            // Only read what was available; can't happen
+        } finally {
+            mClosed = true;
+            // If writing failed, the queue may be full, with the session's
+            // thread waiting for room in put(); empty it so that thread wakes
+            // up and sees that we're closed
+            discardQueue(buffer);
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // We don't care if this fails
+            }
+        }
+    }
+
+    private void discardQueue(byte[] buffer) {
+        ByteQueue queue = mQueue;
+        try {
+            int available;
+            while ((available = queue.getBytesAvailable()) > 0) {
+                queue.read(buffer, 0, Math.min(available, buffer.length));
+            }
+        } catch (InterruptedException e) {
+            // Only read what was available; can't happen
+        }
+    }
+
+    /**
+     * Write data taken from the queue to the log file, rotating the file
+     * when it is full.  Timestamped logs are only rotated between records,
+     * so that each file can be read on its own.
+     */
+    private void writeOut(byte[] buffer, int count) throws IOException {
+        if (mFormat == FORMAT_RAW) {
+            if (mFileSize >= mMaxFileSize) {
+                rotate();
+            }
+            mOut.write(buffer, 0, count);
+            mFileSize += count;
+            return;
+        }
+
+        int start = 0;
+        int i = 0;
+        while (i < count) {
+            if (mRecordLeft == 0 && mHeaderRead == 0
+                    && mFileSize + (i - start) >= mMaxFileSize) {
+                mOut.write(buffer, start, i - start);
+                start = i;
+                rotate();
+            }
+            if (mRecordLeft > 0) {
+                int n = Math.min(mRecordLeft, count - i);
+                mRecordLeft -= n;
+                i += n;
+            } else {
+                mRecordHeader[mHeaderRead++] = buffer[i++];
+                if (mHeaderRead == HEADER_SIZE) {
+                    byte[] header = mRecordHeader;
+                    int length = ((header[8] & 0xff) << 24) | ((header[9] & 0xff) << 16)
+                            | ((header[10] & 0xff) << 8) | (header[11] & 0xff);
+                    mRecordLeft = Math.max(length, 0);
+                    mHeaderRead = 0;
+                }
+            }
+        }
+        mOut.write(buffer, start, count - start);
+        mFileSize += count - start;
+    }
+
+    private void rotate() throws IOException {
+        mOut.close();
+        String path = mFile.getPath();
+        File oldest = new File(path + "." + (mMaxFiles - 1));
+        if (mMaxFiles == 1) {
+            oldest = mFile;
+        }
+        oldest.delete();
+        for (int i = mMaxFiles - 2; i >= 0; i--) {
+            File from = i == 0 ? mFile : new File(path + "." + i);
+            if (from.exists()) {
+                from.renameTo(new File(path + "." + (i + 1)));
+            }
+        }
+        mOut = new BufferedOutputStream(new FileOutputStream(mFile));
+        mFileSize = 0;
+    }
+
+    /**
+     * Open a set of log files for replay, oldest first.  The stream reads
+     * the output of the process as it was logged, without timestamps, so it
+     * can be given to a session with {@link TermSession#setTermIn}.
+     *
+     * @param file The current log file, as given to the logger.
+     * @param format The format the files were written in.
+     * @param realTime Whether to pause between reads as long as the process
+     *        paused between writes (but no more than a second), for
+     *        timestamped logs.
+     */
+    public static InputStream openReplay(File file, int format, boolean realTime)
+            throws IOException {
+        Vector<InputStream> files = new Vector<InputStream>();
+        String path = file.getPath();
+        int count = 1;
+        while (new File(path + "." + count).exists()) {
+            count++;
+        }
+        try {
+            for (int i = count - 1; i >= 0; i--) {
+                File f = i == 0 ? file : new File(path + "." + i);
+                files.add(new FileInputStream(f));
+            }
+        } catch (IOException e) {
+            for (InputStream in : files) {
+                in.close();
+            }
+            throw e;
+        }
+        InputStream in = new BufferedInputStream(new SequenceInputStream(files.elements()));
+        if (format == FORMAT_TIMESTAMPED) {
+            in = new ReplayInputStream(in, realTime);
+        }
+        return in;
+    }
+
+    /**
+     * Strips the record headers from a timestamped log.
+     */
+    private static final class ReplayInputStream extends FilterInputStream {
+        private final DataInputStream mData;
+        private final boolean mRealTime;
+        private int mRecordLeft;
+        private long mLastTime = -1;
+
+        ReplayInputStream(InputStream in, boolean realTime) {
+            super(in);
+            mData = new DataInputStream(in);
+            mRealTime = realTime;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mRecordLeft == 0) {
+                long time;
+                int length;
+                try {
+                    time = mData.readLong();
+                    length = mData.readInt();
+                } catch (EOFException e) {
+                    return -1;
+                }
+                if (mRealTime && mLastTime >= 0 && time > mLastTime) {
+                    try {
+                        Thread.sleep(Math.min(time - mLastTime, MAX_REPLAY_DELAY));
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                mLastTime = time;
+                mRecordLeft = Math.max(length, 0);
+            }
+            int read = in.read(b, off, Math.min(len, mRecordLeft));
+            if (read > 0) {
+                mRecordLeft -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(in.available(), mRecordLeft);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
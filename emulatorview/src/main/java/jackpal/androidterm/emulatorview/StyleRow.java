@@ -32,6 +32,25 @@ void set(int column, int style) {
         setStyle(column, style);
     }
 
+    void set(int column, int count, int style) {
+        if (style == mStyle && mData == null) {
+            return;
+        }
+        ensureData();
+        for (int i = 0; i < count; i++) {
+            setStyle(column + i, style);
+        }
+    }
+
+    /**
+     * Make this a solid row in the given style, dropping any per-column
+     * styles.
+     */
+    void setSolidStyle(int style) {
+        mStyle = style;
+        mData = null;
+    }
+
     int get(int column) {
         if (mData == null) {
             return mStyle;
@@ -65,6 +84,35 @@ void copy(int start, StyleRow dst, int offset, int len) {
 
     }
 
+    /**
+     * Make an independent copy of this row.
+     */
+    StyleRow duplicate() {
+        StyleRow row = new StyleRow(mStyle, mColumns);
+        if (mData != null) {
+            row.mData = mData.clone();
+        }
+        return row;
+    }
+
+    /**
+     * Whether this row holds the same style for every column as another one.
+     */
+    boolean sameStyles(StyleRow other) {
+        if (other == null || other.mColumns != mColumns) {
+            return false;
+        }
+        if (mData == null && other.mData == null) {
+            return mStyle == other.mStyle;
+        }
+        for (int i = 0; i < mColumns; i++) {
+            if (get(i) != other.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     void ensureData() {
         if (mData == null) {
             allocate();
@@ -16,19 +16,28 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 /**
  * A terminal session, consisting of a VT100 terminal emulator and its
@@ -38,9 +47,12 @@
  * provide input and output to the terminal.  For a locally running
  * program, these would typically point to a tty; for a telnet program
  * they might point to a network socket.  Reader and writer threads will be
- * spawned to do I/O to these streams.  All other operations, including
+ * spawned to do I/O to these streams, unless an {@link IOListener} set with
+ * {@link #setIOListener} does the I/O instead.  All other operations, including
  * processing of input and output in {@link #processInput processInput} and
- * {@link #write(byte[], int, int) write}, will be performed on the main thread.
+ * {@link #write(byte[], int, int) write}, will be performed on the main thread,
+ * unless {@link #setEmulatorThreadEnabled} moves the processing of input to a
+ * thread of its own.
  * <p>
  * Call {@link #setTermIn} and {@link #setTermOut} to connect the input and
  * output streams to the emulator.  When all of your initialization is
@@ -77,13 +89,41 @@ public void setKeyListener(TermKeyListener l) {
     private boolean mDefaultUTF8Mode;
 
     private final Thread mReaderThread;
+    private volatile SessionLogger mLogger;
     private final ByteQueue mByteQueue;
-    private final byte[] mReceiveBuffer;
+    private int mReadSize;
+    // Input counters, only written by the thread reading from the process
+    private volatile long mInputBytes;
+    private volatile long mInputReads;
+    private volatile long mInputRate;
+    private volatile long mLastInputTime;
+    private long mRatePeriodStart;
+    private long mRatePeriodBytes;
+    private final AtomicBoolean mInputDrainPending = new AtomicBoolean();
+    private AppendStats mAppendStats;
+    private Handler mInputHandler;
+
+    private boolean mUseEmulatorThread;
+    private HandlerThread mEmulatorThread;
+    private final Object mEmulatorLock = new Object();
+    private volatile ScreenSnapshot mSnapshot;
+    // The oldest scrollback row the view shows, for snapshots to capture
+    private volatile int mSnapshotFirstRow;
 
     private final Thread mWriterThread;
     private final ByteQueue mWriteQueue;
     private Handler mWriterHandler;
 
+    private final boolean mExitOnEOF;
+    private IOListener mIOListener;
+    private final AtomicBoolean mInputSpaceWanted = new AtomicBoolean();
+    // Bytes put into and taken out of the write queue, for ordering pastes
+    // against writes when an IOListener takes the output
+    private long mBytesQueued;
+    private long mBytesTaken;
+    private final ArrayDeque<PendingPaste> mPendingPastes = new ArrayDeque<PendingPaste>();
+    private CharsetEncoder mTakeEncoder;
+
     private final CharBuffer mWriteCharBuffer;
     private final ByteBuffer mWriteByteBuffer;
     private final CharsetEncoder mUTF8Encoder;
@@ -91,10 +131,36 @@ public void setKeyListener(TermKeyListener l) {
     // Number of rows in the transcript
     private static final int TRANSCRIPT_ROWS = 10000;
 
+    // Default capacity of the output queue, in bytes
+    private static final int DEFAULT_QUEUE_SIZE = 4 * 1024;
+
+    // Default capacity of the input queue, in bytes, which bounds how much
+    // one read from the process can take
+    private static final int DEFAULT_INPUT_QUEUE_SIZE = 64 * 1024;
+
+    // Smallest size reads from the process are cut down to when the input
+    // comes in small pieces, as it does while typing
+    private static final int MIN_READ_SIZE = 4 * 1024;
+
+    // Period over which the input rate is measured
+    private static final long INPUT_RATE_PERIOD_MS = 1000;
+
+    // How long one drain of the input queue may keep the main thread busy
+    // before it yields to input events and drawing
+    private static final long INPUT_DRAIN_BUDGET_MS = 8;
+
     private static final int NEW_INPUT = 1;
     private static final int NEW_OUTPUT = 2;
     private static final int FINISH = 3;
     private static final int EOF = 4;
+    private static final int PASTE = 5;
+
+    // Size of the buffer pasted text is encoded into, and so of the writes
+    // it is written to the output in
+    private static final int PASTE_BUFFER_SIZE = 32 * 1024;
+
+    private static final String BRACKETED_PASTE_START = "\033[200~";
+    private static final String BRACKETED_PASTE_END = "\033[201~";
 
     /**
      * Callback to be invoked when a {@link TermSession} finishes.
@@ -111,7 +177,62 @@ public interface FinishCallback {
     }
     private FinishCallback mFinishCallback;
 
-    private boolean mIsRunning = false;
+    /**
+     * Does the I/O of a session in place of its reader and writer threads,
+     * so that one thread can serve the I/O of many sessions.  The listener
+     * reads from the process into {@link TermSession#receiveInput}, and
+     * writes what {@link TermSession#takeOutput} gives it to the process.
+     *
+     * @see TermSession#setIOListener
+     */
+    public interface IOListener {
+        /**
+         * Called when the input queue has room again, after {@link
+         * TermSession#getInputSpace} returned 0.  Called on the thread which
+         * processes input, so it shouldn't block.
+         *
+         * @param session The <code>TermSession</code> with room for input.
+         */
+        void onInputSpace(TermSession session);
+
+        /**
+         * Called when there's output to take with {@link
+         * TermSession#takeOutput}.  Called on the thread which wrote the
+         * output, often the main thread, so it shouldn't block.
+         *
+         * @param session The <code>TermSession</code> with output waiting.
+         */
+        void onOutputReady(TermSession session);
+    }
+
+    /**
+     * Reads from the process, for {@link TermSession#receiveInput(InputReader)}.
+     */
+    public interface InputReader {
+        /**
+         * Read bytes from the process, as {@link InputStream#read(byte[],
+         * int, int)} does, except that it may return 0 instead of blocking.
+         *
+         * @return The number of bytes read, 0 if there is nothing to read
+         *         now, or -1 at end of input.
+         */
+        int read(byte[] buffer, int offset, int count) throws IOException;
+    }
+
+    /* Text passed to paste() which an IOListener hasn't taken all of yet */
+    private static class PendingPaste {
+        final CharBuffer text;
+        /* Value of mBytesQueued when the text was pasted */
+        final long mark;
+        boolean encoded;
+
+        PendingPaste(String text, long mark) {
+            this.text = CharBuffer.wrap(text);
+            this.mark = mark;
+        }
+    }
+
+    private volatile boolean mIsRunning = false;
     private final Handler mMsgHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -131,6 +252,20 @@ public void run() {
         }
     };
 
+    private final Runnable mNotifyUpdate = new Runnable() {
+        @Override
+        public void run() {
+            notifyUpdate();
+        }
+    };
+
+    private final Runnable mNotifyTitleChanged = new Runnable() {
+        @Override
+        public void run() {
+            notifyTitleChanged();
+        }
+    };
+
     private UpdateCallback mTitleChangedListener;
 
     public TermSession() {
@@ -138,36 +273,58 @@ public TermSession() {
     }
 
     public TermSession(final boolean exitOnEOF) {
+        this(exitOnEOF, DEFAULT_INPUT_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Create a terminal session with custom I/O queue sizes.
+     *
+     * @param exitOnEOF Whether to finish the session when the input stream
+     *                  reaches EOF.
+     * @param queueSize The capacity, in bytes, of the queues that carry data
+     *                  between the reader/writer threads and the main thread.
+     *                  Larger queues let the reader thread run further ahead
+     *                  of the emulator during heavy output.
+     */
+    public TermSession(final boolean exitOnEOF, int queueSize) {
+        this(exitOnEOF, queueSize, queueSize);
+    }
+
+    /**
+     * Create a terminal session with custom I/O queue sizes.
+     *
+     * @param exitOnEOF Whether to finish the session when the input stream
+     *                  reaches EOF.
+     * @param inputQueueSize The capacity, in bytes, of the queue that carries
+     *                  input from the process to the emulator.  This is
+     *                  also the largest read from the process.
+     * @param outputQueueSize The capacity, in bytes, of the queue that
+     *                  carries output to the writer thread.
+     */
+    public TermSession(final boolean exitOnEOF, int inputQueueSize, int outputQueueSize) {
         mWriteCharBuffer = CharBuffer.allocate(2);
         mWriteByteBuffer = ByteBuffer.allocate(4);
         mUTF8Encoder = Charset.forName("UTF-8").newEncoder();
         mUTF8Encoder.onMalformedInput(CodingErrorAction.REPLACE);
         mUTF8Encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
 
-        mReceiveBuffer = new byte[4 * 1024];
-        mByteQueue = new ByteQueue(4 * 1024);
+        mExitOnEOF = exitOnEOF;
+        mByteQueue = new ByteQueue(inputQueueSize);
+        mReadSize = Math.min(MIN_READ_SIZE, mByteQueue.getCapacity());
         mReaderThread = new Thread() {
-            private final byte[] mBuffer = new byte[4096];
+            private final InputReader mReader = new InputReader() {
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    return mTermIn.read(buffer, offset, count);
+                }
+            };
 
             @Override
             public void run() {
                 try {
-                    while(true) {
-                        int read = mTermIn.read(mBuffer);
-                        if (read == -1) {
-                            // EOF -- process exited
-                            break;
-                        }
-                        int offset = 0;
-                        while (read > 0) {
-                            int written = mByteQueue.write(mBuffer,
-                                    offset, read);
-                            offset += written;
-                            read -= written;
-                            mMsgHandler.sendMessage(
-                                    mMsgHandler.obtainMessage(NEW_INPUT));
-                        }
+                    while (readIntoQueue(mReader, true) != -1) {
                     }
+                    // EOF -- process exited
                 } catch (IOException e) {
                 } catch (InterruptedException e) {
                 }
@@ -177,7 +334,7 @@ public void run() {
         };
         mReaderThread.setName("TermSession input reader");
 
-        mWriteQueue = new ByteQueue(4096);
+        mWriteQueue = new ByteQueue(outputQueueSize);
         mWriterThread = new Thread() {
             private final byte[] mBuffer = new byte[4096];
 
@@ -190,6 +347,8 @@ public void run() {
                     public void handleMessage(Message msg) {
                         if (msg.what == NEW_OUTPUT) {
                             writeToOutput();
+                        } else if (msg.what == PASTE) {
+                            writePaste((String) msg.obj, msg.arg1 != 0);
                         } else if (msg.what == FINISH) {
                             Looper.myLooper().quit();
                         }
@@ -227,6 +386,69 @@ private void writeToOutput() {
                     e.printStackTrace();
                 }
             }
+
+            private ByteBuffer mPasteBuffer;
+            private CharsetEncoder mPasteEncoder;
+
+            /**
+             * Encode pasted text straight into a direct buffer, and write it
+             * to the output a buffer at a time.  A write blocks while the
+             * process isn't reading, which holds up this thread, but nothing
+             * else.
+             */
+            private void writePaste(String text, boolean bracketed) {
+                // Whatever was typed before the paste goes first
+                while (mWriteQueue.getBytesAvailable() > 0) {
+                    writeToOutput();
+                }
+
+                if (mPasteBuffer == null) {
+                    mPasteBuffer = ByteBuffer.allocateDirect(PASTE_BUFFER_SIZE);
+                    mPasteEncoder = Charset.forName("UTF-8").newEncoder();
+                    mPasteEncoder.onMalformedInput(CodingErrorAction.REPLACE);
+                    mPasteEncoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+                }
+                ByteBuffer buffer = mPasteBuffer;
+                CharsetEncoder encoder = mPasteEncoder;
+                encoder.reset();
+                buffer.clear();
+                if (bracketed) {
+                    text = bracketPaste(text);
+                }
+                try {
+                    CharBuffer in = CharBuffer.wrap(text);
+                    while (encoder.encode(in, buffer, true).isOverflow()) {
+                        writePasteBuffer(buffer);
+                    }
+                    while (encoder.flush(buffer).isOverflow()) {
+                        writePasteBuffer(buffer);
+                    }
+                    writePasteBuffer(buffer);
+                    mTermOut.flush();
+                } catch (IOException e) {
+                    // Ignore exception, as writeToOutput() does
+                    e.printStackTrace();
+                }
+            }
+
+            private void writePasteBuffer(ByteBuffer buffer) throws IOException {
+                buffer.flip();
+                OutputStream termOut = mTermOut;
+                if (termOut instanceof FileOutputStream) {
+                    FileChannel channel = ((FileOutputStream) termOut).getChannel();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } else {
+                    byte[] bytes = mBuffer;
+                    while (buffer.hasRemaining()) {
+                        int count = Math.min(buffer.remaining(), bytes.length);
+                        buffer.get(bytes, 0, count);
+                        termOut.write(bytes, 0, count);
+                    }
+                }
+                buffer.clear();
+            }
         };
         mWriterThread.setName("TermSession output writer");
     }
@@ -242,26 +464,405 @@ protected void onProcessExit() {
      * @param rows The number of rows in the terminal window.
      */
     public void initializeEmulator(int columns, int rows) {
-        mTranscriptScreen = new TranscriptScreen(columns, TRANSCRIPT_ROWS, rows, mColorScheme);
-        setIMEColor(mIMEColor);
-        mEmulator = new TerminalEmulator(this, mTranscriptScreen, columns, rows, mColorScheme);
-        mEmulator.setDefaultUTF8Mode(mDefaultUTF8Mode);
-        mEmulator.setKeyListener(mKeyListener);
+        synchronized (mEmulatorLock) {
+            mTranscriptScreen = new TranscriptScreen(columns, TRANSCRIPT_ROWS, rows, mColorScheme);
+            mTranscriptScreen.enableColdScrollback();
+            setIMEColor(mIMEColor);
+            mEmulator = new TerminalEmulator(this, mTranscriptScreen, columns, rows, mColorScheme);
+            mEmulator.setDefaultUTF8Mode(mDefaultUTF8Mode);
+            mEmulator.setKeyListener(mKeyListener);
+            publishSnapshot();
+        }
+
+        if (mUseEmulatorThread) {
+            mEmulatorThread = new HandlerThread("TermSession emulator");
+            mEmulatorThread.start();
+            mInputHandler = new Handler(mEmulatorThread.getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    if (mIsRunning && msg.what == NEW_INPUT) {
+                        readFromProcess();
+                    }
+                }
+            };
+        } else {
+            mInputHandler = mMsgHandler;
+        }
 
         mIsRunning = true;
-        mReaderThread.start();
-        mWriterThread.start();
+        if (mIOListener == null) {
+            mReaderThread.start();
+            mWriterThread.start();
+        }
+    }
+
+    /**
+     * Have an {@link IOListener} do the I/O of this session, instead of
+     * reader and writer threads of its own.  The streams set with {@link
+     * #setTermIn} and {@link #setTermOut} are then only closed by {@link
+     * #finish}, never read or written.
+     * <p>
+     * Must be called before {@link #initializeEmulator}.  The listener
+     * shouldn't call {@link #receiveInput} until that has been called.
+     *
+     * @param listener The {@link IOListener} to do the I/O.
+     */
+    public void setIOListener(IOListener listener) {
+        if (mIsRunning) {
+            throw new IllegalStateException("Session is already running");
+        }
+        mIOListener = listener;
+    }
+
+    /**
+     * @return The number of bytes {@link #receiveInput} can take now.  If
+     *         this is 0, the {@link IOListener} is told when there's room
+     *         again.
+     */
+    public int getInputSpace() {
+        int space = mByteQueue.getFreeSpace();
+        if (space == 0) {
+            // Look again after asking, in case the queue was drained in
+            // between and nobody saw the request
+            mInputSpaceWanted.set(true);
+            space = mByteQueue.getFreeSpace();
+            if (space > 0) {
+                mInputSpaceWanted.set(false);
+            }
+        }
+        return space;
+    }
+
+    /**
+     * Give the session bytes read from the process, for the emulator to
+     * process.  For use by an {@link IOListener}, on one thread only.
+     *
+     * @param data An array of bytes read from the process.
+     * @param offset The offset into the array at which the data starts.
+     * @param count The number of bytes, no more than {@link #getInputSpace}
+     *              last returned, so that this never blocks.
+     */
+    public void receiveInput(byte[] data, int offset, int count) {
+        if (count > mByteQueue.getFreeSpace()) {
+            throw new IllegalArgumentException("count > input space");
+        }
+        SessionLogger logger = mLogger;
+        if (logger != null) {
+            // The listener's thread may serve other sessions too
+            logger.log(data, offset, count, false);
+        }
+        try {
+            mByteQueue.write(data, offset, count);
+        } catch (InterruptedException e) {
+        }
+        countInput(count);
+        requestInputDrain();
+    }
+
+    /**
+     * Read from the process straight into the input queue, for the emulator
+     * to process, saving the copy {@link #receiveInput(byte[], int, int)}
+     * makes.  For use by an {@link IOListener}, on one thread only.
+     *
+     * @param reader Reads from the process.  It is asked for no more than
+     *               fits, so this never blocks unless the reader does.
+     * @return The number of bytes read, 0 if there was no room in the queue
+     *         or nothing to read, or -1 at end of input.
+     */
+    public int receiveInput(InputReader reader) throws IOException {
+        try {
+            return readIntoQueue(reader, false);
+        } catch (InterruptedException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Do one read from the process into the free space at the end of the
+     * input queue.
+     * <p>
+     * The size of the read adapts to the input.  A read never returns more
+     * than the process has written, so one which fills the whole request
+     * means more is probably waiting: the next read asks for twice as much,
+     * up to the size of the queue, so that a program writing continuously
+     * is read with fewer, larger reads, and the emulator is woken up fewer
+     * times.  Once reads come back with much less than was asked for, as
+     * they do while typing, the size drops back again, so that a burst
+     * doesn't leave one read holding the whole queue.
+     *
+     * @param block Whether to wait for room in the queue.
+     * @return The number of bytes read, 0 if there was no room or nothing
+     *         to read, or -1 at end of input.
+     */
+    private int readIntoQueue(InputReader reader, boolean block)
+            throws IOException, InterruptedException {
+        ByteQueue queue = mByteQueue;
+        int free = block ? queue.waitForFreeSpace() : queue.getContiguousFreeSpace();
+        if (free == 0) {
+            return 0;
+        }
+        byte[] buffer = queue.getArray();
+        int offset = queue.getWriteOffset();
+        int readSize = mReadSize;
+        int request = Math.min(free, readSize);
+        int read = reader.read(buffer, offset, request);
+        if (read <= 0) {
+            return read;
+        }
+
+        SessionLogger logger = mLogger;
+        if (logger != null) {
+            // Only our own reader thread may wait for the logger
+            logger.log(buffer, offset, read, block);
+        }
+        queue.commitWrite(read);
+        countInput(read);
+        if (read == readSize) {
+            mReadSize = Math.min(readSize * 2, queue.getCapacity());
+        } else if (read < readSize / 4) {
+            mReadSize = Math.max(readSize / 2, Math.min(MIN_READ_SIZE, queue.getCapacity()));
+        }
+        requestInputDrain();
+        return read;
+    }
+
+    private void countInput(int count) {
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - mRatePeriodStart;
+        if (elapsed >= INPUT_RATE_PERIOD_MS) {
+            mInputRate = mRatePeriodBytes * 1000 / elapsed;
+            mRatePeriodStart = now;
+            mRatePeriodBytes = 0;
+        }
+        mRatePeriodBytes += count;
+        mInputBytes += count;
+        mInputReads++;
+        mLastInputTime = now;
+    }
+
+    /**
+     * @return The number of bytes read from the process so far.
+     */
+    public long getInputBytes() {
+        return mInputBytes;
+    }
+
+    /**
+     * @return The number of reads from the process so far.
+     */
+    public long getInputReads() {
+        return mInputReads;
+    }
+
+    /**
+     * @return The average number of bytes each read from the process has
+     *         returned.
+     */
+    public int getAverageInputChunk() {
+        long reads = mInputReads;
+        return reads == 0 ? 0 : (int) (mInputBytes / reads);
+    }
+
+    /**
+     * @return The rate input was read from the process at, in bytes per
+     *         second, over the last whole second of input.  0 once no input
+     *         has come for a while.
+     */
+    public long getInputBytesPerSecond() {
+        if (SystemClock.uptimeMillis() - mLastInputTime > 2 * INPUT_RATE_PERIOD_MS) {
+            return 0;
+        }
+        return mInputRate;
+    }
+
+    /**
+     * @return How many bytes the next read from the process asks for, if
+     *         there's room.
+     */
+    public int getReadSize() {
+        return mReadSize;
+    }
+
+    /**
+     * Tell the session that the process's output has come to an end, as the
+     * reader thread does when its stream reaches EOF.  For use by an {@link
+     * IOListener}.
+     */
+    public void receiveEndOfInput() {
+        if (mExitOnEOF) mMsgHandler.sendMessage(mMsgHandler.obtainMessage(EOF));
+    }
+
+    /**
+     * Take output written to the session, to write to the process.  For use
+     * by an {@link IOListener}, on one thread only.  Pasted text is encoded
+     * straight into the buffer, in order with the output written around it.
+     *
+     * @param buffer The array to put the output in.
+     * @param offset The offset into the array at which to put it.
+     * @param count The most bytes to take; at least 4, so that the next
+     *              character of a paste always fits.
+     * @return The number of bytes taken, 0 if there's no output waiting.
+     */
+    public int takeOutput(byte[] buffer, int offset, int count) {
+        int taken = 0;
+        while (taken < count) {
+            PendingPaste paste;
+            synchronized (mPendingPastes) {
+                paste = mPendingPastes.peek();
+            }
+            long queued = paste != null ? paste.mark - mBytesTaken
+                    : mWriteQueue.getBytesAvailable();
+            if (queued > 0) {
+                // Output written before the paste goes first
+                int bytes = (int) Math.min(Math.min(queued, mWriteQueue.getBytesAvailable()),
+                        count - taken);
+                try {
+                    mWriteQueue.read(buffer, offset + taken, bytes);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                mBytesTaken += bytes;
+                taken += bytes;
+                continue;
+            }
+            if (paste == null) {
+                break;
+            }
+
+            if (mTakeEncoder == null) {
+                mTakeEncoder = Charset.forName("UTF-8").newEncoder();
+                mTakeEncoder.onMalformedInput(CodingErrorAction.REPLACE);
+                mTakeEncoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            ByteBuffer out = ByteBuffer.wrap(buffer, offset + taken, count - taken);
+            boolean overflow = false;
+            if (!paste.encoded) {
+                overflow = mTakeEncoder.encode(paste.text, out, true).isOverflow();
+                paste.encoded = !overflow;
+            }
+            if (paste.encoded) {
+                overflow = mTakeEncoder.flush(out).isOverflow();
+            }
+            taken = out.position() - offset;
+            if (overflow) {
+                break;
+            }
+            mTakeEncoder.reset();
+            synchronized (mPendingPastes) {
+                mPendingPastes.poll();
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * Start or stop logging the output of the process.  The output is given
+     * to the logger as it is read, before the emulator sees it.
+     *
+     * @param logger The {@link SessionLogger} to log to, or null to stop
+     *               logging.  Any logger set before is closed.
+     */
+    public void setLogger(SessionLogger logger) {
+        SessionLogger old = mLogger;
+        mLogger = logger;
+        if (old != null && old != logger) {
+            old.close();
+        }
+    }
+
+    /**
+     * @return The {@link SessionLogger} the output of the process is logged
+     *         to, or null.
+     */
+    public SessionLogger getLogger() {
+        return mLogger;
     }
 
     static public int getTranscriptRows() {
         return TRANSCRIPT_ROWS;
     }
 
+    /**
+     * Set whether input from the process is parsed on a dedicated emulator
+     * thread instead of the main thread.
+     * <p>
+     * In this mode the emulator thread owns all changes to the screen and
+     * publishes a {@link ScreenSnapshot} after each batch of input, which an
+     * attached {@link EmulatorView} draws from.  {@link #processInput
+     * processInput} is then called on the emulator thread, while {@link
+     * UpdateCallback}s are still invoked on the main thread.  Other access to
+     * the emulator must hold the lock returned by {@link #getEmulatorLock}.
+     * <p>
+     * This must be called before the emulator is initialized.
+     *
+     * @param enabled Whether to run the emulator on its own thread.
+     */
+    public void setEmulatorThreadEnabled(boolean enabled) {
+        if (mEmulator != null) {
+            throw new IllegalStateException("Emulator already initialized");
+        }
+        mUseEmulatorThread = enabled;
+    }
+
+    /**
+     * @return Whether input is parsed on a dedicated emulator thread.
+     */
+    public boolean isEmulatorThreadEnabled() {
+        return mUseEmulatorThread;
+    }
+
+    /**
+     * Get the lock which guards the terminal emulator and its screen.  It is
+     * held while input is processed, and must be held by anyone reading or
+     * changing the emulator from another thread.
+     */
+    Object getEmulatorLock() {
+        return mEmulatorLock;
+    }
+
+    /**
+     * Get the most recent snapshot of the screen, or null if the emulator
+     * does not run on its own thread.
+     */
+    ScreenSnapshot getScreenSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Get the most recent snapshot of the screen, with the scrollback rows
+     * from the given one down.  If the latest snapshot doesn't go back that
+     * far, a new one is taken at once; either way, the snapshots the
+     * emulator thread takes from now on go back as far.
+     *
+     * @param firstRow The oldest scrollback row wanted, 0 or less.
+     * @return The snapshot, or null if the emulator does not run on its own
+     *         thread.
+     */
+    ScreenSnapshot getScreenSnapshot(int firstRow) {
+        mSnapshotFirstRow = firstRow;
+        ScreenSnapshot snapshot = mSnapshot;
+        if (snapshot == null || snapshot.getFirstRow() <= firstRow) {
+            return snapshot;
+        }
+        synchronized (mEmulatorLock) {
+            publishSnapshot();
+            return mSnapshot;
+        }
+    }
+
+    /* Must be called with mEmulatorLock held */
+    private void publishSnapshot() {
+        if (mUseEmulatorThread && mEmulator != null) {
+            mSnapshot = ScreenSnapshot.capture(mEmulator, mSnapshotFirstRow, mSnapshot);
+        }
+    }
+
     /**
      * Write data to the terminal output.  The written data will be consumed by
      * the emulation client as input.
      * <p>
-     * <code>write</code> itself runs on the main thread.  The default
+     * <code>write</code> itself runs on the main thread (and, for replies to
+     * terminal queries, on the emulator thread if there is one).  The default
      * implementation writes the data into a circular buffer and signals the
      * writer thread to copy it from there to the {@link OutputStream}.
      * <p>
@@ -274,14 +875,19 @@ static public int getTranscriptRows() {
      * @param count The number of bytes to be written.
      */
     public void write(byte[] data, int offset, int count) {
-        try {
-            while (count > 0) {
-                int written = mWriteQueue.write(data, offset, count);
-                offset += written;
-                count -= written;
-                notifyNewOutput();
+        // The queue takes a single producer; the emulator thread may be
+        // writing replies at the same time as the main thread sends keys
+        synchronized (mWriteQueue) {
+            try {
+                while (count > 0) {
+                    int written = mWriteQueue.write(data, offset, count);
+                    offset += written;
+                    count -= written;
+                    mBytesQueued += written;
+                    notifyNewOutput();
+                }
+            } catch (InterruptedException e) {
             }
-        } catch (InterruptedException e) {
         }
     }
 
@@ -364,8 +970,83 @@ private void writeCodePointUTF8(int codePoint) {
         write(mUtf8InputBuffer, 0, bufferPosition);
     }
 
+    /**
+     * Paste text into the terminal output.  Unlike {@link #write(String)},
+     * this never waits for the process to read the text: it is encoded and
+     * written to the {@link OutputStream} on the writer thread, in large
+     * writes, after anything written before.  With an {@link IOListener},
+     * the text is encoded as the listener takes it with {@link #takeOutput}.
+     * <p>
+     * If the program has turned on bracketed paste mode, the text is wrapped
+     * in the markers of that mode, so the program can tell it from typing.
+     * <p>
+     * The text is written to the stream directly, without going through
+     * {@link #write(byte[], int, int)}.
+     *
+     * @param text The text to paste.
+     */
+    public void paste(CharSequence text) {
+        boolean bracketed;
+        synchronized (mEmulatorLock) {
+            bracketed = mEmulator != null && mEmulator.getBracketedPasteMode();
+        }
+        if (mIOListener != null) {
+            String pasted = text.toString();
+            if (bracketed) {
+                pasted = bracketPaste(pasted);
+            }
+            synchronized (mWriteQueue) {
+                synchronized (mPendingPastes) {
+                    mPendingPastes.add(new PendingPaste(pasted, mBytesQueued));
+                }
+            }
+            mIOListener.onOutputReady(this);
+            return;
+        }
+        Handler writerHandler = mWriterHandler;
+        if (writerHandler == null) {
+            /* Writer thread isn't started -- queue the text up for it */
+            if (bracketed) {
+                write(bracketPaste(text.toString()));
+            } else {
+                write(text.toString());
+            }
+            return;
+        }
+        Message msg = writerHandler.obtainMessage(PASTE, text.toString());
+        msg.arg1 = bracketed ? 1 : 0;
+        writerHandler.sendMessage(msg);
+    }
+
+    /**
+     * Wrap pasted text in the markers of bracketed paste mode.
+     * <p>
+     * Any end marker in the text is taken out first, so that the text can't
+     * end the paste early and have the rest run as typed.  Taking one out
+     * can join the text around it into another, as in
+     * "\033[20\033[201~1~", so this goes on until none is left.
+     */
+    static String bracketPaste(String text) {
+        String end = BRACKETED_PASTE_END;
+        int index = text.indexOf(end);
+        if (index == -1) {
+            return BRACKETED_PASTE_START + text + end;
+        }
+        StringBuilder builder = new StringBuilder(text);
+        while (index != -1) {
+            builder.delete(index, index + end.length());
+            // A new marker has to straddle the cut
+            index = builder.indexOf(end, Math.max(0, index - end.length() + 1));
+        }
+        return BRACKETED_PASTE_START + builder + end;
+    }
+
     /* Notify the writer thread that there's new output waiting */
     private void notifyNewOutput() {
+        if (mIOListener != null) {
+            mIOListener.onOutputReady(this);
+            return;
+        }
         Handler writerHandler = mWriterHandler;
         if (writerHandler == null) {
            /* Writer thread isn't started -- will pick up data once it does */
@@ -457,7 +1138,12 @@ public String getTitle() {
      */
     public void setTitle(String title) {
         mTitle = title;
-        notifyTitleChanged();
+        if (Looper.myLooper() == mMsgHandler.getLooper()) {
+            notifyTitleChanged();
+        } else {
+            // The emulator changes the title from its own thread, if it has one
+            mMsgHandler.post(mNotifyTitleChanged);
+        }
     }
 
     /**
@@ -498,7 +1184,10 @@ public void updateSize(int columns, int rows) {
         if (mEmulator == null) {
             initializeEmulator(columns, rows);
         } else {
-            mEmulator.updateSize(columns, rows);
+            synchronized (mEmulatorLock) {
+                mEmulator.updateSize(columns, rows);
+                publishSnapshot();
+            }
         }
     }
 
@@ -509,30 +1198,118 @@ public void updateSize(int columns, int rows) {
      *         scrollback buffer.
      */
     public String getTranscriptText() {
-        return mTranscriptScreen.getTranscriptText();
+        synchronized (mEmulatorLock) {
+            return mTranscriptScreen.getTranscriptText();
+        }
+    }
+
+    /**
+     * Write the terminal's screen and scrollback buffer to a Writer.  The
+     * text is the same as {@link #getTranscriptText} returns, but it is
+     * copied out a few rows at a time rather than built up in memory, and
+     * the emulator keeps running in between, so this may be called on a
+     * thread other than the main thread for large transcripts.
+     *
+     * @param out The Writer to write to.  It is flushed, but not closed.
+     * @param styled Whether to keep the colors and attributes of the text,
+     *        as ANSI (SGR) escape sequences.
+     * @return Whether the whole transcript was written.  If the session
+     *         finishes while writing, only part of it is, and this is false.
+     */
+    public boolean writeTranscript(Writer out, boolean styled) throws IOException {
+        return new TranscriptWriter(this, styled).writeTo(out);
+    }
+
+    /**
+     * Write the UTF-8 representation of the terminal's screen and scrollback
+     * buffer to an OutputStream, as {@link #writeTranscript(Writer, boolean)}
+     * does.
+     */
+    public boolean writeTranscript(OutputStream out, boolean styled) throws IOException {
+        return writeTranscript(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")), styled);
+    }
+
+    /**
+     * Ask the main thread (or the emulator thread) to drain the input queue.  At most one drain
+     * message is pending at any time, no matter how many reads the reader
+     * thread completes in the meantime.
+     */
+    private void requestInputDrain() {
+        if (!mInputDrainPending.getAndSet(true)) {
+            mInputHandler.sendMessage(mInputHandler.obtainMessage(NEW_INPUT));
+        }
     }
 
     /**
      * Look for new input from the ptty, send it to the terminal emulator.
+     * <p>
+     * Drains as much of the input queue as fits in {@link
+     * #INPUT_DRAIN_BUDGET_MS}; anything left over is picked up by a fresh
+     * drain message, so that input events and redraws get a chance to run
+     * while a program is producing output continuously.  On the emulator
+     * thread the budget instead bounds how stale the published snapshot can
+     * get.
      */
     private void readFromProcess() {
-        int bytesAvailable = mByteQueue.getBytesAvailable();
-        int bytesToRead = Math.min(bytesAvailable, mReceiveBuffer.length);
-        int bytesRead = 0;
-        try {
-            bytesRead = mByteQueue.read(mReceiveBuffer, 0, bytesToRead);
-        } catch (InterruptedException e) {
-            return;
+        // Clear the flag before looking at the queue, so that anything the
+        // reader thread writes from here on schedules another drain
+        mInputDrainPending.set(false);
+
+        long deadline = SystemClock.uptimeMillis() + INPUT_DRAIN_BUDGET_MS;
+        boolean gotInput = false;
+        while (mByteQueue.getBytesAvailable() > 0) {
+            if (gotInput && SystemClock.uptimeMillis() >= deadline) {
+                requestInputDrain();
+                break;
+            }
+
+            // Parse the bytes where they are in the queue, and only then
+            // give their space back to the reader
+            byte[] buffer = mByteQueue.getArray();
+            int offset = mByteQueue.getReadOffset();
+            int bytesRead = mByteQueue.getContiguousBytesAvailable();
+
+            // Give subclasses a chance to process the read data
+            synchronized (mEmulatorLock) {
+                if (!mIsRunning) {
+                    return;
+                }
+                if (EmulatorDebug.LOG_APPEND_TIMES) {
+                    long start = System.nanoTime();
+                    processInput(buffer, offset, bytesRead);
+                    if (mAppendStats == null) {
+                        mAppendStats = new AppendStats("TermSession processInput");
+                    }
+                    mAppendStats.record(System.nanoTime() - start, bytesRead);
+                } else {
+                    processInput(buffer, offset, bytesRead);
+                }
+            }
+            mByteQueue.commitRead(bytesRead);
+            gotInput = true;
         }
 
-        // Give subclasses a chance to process the read data
-        processInput(mReceiveBuffer, 0, bytesRead);
-        notifyUpdate();
+        IOListener listener = mIOListener;
+        if (gotInput && listener != null && mInputSpaceWanted.getAndSet(false)) {
+            listener.onInputSpace(this);
+        }
+        if (!gotInput) {
+            return;
+        }
+        if (mUseEmulatorThread) {
+            synchronized (mEmulatorLock) {
+                publishSnapshot();
+            }
+            mMsgHandler.post(mNotifyUpdate);
+        } else {
+            notifyUpdate();
+        }
     }
 
     /**
      * Process input and send it to the terminal emulator.  This method is
-     * invoked on the main thread whenever new data is read from the
+     * invoked on the main thread (or the emulator thread, if enabled) with
+     * the emulator lock held whenever new data is read from the
      * InputStream.
      * <p>
      * The default implementation sends the data straight to the terminal
@@ -557,7 +1334,10 @@ protected void processInput(byte[] data, int offset, int count) {
      * @param count The length of the data to be written.
      */
     protected final void appendToEmulator(byte[] data, int offset, int count) {
-        mEmulator.append(data, offset, count);
+        synchronized (mEmulatorLock) {
+            mEmulator.append(data, offset, count);
+            publishSnapshot();
+        }
     }
 
     /**
@@ -574,7 +1354,10 @@ public void setColorScheme(ColorScheme scheme) {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setColorScheme(scheme);
+        synchronized (mEmulatorLock) {
+            mEmulator.setColorScheme(scheme);
+            publishSnapshot();
+        }
     }
 
     public void setIMEColor(int color) {
@@ -601,7 +1384,9 @@ public void setDefaultUTF8Mode(boolean utf8ByDefault) {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        synchronized (mEmulatorLock) {
+            mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        }
     }
 
     /**
@@ -633,7 +1418,10 @@ public void setUTF8ModeUpdateCallback(UpdateCallback utf8ModeNotify) {
      * Reset the terminal emulator's state.
      */
     public void reset() {
-        if (mEmulator != null) mEmulator.reset();
+        synchronized (mEmulatorLock) {
+            if (mEmulator != null) mEmulator.reset();
+            publishSnapshot();
+        }
         notifyUpdate();
     }
 
@@ -653,10 +1441,16 @@ public void setFinishCallback(FinishCallback callback) {
      * <code>OutputStream</code>.
      */
     public void finish() {
-        mIsRunning = false;
-        if (mEmulator != null) mEmulator.finish();
-        if (mTranscriptScreen != null) {
-            mTranscriptScreen.finish();
+        setLogger(null);
+        synchronized (mEmulatorLock) {
+            mIsRunning = false;
+            if (mEmulator != null) mEmulator.finish();
+            if (mTranscriptScreen != null) {
+                mTranscriptScreen.finish();
+            }
+        }
+        if (mEmulatorThread != null) {
+            mEmulatorThread.quit();
         }
 
         // Stop the reader and writer threads, and close the I/O streams
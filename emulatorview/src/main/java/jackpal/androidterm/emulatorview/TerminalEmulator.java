@@ -17,11 +17,6 @@
 package jackpal.androidterm.emulatorview;
 
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CodingErrorAction;
 import java.util.Locale;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -243,6 +238,11 @@ public void setKeyListener(TermKeyListener l) {
      */
     private int mMouseTrackingMode;
 
+    /**
+     * Whether pasted text should be marked as such (DECSET 2004).
+     */
+    private boolean mBracketedPasteMode;
+
     // Modes set with Set Mode / Reset Mode
 
     /**
@@ -394,11 +394,44 @@ public void setKeyListener(TermKeyListener l) {
     private boolean mUTF8Mode = false;
     private boolean mUTF8EscapeUsed = false;
     private int mUTF8ToFollow = 0;
-    private final ByteBuffer mUTF8ByteBuffer;
-    private final CharBuffer mInputCharBuffer;
-    private final CharsetDecoder mUTF8Decoder;
+    /** How many continuation bytes the current sequence has, not counting its lead byte */
+    private int mUTF8Length = 0;
+    /** The bits of the current sequence decoded so far */
+    private int mUTF8CodePoint = 0;
     private UpdateCallback mUTF8ModeNotify;
 
+    /**
+     * The number of continuation bytes which follow each byte at the start
+     * of a UTF-8 sequence, or -1 for bytes which can't start a sequence
+     * (continuation bytes, and 0xf8 to 0xff).
+     */
+    private static final byte[] UTF8_BYTES_TO_FOLLOW = new byte[256];
+    /**
+     * The smallest code point which takes a sequence with the given number
+     * of continuation bytes; anything smaller is an overlong encoding.
+     */
+    private static final int[] UTF8_MIN_CODE_POINT = { 0, 0x80, 0x800, 0x10000 };
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int toFollow;
+            if (b < 0x80) {
+                toFollow = 0;
+            } else if (b < 0xc0) {
+                toFollow = -1;
+            } else if (b < 0xe0) { // 0b110 -- two-byte sequence
+                toFollow = 1;
+            } else if (b < 0xf0) { // 0b1110 -- three-byte sequence
+                toFollow = 2;
+            } else if (b < 0xf8) { // 0b11110 -- four-byte sequence
+                toFollow = 3;
+            } else {
+                toFollow = -1;
+            }
+            UTF8_BYTES_TO_FOLLOW[b] = (byte) toFollow;
+        }
+    }
+
     /** This is not accurate, but it makes the terminal more useful on
      * small screens.
      */
@@ -425,12 +458,6 @@ public TerminalEmulator(TermSession session, TranscriptScreen screen, int column
 
         setColorScheme(scheme);
 
-        mUTF8ByteBuffer = ByteBuffer.allocate(4);
-        mInputCharBuffer = CharBuffer.allocate(2);
-        mUTF8Decoder = Charset.forName("UTF-8").newDecoder();
-        mUTF8Decoder.onMalformedInput(CodingErrorAction.REPLACE);
-        mUTF8Decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
-
         reset();
     }
 
@@ -458,38 +485,25 @@ public void updateSize(int columns, int rows) {
             altScreen = mAltBuffer;
         }
 
-        // Try to resize the screen without getting the transcript
+        // Try to resize the screen without rewrapping the transcript
         int[] cursor = { mCursorCol, mCursorRow };
         boolean fastResize = screen.fastResize(columns, rows, cursor);
 
-        GrowableIntArray cursorColor = null;
-        String charAtCursor = null;
-        GrowableIntArray colors = null;
-        String transcriptText = null;
+        TranscriptReflow reflow = null;
         if (!fastResize) {
-            /* Save the character at the cursor (if one exists) and store an
-             * ASCII ESC character at the cursor's location
-             * This is an epic hack that lets us restore the cursor later...
-             */
-            cursorColor = new GrowableIntArray(1);
-            charAtCursor = screen.getSelectedText(cursorColor, mCursorCol, mCursorRow, mCursorCol, mCursorRow);
-            screen.set(mCursorCol, mCursorRow, 27, 0);
-
-            colors = new GrowableIntArray(1024);
-            transcriptText = screen.getTranscriptText(colors);
-            screen.resize(columns, rows, getStyle());
+            // Rows in the cold tier survive the resize as they are
+            reflow = screen.reflow(columns, rows, getStyle(), cursor, mAboutToAutoWrap);
+            mScrollCounter += reflow.getScrollCount();
         }
 
-        boolean altFastResize = true;
-        GrowableIntArray altColors = null;
-        String altTranscriptText = null;
         if (altScreen != null) {
-            altFastResize = altScreen.fastResize(columns, rows, null);
-
-            if (!altFastResize) {
-                altColors = new GrowableIntArray(1024);
-                altTranscriptText = altScreen.getTranscriptText(altColors);
-                altScreen.resize(columns, rows, getStyle());
+            if (!altScreen.fastResize(columns, rows, null)) {
+                /* Unlike for the main transcript, don't trim off trailing
+                 * blank lines -- the alternate transcript lacks a cursor, so
+                 * we might introduce an unwanted vertical shift in the screen
+                 * contents this way */
+                mScrollCounter += altScreen.reflow(columns, rows, getStyle(), null, false)
+                        .getScrollCount();
             }
         }
 
@@ -507,41 +521,6 @@ public void updateSize(int columns, int rows) {
             System.arraycopy(oldTabStop, 0, mTabStop, 0, toTransfer);
         }
 
-        if (!altFastResize) {
-            boolean wasAboutToAutoWrap = mAboutToAutoWrap;
-
-            // Restore the contents of the inactive screen's buffer
-            mScreen = altScreen;
-            mCursorRow = 0;
-            mCursorCol = 0;
-            mAboutToAutoWrap = false;
-
-            int end = altTranscriptText.length()-1;
-            /* Unlike for the main transcript below, don't trim off trailing
-             * newlines -- the alternate transcript lacks a cursor marking, so
-             * we might introduce an unwanted vertical shift in the screen
-             * contents this way */
-            char c, cLow;
-            int colorOffset = 0;
-            for (int i = 0; i <= end; i++) {
-                c = altTranscriptText.charAt(i);
-                int style = altColors.at(i-colorOffset);
-                if (Character.isHighSurrogate(c)) {
-                    cLow = altTranscriptText.charAt(++i);
-                    emit(Character.toCodePoint(c, cLow), style);
-                    ++colorOffset;
-                } else if (c == '\n') {
-                    setCursorCol(0);
-                    doLinefeed();
-                } else {
-                    emit(c, style);
-                }
-            }
-
-            mScreen = screen;
-            mAboutToAutoWrap = wasAboutToAutoWrap;
-        }
-
         if (fastResize) {
             // Only need to make sure the cursor is in the right spot
             if (cursor[0] >= 0 && cursor[1] >= 0) {
@@ -556,61 +535,12 @@ public void updateSize(int columns, int rows) {
             return;
         }
 
-        mCursorRow = 0;
-        mCursorCol = 0;
-        mAboutToAutoWrap = false;
-
-        int newCursorRow = -1;
-        int newCursorCol = -1;
-        int newCursorTranscriptPos = -1;
-        int end = transcriptText.length()-1;
-        while ((end >= 0) && transcriptText.charAt(end) == '\n') {
-            end--;
-        }
-        char c, cLow;
-        int colorOffset = 0;
-        for(int i = 0; i <= end; i++) {
-            c = transcriptText.charAt(i);
-            int style = colors.at(i-colorOffset);
-            if (Character.isHighSurrogate(c)) {
-                cLow = transcriptText.charAt(++i);
-                emit(Character.toCodePoint(c, cLow), style);
-                ++colorOffset;
-            } else if (c == '\n') {
-                setCursorCol(0);
-                doLinefeed();
-            } else if (c == 27) {
-                /* We marked the cursor location with ESC earlier, so this
-                   is the place to restore the cursor to */
-                newCursorRow = mCursorRow;
-                newCursorCol = mCursorCol;
-                newCursorTranscriptPos = screen.getActiveRows();
-                if (charAtCursor != null && charAtCursor.length() > 0) {
-                    // Emit the real character that was in this spot
-                    int encodedCursorColor = cursorColor.at(0);
-                    emit(charAtCursor.toCharArray(), 0, charAtCursor.length(), encodedCursorColor);
-                }
-            } else {
-                emit(c, style);
-            }
-        }
-
-        // If we marked a cursor location, move the cursor there now
-        if (newCursorRow != -1 && newCursorCol != -1) {
-            mCursorRow = newCursorRow;
-            mCursorCol = newCursorCol;
-
-            /* Adjust for any scrolling between the time we marked the cursor
-               location and now */
-            int scrollCount = screen.getActiveRows() - newCursorTranscriptPos;
-            if (scrollCount > 0 && scrollCount <= newCursorRow) {
-                mCursorRow -= scrollCount;
-            } else if (scrollCount > newCursorRow) {
-                // Cursor scrolled off screen -- reset to top left corner
-                mCursorRow = 0;
-                mCursorCol = 0;
-            }
-        }
+        // Carry on as if the rows had been written up to the cursor
+        mCursorCol = cursor[0];
+        mCursorRow = cursor[1];
+        mAboutToAutoWrap = reflow.isAboutToAutoWrap();
+        mJustWrapped = reflow.isJustWrapped();
+        mLastEmittedCharWidth = reflow.getLastEmittedCharWidth();
     }
 
     /**
@@ -652,6 +582,14 @@ public final int getMouseTrackingMode() {
         return mMouseTrackingMode;
     }
 
+    /**
+     * @return Whether the program has asked for pasted text to be bracketed
+     *         by ESC [ 200 ~ and ESC [ 201 ~ (DECSET 2004).
+     */
+    public final boolean getBracketedPasteMode() {
+        return mBracketedPasteMode;
+    }
+
     private void setDefaultTabStops() {
         for (int i = 0; i < mColumns; i++) {
             mTabStop[i] = (i & 7) == 0 && i != 0;
@@ -672,6 +610,20 @@ public void append(byte[] buffer, int base, int length) {
         for (int i = 0; i < length; i++) {
             byte b = buffer[base + i];
             try {
+                if (canEmitPrintableRun(b)) {
+                    // Fast path -- hand the whole run of printable ASCII to
+                    // the screen at once instead of going through process()
+                    int end = base + length;
+                    int runEnd = base + i + 1;
+                    while (runEnd < end && isPrintableAscii(buffer[runEnd])) {
+                        runEnd++;
+                    }
+                    int runLength = runEnd - (base + i);
+                    emitPrintableRun(buffer, base + i, runLength);
+                    mProcessedCharCount += runLength;
+                    i += runLength - 1;
+                    continue;
+                }
                 process(b);
                 mProcessedCharCount++;
             } catch (Exception e) {
@@ -682,6 +634,77 @@ public void append(byte[] buffer, int base, int length) {
         }
     }
 
+    private static boolean isPrintableAscii(byte b) {
+        return b >= 32 && b < 127;
+    }
+
+    /**
+     * Whether a printable ASCII byte can bypass process() and be written
+     * straight into the screen along with the rest of its run.  This is only
+     * the case when no escape sequence or UTF-8 sequence is in progress and
+     * neither insert mode nor the special graphics character set would change
+     * what ends up on the screen.
+     */
+    private boolean canEmitPrintableRun(byte b) {
+        return isPrintableAscii(b) && mEscapeState == ESC_NONE
+                && mUTF8ToFollow == 0 && !mInsertMode && !mUseAlternateCharSet;
+    }
+
+    /**
+     * Send a run of printable ASCII characters to the screen.  Behaves
+     * exactly like calling emit(byte) for each character in turn, but stores
+     * each row's worth of characters with a single call into the screen.
+     *
+     * @param buffer The array containing the characters.
+     * @param offset The index of the first character of the run.
+     * @param length The number of characters in the run.
+     */
+    private void emitPrintableRun(byte[] buffer, int offset, int length) {
+        boolean autoWrap = autoWrapEnabled();
+        int style = getStyle();
+        int columns = mColumns;
+
+        while (length > 0) {
+            if (autoWrap && mCursorCol == columns - 1 && mAboutToAutoWrap) {
+                mScreen.setLineWrap(mCursorRow);
+                mCursorCol = 0;
+                if (mCursorRow + 1 < mBottomMargin) {
+                    mCursorRow++;
+                } else {
+                    scroll();
+                }
+            }
+
+            int count = Math.min(length, columns - mCursorCol);
+            if (!autoWrap && count < length) {
+                /* Without autowrap, everything past the right margin
+                   overwrites the last column, so only the final character
+                   of the run survives there */
+                mScreen.set(mCursorCol, mCursorRow, buffer, offset, count, style);
+                mScreen.set(columns - 1, mCursorRow, buffer[offset + length - 1], style);
+                count = length;
+            } else {
+                mScreen.set(mCursorCol, mCursorRow, buffer, offset, count, style);
+            }
+            int lastCol = Math.min(mCursorCol + count, columns) - 1;
+
+            if (autoWrap) {
+                mAboutToAutoWrap = (lastCol == columns - 1);
+
+                //Force line-wrap flag to trigger even for lines being typed
+                if (mAboutToAutoWrap)
+                    mScreen.setLineWrap(mCursorRow);
+            }
+
+            mCursorCol = Math.min(lastCol + 1, columns - 1);
+            offset += count;
+            length -= count;
+        }
+
+        mJustWrapped = false;
+        mLastEmittedCharWidth = 1;
+    }
+
     private void process(byte b) {
         process(b, true);
     }
@@ -838,18 +861,24 @@ private void process(byte b, boolean doUTF8) {
         }
     }
 
+    /**
+     * Decode UTF-8 a byte at a time, straight into code points.  Each
+     * sequence is checked for overlong encodings, surrogates and values
+     * beyond U+10FFFF once it is complete, and replaced by a single
+     * replacement char if it is invalid.
+     */
     private boolean handleUTF8Sequence(byte b) {
         if (mUTF8ToFollow == 0 && (b & 0x80) == 0) {
             // ASCII character -- we don't need to handle this
             return false;
         }
 
+        int value = b & 0xff;
         if (mUTF8ToFollow > 0) {
-            if ((b & 0xc0) != 0x80) {
+            if ((value & 0xc0) != 0x80) {
                 /* Not a UTF-8 continuation byte (doesn't begin with 0b10)
                    Replace the entire sequence with the replacement char */
                 mUTF8ToFollow = 0;
-                mUTF8ByteBuffer.clear();
                 emit(UNICODE_REPLACEMENT_CHAR);
 
                 /* The Unicode standard (section 3.9, definition D93) requires
@@ -858,44 +887,34 @@ private boolean handleUTF8Sequence(byte b) {
                 return handleUTF8Sequence(b);
             }
 
-            mUTF8ByteBuffer.put(b);
+            int codePoint = (mUTF8CodePoint << 6) | (value & 0x3f);
+            mUTF8CodePoint = codePoint;
             if (--mUTF8ToFollow == 0) {
-                // Sequence complete -- decode and emit it
-                ByteBuffer byteBuf = mUTF8ByteBuffer;
-                CharBuffer charBuf = mInputCharBuffer;
-                CharsetDecoder decoder = mUTF8Decoder;
-
-                byteBuf.rewind();
-                decoder.reset();
-                decoder.decode(byteBuf, charBuf, true);
-                decoder.flush(charBuf);
-
-                char[] chars = charBuf.array();
-                if (chars[0] >= 0x80 && chars[0] <= 0x9f) {
+                // Sequence complete -- emit it
+                if (codePoint < UTF8_MIN_CODE_POINT[mUTF8Length]
+                        || codePoint > Character.MAX_CODE_POINT
+                        || (codePoint >= Character.MIN_SURROGATE
+                            && codePoint <= Character.MAX_SURROGATE)) {
+                    emit(UNICODE_REPLACEMENT_CHAR);
+                } else if (codePoint <= 0x9f) {
                     /* Sequence decoded to a C1 control character which needs
                        to be sent through process() again */
-                    process((byte) chars[0], false);
+                    process((byte) codePoint, false);
                 } else {
-                    emit(chars);
+                    emit(codePoint);
                 }
-
-                byteBuf.clear();
-                charBuf.clear();
             }
         } else {
-            if ((b & 0xe0) == 0xc0) { // 0b110 -- two-byte sequence
-                mUTF8ToFollow = 1;
-            } else if ((b & 0xf0) == 0xe0) { // 0b1110 -- three-byte sequence
-                mUTF8ToFollow = 2;
-            } else if ((b & 0xf8) == 0xf0) { // 0b11110 -- four-byte sequence
-                mUTF8ToFollow = 3;
-            } else {
+            int toFollow = UTF8_BYTES_TO_FOLLOW[value];
+            if (toFollow <= 0) {
                 // Not a valid UTF-8 sequence start -- replace this char
                 emit(UNICODE_REPLACEMENT_CHAR);
                 return true;
             }
-
-            mUTF8ByteBuffer.put(b);
+            mUTF8ToFollow = toFollow;
+            mUTF8Length = toFollow;
+            // Keep the bits of the first byte below its length marker
+            mUTF8CodePoint = value & (0x3f >> toFollow);
         }
 
         return true;
@@ -970,6 +989,9 @@ private void doEscLSBQuest(byte b) {
             if (arg >= 1000 && arg <= 1003) {
                 mMouseTrackingMode = arg;
             }
+            if (arg == 2004) {
+                mBracketedPasteMode = true;
+            }
             break;
 
         case 'l': // Esc [ ? Pn l - DECRST
@@ -997,6 +1019,9 @@ private void doEscLSBQuest(byte b) {
             if (arg >= 1000 && arg <= 1003) {
                 mMouseTrackingMode = 0;
             }
+            if (arg == 2004) {
+                mBracketedPasteMode = false;
+            }
             break;
 
         case 'r': // Esc [ ? Pn r - restore
@@ -1974,38 +1999,6 @@ private void emit(byte b) {
         }
     }
 
-    /**
-     * Send a UTF-16 char or surrogate pair to the screen.
-     *
-     * @param c A char[2] containing either a single UTF-16 char or a surrogate pair to be sent to the screen.
-     */
-    private void emit(char[] c) {
-        if (Character.isHighSurrogate(c[0])) {
-            emit(Character.toCodePoint(c[0], c[1]));
-        } else {
-            emit(c[0]);
-        }
-    }
-
-    /**
-     * Send an array of UTF-16 chars to the screen.
-     *
-     * @param c A char[] array whose contents are to be sent to the screen.
-     */
-    private void emit(char[] c, int offset, int length, int style) {
-        for (int i = offset; i < length; ++i) {
-            if (c[i] == 0) {
-                break;
-            }
-            if (Character.isHighSurrogate(c[i])) {
-                emit(Character.toCodePoint(c[i], c[i+1]), style);
-                ++i;
-            } else {
-                emit(c[i], style);
-            }
-        }
-    }
-
     private void setCursorRow(int row) {
         mCursorRow = row;
         mAboutToAutoWrap = false;
@@ -2049,6 +2042,7 @@ public void reset() {
         }
         mDecFlags |= K_SHOW_CURSOR_MASK;
         mSavedDecFlags = 0;
+        mBracketedPasteMode = false;
         mInsertMode = false;
         mTopMargin = 0;
         mBottomMargin = mRows;
@@ -2067,8 +2061,6 @@ public void reset() {
         setUTF8Mode(mDefaultUTF8Mode);
         mUTF8EscapeUsed = false;
         mUTF8ToFollow = 0;
-        mUTF8ByteBuffer.clear();
-        mInputCharBuffer.clear();
     }
 
     public void setDefaultUTF8Mode(boolean defaultToUTF8Mode) {
@@ -2081,8 +2073,6 @@ public void setDefaultUTF8Mode(boolean defaultToUTF8Mode) {
     public void setUTF8Mode(boolean utf8Mode) {
         if (utf8Mode && !mUTF8Mode) {
             mUTF8ToFollow = 0;
-            mUTF8ByteBuffer.clear();
-            mInputCharBuffer.clear();
         }
         mUTF8Mode = utf8Mode;
         if (mUTF8ModeNotify != null) {
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * Copies the screen and transcript rows of a {@link UnicodeTranscript} into
+ * a new one of a different size, rewrapping each logical line (a run of rows
+ * joined by line wraps) to the new width.
+ * <p>
+ * Characters are placed where {@link TerminalEmulator} would place them if
+ * the text of the old rows were written to the new screen, wrapping and
+ * scrolling included, but they are read straight out of the old rows rather
+ * than going through a String, and runs of characters from basic rows are
+ * copied into the new rows in bulk.  As when the text is written, trailing
+ * blanks of each row are dropped, unless the row wraps onto the next one.
+ */
+final class TranscriptReflow {
+    private final UnicodeTranscript mDst;
+    private final int mColumns;
+    private final int mRows;
+    private final int mStyle;
+
+    // Where the next character goes, tracked as TerminalEmulator.emit() does
+    private int mCursorRow;
+    private int mCursorCol;
+    private boolean mAboutToAutoWrap;
+    private boolean mJustWrapped;
+    private int mLastEmittedCharWidth = 1;
+
+    /** Line feeds which were read but not written yet */
+    private int mPendingLinefeeds;
+
+    private int mScrollCount;
+
+    // The state at the location of the old cursor, once it has been copied
+    private boolean mCursorMarked;
+    private int mMarkRow;
+    private int mMarkCol;
+    private boolean mMarkAboutToAutoWrap;
+    private boolean mMarkJustWrapped;
+    private int mMarkLastEmittedCharWidth;
+    private int mMarkScrollCount;
+
+    private char[] mBlankLine;
+
+    /**
+     * @param dst The transcript to copy into, with a blank screen.
+     * @param columns The number of columns of dst.
+     * @param rows The number of screen rows of dst.
+     * @param style The style of rows exposed by scrolling dst.
+     */
+    TranscriptReflow(UnicodeTranscript dst, int columns, int rows, int style) {
+        mDst = dst;
+        mColumns = columns;
+        mRows = rows;
+        mStyle = style;
+    }
+
+    /**
+     * Copy the screen of a transcript, and the rows of its transcript which
+     * are not in the cold tier, starting at the top left of the new screen.
+     *
+     * @param src The transcript to copy.
+     * @param srcColumns The number of columns of src.
+     * @param srcRows The number of screen rows of src.
+     * @param cursor An int[2] containing the cursor location in src, which is
+     *        updated with its location in the new screen.  Blank lines below
+     *        the cursor are dropped.  If null, all rows are copied, so that
+     *        the contents keep their place on the screen.
+     * @param aboutToAutoWrap Whether the cursor is past the character it is
+     *        on, which the next character will wrap onto a new line.
+     */
+    void copy(UnicodeTranscript src, int srcColumns, int srcRows, int[] cursor,
+            boolean aboutToAutoWrap) {
+        int lastRow = srcRows - 1;
+        int cursorRow = cursor != null ? cursor[1] : srcRows;
+        for (int row = -src.getLiveTranscriptRows(); row <= lastRow; ++row) {
+            char[] line = src.getLine(row);
+            boolean wrap = src.getLineWrap(row);
+            if (row == cursorRow) {
+                if (line == null) {
+                    line = blankLine(srcColumns);
+                }
+                copyRow(src, row, line, wrap, srcColumns, cursor[0], aboutToAutoWrap);
+            } else if (line != null) {
+                copyRow(src, row, line, wrap, srcColumns, -1, false);
+            }
+            if (!wrap && row < lastRow) {
+                ++mPendingLinefeeds;
+            }
+        }
+
+        if (cursor == null) {
+            writeLinefeeds();
+            return;
+        }
+        int scrolled = mScrollCount - mMarkScrollCount;
+        if (!mCursorMarked || scrolled > mMarkRow) {
+            // Cursor scrolled off screen -- reset to top left corner
+            cursor[0] = 0;
+            cursor[1] = 0;
+            mMarkAboutToAutoWrap = false;
+        } else {
+            cursor[0] = mMarkCol;
+            cursor[1] = mMarkRow - scrolled;
+        }
+    }
+
+    /**
+     * @return The number of times the new screen scrolled during the copy.
+     */
+    int getScrollCount() {
+        return mScrollCount;
+    }
+
+    /**
+     * @return Whether the next character written at the new cursor location
+     *         should wrap onto a new line first.
+     */
+    boolean isAboutToAutoWrap() {
+        return mMarkAboutToAutoWrap;
+    }
+
+    boolean isJustWrapped() {
+        return mMarkJustWrapped;
+    }
+
+    int getLastEmittedCharWidth() {
+        return mMarkLastEmittedCharWidth;
+    }
+
+    private char[] blankLine(int columns) {
+        if (mBlankLine == null) {
+            mBlankLine = new char[columns];
+            for (int i = 0; i < columns; ++i) {
+                mBlankLine[i] = ' ';
+            }
+        }
+        return mBlankLine;
+    }
+
+    /**
+     * Copy the characters of one row, treating the character at the cursor
+     * column, if any, as part of the text.  This follows
+     * TranscriptScreen.getTranscriptText() in deciding which characters to
+     * copy and which styles they have.
+     */
+    private void copyRow(UnicodeTranscript src, int row, char[] line, boolean wrap,
+            int srcColumns, int cursorCol, boolean cursorAfter) {
+        StyleRow color = src.getLineColor(row);
+        int defaultStyle = src.getDefaultStyle();
+        boolean narrow = src.isBasicLine(row);
+        int lastPrintingChar = -1;
+        int cursorIndex = -1;
+        int cursorOffset = 0;
+        int column = 0;
+        int length = line.length;
+        int i;
+        for (i = 0; i < length; ++i) {
+            char c = line[i];
+            if (c == 0) {
+                break;
+            }
+            if (c != ' ' || styleAt(color, column, srcColumns, defaultStyle) != defaultStyle) {
+                lastPrintingChar = i;
+            }
+            if (!Character.isLowSurrogate(c)) {
+                int width = UnicodeTranscript.charWidth(line, i);
+                if (width != 1) {
+                    narrow = false;
+                }
+                if (cursorIndex < 0 && cursorCol >= column && cursorCol < column + width) {
+                    cursorIndex = i;
+                    cursorOffset = cursorCol - column;
+                }
+                column += width;
+            }
+        }
+
+        int last = Math.max(lastPrintingChar, cursorIndex);
+        if (wrap && last > -1) {
+            // If the line was wrapped, we shouldn't lose trailing space
+            last = i - 1;
+        }
+        if (last < 0) {
+            return;
+        }
+        writeLinefeeds();
+
+        if (cursorIndex < 0) {
+            copyChars(line, 0, last + 1, color, srcColumns, defaultStyle, narrow);
+            return;
+        }
+        copyChars(line, 0, cursorIndex, color, srcColumns, defaultStyle, narrow);
+        if (!wrap && !cursorAfter && cursorIndex > lastPrintingChar) {
+            // Nothing but blanks from the cursor on, which aren't copied
+            markCursor(0, mAboutToAutoWrap);
+            return;
+        }
+        int next = cursorIndex + Character.charCount(Character.codePointAt(line, cursorIndex));
+        while (next <= last && UnicodeTranscript.charWidth(line, next) == 0) {
+            // Combining characters go with the character at the cursor
+            next += Character.charCount(Character.codePointAt(line, next));
+        }
+        if (!cursorAfter) {
+            wrapIfNeeded(UnicodeTranscript.charWidth(line, cursorIndex));
+            markCursor(cursorOffset, false);
+        }
+        copyChars(line, cursorIndex, next, color, srcColumns, defaultStyle, false);
+        if (cursorAfter) {
+            markCursor(0, mAboutToAutoWrap);
+        }
+        copyChars(line, next, last + 1, color, srcColumns, defaultStyle, narrow);
+    }
+
+    private static int styleAt(StyleRow color, int column, int columns, int defaultStyle) {
+        if (color == null || column >= columns) {
+            return defaultStyle;
+        }
+        return color.get(column);
+    }
+
+    /**
+     * Write the characters of a row between two indexes into its char[].
+     *
+     * @param narrow Whether every character is a regular-width BMP character,
+     *        so that indexes and columns are the same.
+     */
+    private void copyChars(char[] line, int start, int end, StyleRow color,
+            int srcColumns, int defaultStyle, boolean narrow) {
+        if (narrow) {
+            while (start < end) {
+                wrapIfNeeded(1);
+                int count = Math.min(end - start, mColumns - mCursorCol);
+                mDst.setChars(mCursorCol, mCursorRow, line, start, count, color, defaultStyle);
+                mJustWrapped = false;
+                mCursorCol += count - 1;
+                advance(1);
+                start += count;
+            }
+            return;
+        }
+
+        int column = 0;
+        for (int i = 0; i < start; ++i) {
+            if (!Character.isLowSurrogate(line[i])) {
+                column += UnicodeTranscript.charWidth(line, i);
+            }
+        }
+        for (int i = start; i < end; ++i) {
+            int codePoint = Character.codePointAt(line, i);
+            int width = UnicodeTranscript.charWidth(codePoint);
+            write(codePoint, width, styleAt(color, column, srcColumns, defaultStyle));
+            column += width;
+            if (Character.charCount(codePoint) == 2) {
+                ++i;
+            }
+        }
+    }
+
+    private void write(int codePoint, int width, int style) {
+        wrapIfNeeded(width);
+        if (width == 0) {
+            // Combining character -- store along with character it modifies
+            int column;
+            int row = mCursorRow;
+            if (mJustWrapped) {
+                column = mColumns - mLastEmittedCharWidth;
+                --row;
+            } else {
+                column = mCursorCol - mLastEmittedCharWidth;
+            }
+            if (column >= 0) {
+                mDst.setChar(column, row, codePoint, style);
+            }
+        } else {
+            mDst.setChar(mCursorCol, mCursorRow, codePoint, style);
+            mJustWrapped = false;
+        }
+        advance(width);
+    }
+
+    private void wrapIfNeeded(int width) {
+        if (mCursorCol == mColumns - 1 && (mAboutToAutoWrap || width == 2)) {
+            mDst.setLineWrap(mCursorRow);
+            mCursorCol = 0;
+            mJustWrapped = true;
+            if (mCursorRow + 1 < mRows) {
+                mCursorRow++;
+            } else {
+                scroll();
+            }
+        }
+    }
+
+    private void advance(int width) {
+        mAboutToAutoWrap = (mCursorCol == mColumns - 1);
+        if (mAboutToAutoWrap) {
+            mDst.setLineWrap(mCursorRow);
+        }
+        mCursorCol = Math.min(mCursorCol + width, mColumns - 1);
+        if (width > 0) {
+            mLastEmittedCharWidth = width;
+        }
+    }
+
+    private void writeLinefeeds() {
+        for (; mPendingLinefeeds > 0; --mPendingLinefeeds) {
+            mCursorCol = 0;
+            mAboutToAutoWrap = false;
+            if (mCursorRow + 1 >= mRows) {
+                scroll();
+            } else {
+                ++mCursorRow;
+            }
+        }
+    }
+
+    private void scroll() {
+        mDst.scroll(0, mRows, mStyle);
+        ++mScrollCount;
+    }
+
+    private void markCursor(int offset, boolean aboutToAutoWrap) {
+        mCursorMarked = true;
+        mMarkRow = mCursorRow;
+        mMarkCol = Math.min(mCursorCol + offset, mColumns - 1);
+        mMarkAboutToAutoWrap = aboutToAutoWrap;
+        mMarkJustWrapped = mJustWrapped;
+        mMarkLastEmittedCharWidth = mLastEmittedCharWidth;
+        mMarkScrollCount = mScrollCount;
+    }
+}
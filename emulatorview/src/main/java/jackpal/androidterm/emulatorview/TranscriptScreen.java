@@ -16,7 +16,7 @@
 
 package jackpal.androidterm.emulatorview;
 
-import java.util.Arrays;
+import java.util.BitSet;
 
 import android.graphics.Canvas;
 import android.text.SpannableString;
@@ -48,6 +48,15 @@ class TranscriptScreen implements Screen {
 
     private UnicodeTranscript mData;
 
+    /**
+     * Rows which scrolled out of mData, kept across resizes.  Null unless
+     * enableColdScrollback() was called and cold scrollback is configured.
+     */
+    private ColdScrollback mCold;
+
+    /** Incremented whenever mData is replaced, which renumbers all rows */
+    private int mGeneration;
+
     /**
      * Create a transcript screen.
      *
@@ -69,6 +78,24 @@ private void init(int columns, int totalRows, int screenRows, int style) {
 
         mData = new UnicodeTranscript(columns, totalRows, screenRows, style);
         mData.blockSet(0, 0, mColumns, mScreenRows, ' ', style);
+        ++mGeneration;
+        if (mCold != null) {
+            mData.attachColdScrollback(mCold);
+        }
+    }
+
+    /**
+     * Keep the rows which scroll out of the transcript in a compressed cold
+     * tier, if one is configured (see {@link
+     * EmulatorView#setColdScrollback}).
+     */
+    void enableColdScrollback() {
+        if (mCold == null && mData != null) {
+            mCold = ColdScrollback.create(mColumns);
+            if (mCold != null) {
+                mData.attachColdScrollback(mCold);
+            }
+        }
     }
 
     public int getTotalRows() {
@@ -88,6 +115,10 @@ public void finish() {
          * memory being leaked down.
          */
         mData = null;
+        if (mCold != null) {
+            mCold.close();
+            mCold = null;
+        }
     }
 
     public void setLineWrap(int row) {
@@ -109,6 +140,10 @@ public void set(int x, int y, byte b, int style) {
         mData.setChar(x, y, b, style);
     }
 
+    public void set(int x, int y, byte[] buffer, int offset, int count, int style) {
+        mData.setChars(x, y, buffer, offset, count, style);
+    }
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
@@ -155,6 +190,9 @@ public void blockSet(int sx, int sy, int w, int h, int val,
         mData.blockSet(sx, sy, w, h, val, style);
     }
 
+    /** A blank cell, for drawing the cursor or a selection on a blank line */
+    private static final char[] BLANK = { ' ' };
+
     static private int mForceFlush = 128;
     static public final void setForceFlush(int chr) {
         mForceFlush = chr;
@@ -177,12 +215,12 @@ static public final void setForceFlush(int chr) {
     public final void drawText(int row, Canvas canvas, float x, float y,
             TextRenderer renderer, int curx, int selx1, int selx2, String imeText, int cursorMode, SpannableString imeSpannableString) {
         char[] line;
-        int cx = imeText.length() > 0 ? -1 : curx;
         StyleRow color;
-        int cursorWidth = 1;
+        int defaultStyle;
         try {
             line = mData.getLine(row);
             color = mData.getLineColor(row);
+            defaultStyle = mData.getDefaultStyle();
         } catch (IllegalArgumentException e) {
             // Out-of-bounds rows are blank.
             return;
@@ -191,31 +229,44 @@ public final void drawText(int row, Canvas canvas, float x, float y,
             // XXX Figure out why this happens on Honeycomb
             return;
         }
-        int defaultStyle = mData.getDefaultStyle();
+        drawText(line, color, defaultStyle, mColumns, canvas, x, y, renderer,
+                curx, selx1, selx2, imeText, cursorMode, imeSpannableString);
+    }
+
+    /**
+     * Draw a row of text whose contents were fetched beforehand, for example
+     * from a {@link ScreenSnapshot}.
+     *
+     * @param line The characters of the row, or null if the row is blank.
+     * @param color The styles of the row.
+     * @param defaultStyle The style used for blank cells.
+     * @param columns The width of the row, in columns.
+     * @see #drawText(int, Canvas, float, float, TextRenderer, int, int, int, String, int, SpannableString)
+     */
+    final void drawText(char[] line, StyleRow color, int defaultStyle,
+            int columns, Canvas canvas, float x, float y,
+            TextRenderer renderer, int curx, int selx1, int selx2, String imeText, int cursorMode, SpannableString imeSpannableString) {
+        int cx = imeText.length() > 0 ? -1 : curx;
+        int cursorWidth = 1;
 
         if (line == null) {
             // Line is blank.
             if (selx1 != selx2) {
                 // We need to draw a selection
-                char[] blank = new char[selx2-selx1];
-                Arrays.fill(blank, ' ');
                 renderer.drawTextRun(canvas, x, y, selx1, selx2-selx1,
-                                blank, 0, 1, true, defaultStyle,
+                                BLANK, 0, 1, true, defaultStyle,
                                 cx, 0, 1, 1, cursorMode);
             }
             if (cx != -1) {
-                char[] blank = new char[1];
-                Arrays.fill(blank, ' ');
                 // We need to draw the cursor
                 renderer.drawTextRun(canvas, x, y, cx, 1,
-                        blank, 0, 1, true, defaultStyle,
+                        BLANK, 0, 1, true, defaultStyle,
                         cx, 0, 1, 1, cursorMode);
             }
 
             return;
         }
 
-        int columns = mColumns;
         int lineLen = line.length;
         int lastStyle = 0;
         boolean lastSelectionStyle = false;
@@ -317,14 +368,15 @@ public final void drawText(int row, Canvas canvas, float x, float y,
                     textStyle = TextStyle.fxNormal;
                 }
 
-                renderer.drawTextRun(canvas, x, y, imePosition, imeLength, imeText.toCharArray(),
+                renderer.drawTextRun(canvas, x, y, imePosition, wimeLength, imeText.toCharArray(),
                         imeOffset, imeLength, selectionStyle, TextStyle.encode(fg, bg, textStyle),
                         -1, 0, 0, 0, 0);
                 if (underline > 0) {
                     imeText = imeText.substring(0, underline);
                     int uimeLength = Math.min(columns, imeText.length());
                     int uimeOffset = imeText.length() - uimeLength;
-                    renderer.drawTextRun(canvas, x, y, imePosition, imeLength, imeText.toCharArray(),
+                    renderer.drawTextRun(canvas, x, y, imePosition,
+                            Math.min(columns, getStringWidth(imeText)), imeText.toCharArray(),
                             uimeOffset, uimeLength, selectionStyle, TextStyle.encode(fg, bg, TextStyle.fxUnderline),
                             -1, 0, 0, 0, 0);
                 }
@@ -337,7 +389,7 @@ public final void drawText(int row, Canvas canvas, float x, float y,
                     bg = 0x00;
                     effect |= TextStyle.fxImeBackground;
                 }
-                renderer.drawTextRun(canvas, x, y, imePosition, imeLength, imeText.toCharArray(),
+                renderer.drawTextRun(canvas, x, y, imePosition, wimeLength, imeText.toCharArray(),
                         imeOffset, imeLength, true, TextStyle.encode(fg, bg, effect),
                         -1, 0, 0, 0, 0);
                 TextPaint paint = new TextPaint();
@@ -371,7 +423,8 @@ public final void drawText(int row, Canvas canvas, float x, float y,
 
                     textStyle += TextStyle.fxIme;
                     renderer.setImePaint(paint);
-                    renderer.drawTextRun(canvas, x+ofsx, y, imePosition, uimeLength, imeSubText.toCharArray(),
+                    renderer.drawTextRun(canvas, x+ofsx, y, imePosition,
+                            Math.min(columns, getStringWidth(imeSubText)), imeSubText.toCharArray(),
                             uimeOffset, uimeLength, true, TextStyle.encode(0x0f, 0x00, textStyle),
                             -1, 0, 0, 0, 0);
                 }
@@ -443,6 +496,20 @@ public int getActiveTranscriptRows() {
         return mData.getActiveTranscriptRows();
     }
 
+    /**
+     * Add the screen rows changed since the last call to the given set, and
+     * start tracking changes afresh.  Changes to the scrollback are not
+     * tracked; they only happen when the screen scrolls, which dirties the
+     * scrolled rows anyway.
+     *
+     * @param rows The set to which the changed rows are added.
+     */
+    public void takeDirtyRows(BitSet rows) {
+        if (mData != null) {
+            mData.takeDirtyRows(rows);
+        }
+    }
+
     public String getTranscriptScreenText() {
         return internalGetTranscriptText(null, 0, 0, mColumns, mScreenRows);
     }
@@ -503,41 +570,12 @@ private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int
                 continue;
             }
             int defaultColor = mData.getDefaultStyle();
-            int lastPrintingChar = -1;
-            int lineLen = line.length;
-            int i;
-            int column = 0;
-            for (i = 0; i < lineLen; ++i) {
-                char c = line[i];
-                if (c == 0) {
-                    break;
-                }
-
-                int style = defaultColor;
-                try {
-                    if (rowColorBuffer != null) {
-                        style = rowColorBuffer.get(column);
-                    }
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    // XXX This probably shouldn't happen ...
-                    style = defaultColor;
-                }
-
-                if (c != ' ' || style != defaultColor) {
-                    lastPrintingChar = i;
-                }
-                if (!Character.isLowSurrogate(c)) {
-                    column += UnicodeTranscript.charWidth(line, i);
-                }
-            }
-            if (data.getLineWrap(row) && lastPrintingChar > -1 && x2 == columns) {
-                // If the line was wrapped, we shouldn't lose trailing space
-                lastPrintingChar = i - 1;
-            }
+            int lastPrintingChar = lastPrintingChar(line, rowColorBuffer,
+                    defaultColor, data.getLineWrap(row) && x2 == columns);
             builder.append(line, 0, lastPrintingChar + 1);
             if (colors != null) {
                 if (rowColorBuffer != null) {
-                    column = 0;
+                    int column = 0;
                     for (int j = 0; j <= lastPrintingChar; ++j) {
                         colors.append(rowColorBuffer.get(column));
                         column += UnicodeTranscript.charWidth(line, j);
@@ -565,6 +603,150 @@ private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int
         return builder.toString();
     }
 
+    /**
+     * Find the last character of a row which should be copied out of it:
+     * trailing blanks in the default style are dropped, unless the row wraps
+     * onto the next one.
+     *
+     * @return The index into line of the last character, or -1 if there are
+     *         none.
+     */
+    private static int lastPrintingChar(char[] line, StyleRow color,
+            int defaultStyle, boolean wrap) {
+        int lastPrintingChar = -1;
+        int lineLen = line.length;
+        int i;
+        int column = 0;
+        for (i = 0; i < lineLen; ++i) {
+            char c = line[i];
+            if (c == 0) {
+                break;
+            }
+
+            int style = defaultStyle;
+            try {
+                if (color != null) {
+                    style = color.get(column);
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // XXX This probably shouldn't happen ...
+                style = defaultStyle;
+            }
+
+            if (c != ' ' || style != defaultStyle) {
+                lastPrintingChar = i;
+            }
+            if (!Character.isLowSurrogate(c)) {
+                column += UnicodeTranscript.charWidth(line, i);
+            }
+        }
+        if (wrap && lastPrintingChar > -1) {
+            // If the line was wrapped, we shouldn't lose trailing space
+            lastPrintingChar = i - 1;
+        }
+        return lastPrintingChar;
+    }
+
+    /**
+     * Append the text of a range of rows to a StringBuilder, as
+     * getTranscriptText() does for the whole transcript, so that the
+     * transcript can be copied out a few rows at a time.  A newline follows
+     * each row which doesn't wrap, except the last row of the text.
+     *
+     * @param builder The StringBuilder to append to.
+     * @param startRow The first row to append.
+     * @param endRow The row after the last row to append.
+     * @param last Whether the last row appended ends the text.
+     * @param style If not -1, the text is marked up with SGR escape
+     *        sequences, and this is the style in effect at the end of the
+     *        text already written.
+     * @return The style in effect at the end of the appended text, or -1.
+     */
+    int appendTranscriptRows(StringBuilder builder, int startRow, int endRow,
+            boolean last, int style) {
+        UnicodeTranscript data = mData;
+        int defaultStyle = data.getDefaultStyle();
+        for (int row = startRow; row < endRow; row++) {
+            char[] line = data.getLine(row);
+            boolean wrap = data.getLineWrap(row);
+            if (line != null) {
+                // As in getTranscriptText(), styles only matter when kept
+                StyleRow color = style != -1 ? data.getLineColor(row) : null;
+                int end = lastPrintingChar(line, color, defaultStyle, wrap) + 1;
+                if (style == -1) {
+                    builder.append(line, 0, end);
+                } else {
+                    int column = 0;
+                    for (int i = 0; i < end; i++) {
+                        char c = line[i];
+                        if (!Character.isLowSurrogate(c)) {
+                            int charStyle = color != null && column < mColumns
+                                    ? color.get(column) : defaultStyle;
+                            if (charStyle != style) {
+                                appendSGR(builder, charStyle);
+                                style = charStyle;
+                            }
+                            column += UnicodeTranscript.charWidth(line, i);
+                        }
+                        builder.append(c);
+                    }
+                }
+            }
+            if (!wrap && (row < endRow - 1 || !last)) {
+                if (style != -1 && style != defaultStyle) {
+                    // Don't carry colors past the end of the line
+                    appendSGR(builder, defaultStyle);
+                    style = defaultStyle;
+                }
+                builder.append('\n');
+            }
+        }
+        return style;
+    }
+
+    /**
+     * Append an SGR escape sequence which selects a style from scratch.
+     */
+    static void appendSGR(StringBuilder builder, int style) {
+        builder.append("\033[0");
+        int effect = TextStyle.decodeEffect(style);
+        if ((effect & TextStyle.fxBold) != 0) {
+            builder.append(";1");
+        }
+        if ((effect & TextStyle.fxItalic) != 0) {
+            builder.append(";3");
+        }
+        if ((effect & TextStyle.fxUnderline) != 0) {
+            builder.append(";4");
+        }
+        if ((effect & TextStyle.fxBlink) != 0) {
+            builder.append(";5");
+        }
+        if ((effect & TextStyle.fxInverse) != 0) {
+            builder.append(";7");
+        }
+        if ((effect & TextStyle.fxInvisible) != 0) {
+            builder.append(";8");
+        }
+        appendSGRColor(builder, TextStyle.decodeForeColor(style), 30);
+        appendSGRColor(builder, TextStyle.decodeBackColor(style), 40);
+        builder.append('m');
+    }
+
+    /**
+     * @param base 30 for a foreground color, 40 for a background color.
+     */
+    private static void appendSGRColor(StringBuilder builder, int color, int base) {
+        if (color < 8) {
+            builder.append(';').append(base + color);
+        } else if (color < 16) {
+            builder.append(';').append(base + 60 + color - 8);
+        } else if (color < 256) {
+            builder.append(';').append(base + 8).append(";5;").append(color);
+        }
+        // Anything else is the default color, which SGR 0 already selected
+    }
+
     public boolean fastResize(int columns, int rows, int[] cursor) {
         if (mData == null) {
             // XXX Trying to resize a finished TranscriptScreen?
@@ -587,6 +769,28 @@ public void resize(int columns, int rows, int style) {
         init(columns, mTotalRows, rows, style);
     }
 
+    /**
+     * Resize the screen, rewrapping the lines of the screen and of the part
+     * of the transcript which is not in the cold tier to the new width.
+     * Rows in the cold tier are kept as they are.
+     *
+     * @param cursor An int[2] containing the cursor location, which is
+     *        updated with the new location, or null; see {@link
+     *        TranscriptReflow#copy}.
+     * @param aboutToAutoWrap Whether the cursor is waiting to wrap.
+     * @return The reflow, which tells where the cursor ended up.
+     */
+    TranscriptReflow reflow(int columns, int rows, int style, int[] cursor,
+            boolean aboutToAutoWrap) {
+        UnicodeTranscript src = mData;
+        int srcColumns = mColumns;
+        int srcRows = mScreenRows;
+        resize(columns, rows, style);
+        TranscriptReflow reflow = new TranscriptReflow(mData, columns, rows, style);
+        reflow.copy(src, srcColumns, srcRows, cursor, aboutToAutoWrap);
+        return reflow;
+    }
+
     /**
      *
      * Return the UnicodeTranscript line at this row index.
@@ -609,6 +813,56 @@ char[] getScriptLine(int row)
         }
     }
 
+    /**
+     * Return the style information of the UnicodeTranscript line at this
+     * row index.
+     * @param row The row index to be queried
+     * @return The styles of this row, or null if the row does not exist
+     */
+    StyleRow getScriptLineColor(int row)
+    {
+        try
+        {
+            return mData.getLineColor(row);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+        catch (NullPointerException e)
+        {
+            return null;
+        }
+    }
+
+    int getDefaultStyle() {
+        return mData != null ? mData.getDefaultStyle() : TextStyle.kNormalTextStyle;
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * @see UnicodeTranscript#getScrolledRows
+     */
+    long getScrolledRows() {
+        return mData.getScrolledRows();
+    }
+
+    /**
+     * @return A number which changes whenever the rows of this screen are
+     *         rebuilt from scratch (by a resize which changes the number of
+     *         columns), invalidating any row numbers from getScrolledRows().
+     */
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    int getScreenRows() {
+        return mScreenRows;
+    }
+
     /**
      * Get the line wrap status of the row provided.
      * @param row The row to check for line-wrap status
@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import android.os.Handler;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A search of the transcript of a session, run on a thread of its own.
+ * <p>
+ * The transcript is read a bounded number of rows at a time while holding
+ * the emulator lock, so neither the emulator nor the UI thread waits on the
+ * search for long, and the text of the whole transcript is never built.
+ * Wrapped rows are joined into logical lines before matching, so matches
+ * can span rows.
+ * <p>
+ * Rows are identified by their absolute number ({@link
+ * TranscriptScreen#getScrolledRows} plus the row), which doesn't change as
+ * output scrolls the screen.  The search starts at the screen and works up
+ * towards the oldest row, while the rows of the screen are searched again
+ * whenever new output arrives.
+ */
+final class TranscriptSearch implements Runnable {
+    /** Rows read from the transcript each time the emulator lock is taken */
+    private static final int CHUNK_ROWS = 256;
+    /** Wrapped rows beyond which a logical line is searched in pieces */
+    private static final int MAX_LINE_ROWS = 256;
+
+    private static final int OK = 0;
+    /** The rows were rebuilt or the screen switched; start over */
+    private static final int RESET = 1;
+    /** The session has finished */
+    private static final int STOPPED = 2;
+
+    /**
+     * A match, from a column of its first row up to (not including) a column
+     * of its last row.
+     */
+    static final class Match {
+        final long mStartRow;
+        final int mStartColumn;
+        final long mEndRow;
+        final int mEndColumn;
+
+        Match(long startRow, int startColumn, long endRow, int endColumn) {
+            mStartRow = startRow;
+            mStartColumn = startColumn;
+            mEndRow = endRow;
+            mEndColumn = endColumn;
+        }
+    }
+
+    private final TermSession mSession;
+    private final Pattern mPattern;
+    private final SearchCallback mCallback;
+    private final Handler mHandler;
+
+    // Guarded by this
+    /** The matches found so far, in order */
+    private final ArrayList<Match> mMatches = new ArrayList<Match>();
+    private int mCurrent = -1;
+    private TranscriptScreen mSearchedScreen;
+    private boolean mChanged;
+    private boolean mStopped;
+    private boolean mDone;
+    private boolean mUpdatePosted;
+
+    // Only used by the search thread
+    private TranscriptScreen mScreen;
+    private int mGeneration;
+    /** Rows from mOldestScanned up to here have been searched for good */
+    private long mStableEnd;
+    private long mOldestScanned;
+    private boolean mReachedTop;
+
+    /** The text of the rows read, with the cells each char came from */
+    private char[] mText = new char[4096];
+    private long[] mCharRow = new long[4096];
+    private int[] mCharStart = new int[4096];
+    private int[] mCharEnd = new int[4096];
+    private int mLength;
+    /** The end of each logical line in mText */
+    private final GrowableIntArray mLineEnds = new GrowableIntArray(CHUNK_ROWS);
+    private final ArrayList<Match> mFound = new ArrayList<Match>();
+
+    private final Runnable mNotify = new Runnable() {
+        public void run() {
+            int matches;
+            boolean done;
+            synchronized (TranscriptSearch.this) {
+                mUpdatePosted = false;
+                if (mStopped) {
+                    return;
+                }
+                matches = mMatches.size();
+                done = mDone;
+            }
+            mCallback.onSearchUpdate(matches, done);
+        }
+    };
+
+    /**
+     * @param session The session whose transcript to search.
+     * @param pattern The pattern to search for.
+     * @param callback Told about the progress of the search, on the thread
+     *        of the handler.
+     * @param handler A handler for the UI thread.
+     */
+    TranscriptSearch(TermSession session, Pattern pattern,
+            SearchCallback callback, Handler handler) {
+        mSession = session;
+        mPattern = pattern;
+        mCallback = callback;
+        mHandler = handler;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "TranscriptSearch");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stop searching.  No callbacks are made after this returns.
+     */
+    synchronized void stop() {
+        mStopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Tell the search that the screen has changed, so that it searches the
+     * rows of the screen again.
+     */
+    synchronized void onTranscriptChanged() {
+        mChanged = true;
+        notifyAll();
+    }
+
+    synchronized int getMatchCount() {
+        return mMatches.size();
+    }
+
+    /**
+     * @return Whether the whole transcript has been searched, as last told
+     *         to the callback.
+     */
+    synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Make the match before or after the current one current, wrapping
+     * around at either end.  If there is no current match yet, the newest
+     * match becomes current.
+     *
+     * @param direction -1 for an older match, 1 for a newer one.
+     * @return The new current match, or null if nothing has matched.
+     */
+    synchronized Match select(int direction) {
+        int size = mMatches.size();
+        if (size == 0) {
+            return null;
+        }
+        if (mCurrent < 0) {
+            mCurrent = size - 1;
+        } else {
+            mCurrent = (mCurrent + direction + size) % size;
+        }
+        return mMatches.get(mCurrent);
+    }
+
+    /**
+     * Find the highlighted cells of a row.
+     *
+     * @param screen The screen being drawn.
+     * @param row The absolute number of the row.
+     * @param columns The number of columns of the row.
+     * @param out Cleared, then given a (start column, end column, current)
+     *        triple for each match on the row, current being 1 for the
+     *        current match and 0 otherwise.
+     */
+    synchronized void getHighlights(TranscriptScreen screen, long row,
+            int columns, GrowableIntArray out) {
+        out.clear();
+        if (screen != mSearchedScreen) {
+            return;
+        }
+        ArrayList<Match> matches = mMatches;
+        // Matches don't overlap, so their ends are in order too
+        int low = 0;
+        int high = matches.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (matches.get(mid).mEndRow < row) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < matches.size(); i++) {
+            Match match = matches.get(i);
+            if (match.mStartRow > row) {
+                break;
+            }
+            out.append(match.mStartRow == row ? match.mStartColumn : 0);
+            out.append(match.mEndRow == row ? match.mEndColumn : columns);
+            out.append(i == mCurrent ? 1 : 0);
+        }
+    }
+
+    public void run() {
+        boolean reset = true;
+        while (true) {
+            boolean changed;
+            synchronized (this) {
+                while (!mStopped && !reset && !mChanged && mReachedTop) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mStopped) {
+                    return;
+                }
+                changed = mChanged;
+                mChanged = false;
+            }
+
+            int status;
+            if (reset) {
+                status = begin();
+                if (status == OK) {
+                    status = refresh();
+                }
+            } else {
+                status = changed ? refresh() : OK;
+                // Keep working up the transcript even if output keeps coming
+                if (status == OK && !mReachedTop) {
+                    status = scanOlder();
+                }
+            }
+            if (status == STOPPED) {
+                synchronized (this) {
+                    mDone = true;
+                }
+                postUpdate();
+                return;
+            }
+            reset = (status == RESET);
+            synchronized (this) {
+                mDone = mReachedTop;
+            }
+            postUpdate();
+        }
+    }
+
+    private void postUpdate() {
+        synchronized (this) {
+            if (mUpdatePosted || mStopped) {
+                return;
+            }
+            mUpdatePosted = true;
+        }
+        mHandler.post(mNotify);
+    }
+
+    /**
+     * Start a search of the current screen from scratch.
+     */
+    private int begin() {
+        long start;
+        synchronized (mSession.getEmulatorLock()) {
+            TerminalEmulator emulator = mSession.getEmulator();
+            if (!mSession.isRunning() || emulator == null) {
+                return STOPPED;
+            }
+            mScreen = emulator.getScreen();
+            mGeneration = mScreen.getGeneration();
+            long scrolled = mScreen.getScrolledRows();
+            start = lineStart(scrolled, scrolled - mScreen.getActiveTranscriptRows(), scrolled);
+        }
+        mStableEnd = start;
+        mOldestScanned = start;
+        mReachedTop = false;
+        synchronized (this) {
+            mMatches.clear();
+            mCurrent = -1;
+            mSearchedScreen = mScreen;
+        }
+        return OK;
+    }
+
+    /**
+     * Called with the emulator lock held.
+     */
+    private int check() {
+        TerminalEmulator emulator = mSession.getEmulator();
+        if (!mSession.isRunning() || emulator == null) {
+            return STOPPED;
+        }
+        if (emulator.getScreen() != mScreen || mScreen.getGeneration() != mGeneration) {
+            return RESET;
+        }
+        return OK;
+    }
+
+    /**
+     * Search the rows from mStableEnd to the bottom of the screen, replacing
+     * the matches previously found there.
+     */
+    private int refresh() {
+        long from = mStableEnd;
+        boolean first = true;
+        while (true) {
+            long end;
+            long bottom;
+            long stable;
+            long oldest;
+            synchronized (mSession.getEmulatorLock()) {
+                int status = check();
+                if (status != OK) {
+                    return status;
+                }
+                TranscriptScreen screen = mScreen;
+                long scrolled = screen.getScrolledRows();
+                oldest = scrolled - screen.getActiveTranscriptRows();
+                bottom = scrolled + screen.getScreenRows();
+                if (from < oldest) {
+                    from = oldest;
+                } else if (from > scrolled) {
+                    // The screen grew, taking back rows from the transcript
+                    from = lineStart(scrolled, oldest, scrolled);
+                }
+                end = Math.min(bottom, from + CHUNK_ROWS);
+                while (end < bottom && end - from < CHUNK_ROWS + MAX_LINE_ROWS
+                        && isWrapped(end - 1, scrolled)) {
+                    ++end;
+                }
+                readRows(from, end, scrolled);
+                if (end <= scrolled) {
+                    stable = end;
+                } else {
+                    // The rows of the screen may still change
+                    stable = Math.max(from, lineStart(scrolled, from, scrolled));
+                }
+            }
+            findMatches();
+            synchronized (this) {
+                if (first) {
+                    removeFrom(from);
+                }
+                removeBefore(oldest);
+                mMatches.addAll(mFound);
+                if (mCurrent >= mMatches.size()) {
+                    mCurrent = -1;
+                }
+            }
+            first = false;
+            mStableEnd = stable;
+            if (mOldestScanned < oldest) {
+                mOldestScanned = oldest;
+            }
+            if (end >= bottom) {
+                return OK;
+            }
+            from = end;
+        }
+    }
+
+    /**
+     * Search the rows above those searched so far.
+     */
+    private int scanOlder() {
+        long start;
+        long oldest;
+        synchronized (mSession.getEmulatorLock()) {
+            int status = check();
+            if (status != OK) {
+                return status;
+            }
+            long scrolled = mScreen.getScrolledRows();
+            oldest = scrolled - mScreen.getActiveTranscriptRows();
+            long end = mOldestScanned;
+            if (end <= oldest) {
+                mReachedTop = true;
+                return OK;
+            }
+            start = Math.max(oldest, end - CHUNK_ROWS);
+            while (start > oldest && end - start < CHUNK_ROWS + MAX_LINE_ROWS
+                    && isWrapped(start - 1, scrolled)) {
+                --start;
+            }
+            readRows(start, end, scrolled);
+        }
+        findMatches();
+        synchronized (this) {
+            removeBefore(oldest);
+            mMatches.addAll(0, mFound);
+            if (mCurrent >= 0) {
+                mCurrent += mFound.size();
+            }
+        }
+        mOldestScanned = start;
+        mReachedTop = (start <= oldest);
+        return OK;
+    }
+
+    /**
+     * Forget the matches starting at or after a row.  Called with this
+     * locked.
+     */
+    private void removeFrom(long row) {
+        int size = mMatches.size();
+        int keep = size;
+        while (keep > 0 && mMatches.get(keep - 1).mStartRow >= row) {
+            --keep;
+        }
+        mMatches.subList(keep, size).clear();
+    }
+
+    /**
+     * Forget the matches starting before a row, which has dropped out of
+     * the transcript.  Called with this locked.
+     */
+    private void removeBefore(long row) {
+        int drop = 0;
+        while (drop < mMatches.size() && mMatches.get(drop).mStartRow < row) {
+            ++drop;
+        }
+        if (drop == 0) {
+            return;
+        }
+        mMatches.subList(0, drop).clear();
+        mCurrent = (mCurrent >= drop) ? mCurrent - drop : -1;
+    }
+
+    private boolean isWrapped(long row, long scrolled) {
+        return mScreen.getScriptLineWrap((int) (row - scrolled));
+    }
+
+    /**
+     * Find the first row of the logical line which a row belongs to, looking
+     * no further up than a given row.  Called with the emulator lock held.
+     */
+    private long lineStart(long row, long limit, long scrolled) {
+        long start = row;
+        while (start > limit && row - start < MAX_LINE_ROWS
+                && isWrapped(start - 1, scrolled)) {
+            --start;
+        }
+        return start;
+    }
+
+    /**
+     * Copy the text of a range of rows, which starts a logical line, into
+     * mText.  Called with the emulator lock held.
+     */
+    private void readRows(long first, long end, long scrolled) {
+        TranscriptScreen screen = mScreen;
+        int columns = screen.getColumns();
+        mLength = 0;
+        mLineEnds.clear();
+        for (long row = first; row < end; row++) {
+            int extRow = (int) (row - scrolled);
+            char[] line = screen.getScriptLine(extRow);
+            boolean wrap = screen.getScriptLineWrap(extRow);
+            if (line != null) {
+                ensureCapacity(mLength + line.length);
+                if (screen.isBasicLine(extRow)) {
+                    appendBasic(line, columns, row);
+                } else {
+                    appendFull(line, columns, row);
+                }
+            }
+            if (!wrap || row == end - 1) {
+                // Trailing blanks aren't part of the line
+                int lineStart = mLineEnds.length() > 0 ? mLineEnds.at(mLineEnds.length() - 1) : 0;
+                while (mLength > lineStart && mText[mLength - 1] == ' ') {
+                    --mLength;
+                }
+                mLineEnds.append(mLength);
+            }
+        }
+    }
+
+    private void appendBasic(char[] line, int columns, long row) {
+        int length = Math.min(columns, line.length);
+        int pos = mLength;
+        for (int i = 0; i < length && line[i] != 0; i++) {
+            mText[pos] = line[i];
+            mCharRow[pos] = row;
+            mCharStart[pos] = i;
+            mCharEnd[pos] = i + 1;
+            ++pos;
+        }
+        mLength = pos;
+    }
+
+    private void appendFull(char[] line, int columns, long row) {
+        int pos = mLength;
+        int column = 0;
+        int cellStart = 0;
+        int cellEnd = 0;
+        int i = 0;
+        while (i < line.length && line[i] != 0 && column <= columns) {
+            int codePoint = Character.codePointAt(line, i);
+            int count = Character.charCount(codePoint);
+            int width = UnicodeTranscript.charWidth(codePoint);
+            if (width > 0 || pos == mLength) {
+                cellStart = column;
+                cellEnd = column + Math.max(width, 1);
+                column = cellEnd;
+            }
+            // Combining characters share the cell of the one before them
+            for (int j = 0; j < count && i + j < line.length; j++) {
+                mText[pos] = line[i + j];
+                mCharRow[pos] = row;
+                mCharStart[pos] = cellStart;
+                mCharEnd[pos] = Math.min(cellEnd, columns);
+                ++pos;
+            }
+            i += count;
+        }
+        mLength = pos;
+    }
+
+    private void ensureCapacity(int length) {
+        if (length <= mText.length) {
+            return;
+        }
+        int capacity = Math.max(length, mText.length * 2);
+        char[] text = new char[capacity];
+        System.arraycopy(mText, 0, text, 0, mLength);
+        mText = text;
+        long[] charRow = new long[capacity];
+        System.arraycopy(mCharRow, 0, charRow, 0, mLength);
+        mCharRow = charRow;
+        int[] charStart = new int[capacity];
+        System.arraycopy(mCharStart, 0, charStart, 0, mLength);
+        mCharStart = charStart;
+        int[] charEnd = new int[capacity];
+        System.arraycopy(mCharEnd, 0, charEnd, 0, mLength);
+        mCharEnd = charEnd;
+    }
+
+    /**
+     * Match the logical lines read by readRows() against the pattern,
+     * leaving the matches in mFound.
+     */
+    private void findMatches() {
+        mFound.clear();
+        Matcher matcher = mPattern.matcher(CharBuffer.wrap(mText, 0, mLength));
+        int start = 0;
+        for (int i = 0; i < mLineEnds.length(); i++) {
+            int end = mLineEnds.at(i);
+            if (end > start) {
+                matcher.region(start, end);
+                while (matcher.find()) {
+                    int first = matcher.start();
+                    int last = matcher.end() - 1;
+                    if (last < first) {
+                        // Empty matches can't be shown
+                        continue;
+                    }
+                    mFound.add(new Match(mCharRow[first], mCharStart[first],
+                            mCharRow[last], mCharEnd[last]));
+                }
+            }
+            start = end;
+        }
+    }
+}
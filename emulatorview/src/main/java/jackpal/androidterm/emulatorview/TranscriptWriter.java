@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the transcript of a session out, a bounded number of rows at a
+ * time, so that the memory used doesn't depend on the size of the
+ * scrollback.
+ * <p>
+ * The emulator lock is only held while a chunk of rows is copied into a
+ * buffer, never while writing, so a slow destination doesn't hold up the
+ * emulator.  Rows are identified by their absolute number ({@link
+ * TranscriptScreen#getScrolledRows} plus the row), so output which arrives
+ * meanwhile doesn't make rows be skipped or written twice.  The text ends
+ * at the bottom of the screen as it was when writing started.
+ * <p>
+ * If the session finishes partway, its transcript is gone, and only the rows
+ * written so far are kept.
+ */
+final class TranscriptWriter {
+    /** Rows read from the transcript each time the emulator lock is taken */
+    private static final int CHUNK_ROWS = 256;
+
+    private final TermSession mSession;
+    private final boolean mStyled;
+    private final StringBuilder mBuffer = new StringBuilder();
+
+    /**
+     * @param session The session whose transcript to write.
+     * @param styled Whether to keep the styles of the text, as SGR escape
+     *        sequences.
+     */
+    TranscriptWriter(TermSession session, boolean styled) {
+        mSession = session;
+        mStyled = styled;
+    }
+
+    /**
+     * @return Whether the whole transcript was written, or false if the
+     *         session finished first.
+     */
+    boolean writeTo(Writer out) throws IOException {
+        TranscriptScreen screen = null;
+        int generation = 0;
+        long next = 0;
+        long end = 0;
+        int style = -1;
+        int defaultStyle = -1;
+        boolean complete = false;
+        while (!complete) {
+            StringBuilder buffer = mBuffer;
+            buffer.setLength(0);
+            synchronized (mSession.getEmulatorLock()) {
+                TranscriptScreen current = mSession.getTranscriptScreen();
+                if (!mSession.isRunning() || current == null) {
+                    break;
+                }
+                long scrolled = current.getScrolledRows();
+                long bottom = scrolled + current.getScreenRows();
+                if (screen == null) {
+                    next = scrolled - current.getActiveTranscriptRows();
+                    end = bottom;
+                    defaultStyle = current.getDefaultStyle();
+                    style = mStyled ? defaultStyle : -1;
+                } else if (current != screen || current.getGeneration() != generation) {
+                    // The rows were rebuilt by a resize; carry on with the
+                    // screen, as we can't tell which rows are left to write
+                    next = scrolled;
+                    end = bottom;
+                }
+                screen = current;
+                generation = current.getGeneration();
+
+                // Rows may have dropped off the top of the transcript, or off
+                // the bottom of the screen in a resize which kept the rows
+                next = Math.max(next, scrolled - current.getActiveTranscriptRows());
+                end = Math.min(end, bottom);
+                long stop = Math.min(end, next + CHUNK_ROWS);
+                complete = stop >= end;
+                if (next < stop) {
+                    style = current.appendTranscriptRows(buffer,
+                            (int) (next - scrolled), (int) (stop - scrolled), complete, style);
+                }
+                next = stop;
+            }
+            out.append(buffer);
+        }
+        if (mStyled && style != defaultStyle) {
+            mBuffer.setLength(0);
+            TranscriptScreen.appendSGR(mBuffer, defaultStyle);
+            out.append(mBuffer);
+        }
+        out.flush();
+        return complete;
+    }
+}
@@ -16,6 +16,8 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.util.BitSet;
+
 import android.os.Build;
 import android.util.Log;
 
@@ -39,6 +41,15 @@
  * requires a "full" row.  "Basic" rows are converted to "full" rows when
  * needed.  There is no conversion in the other direction -- a "full" row
  * stays that way even if it contains only regular-width BMP characters.
+ *
+ * Once a row scrolls off the screen into the transcript, it is packed into a
+ * CompactRowStore (unless compact scrollback is disabled), and unpacked again
+ * on demand when it is read, modified or scrolled back onto the screen.
+ *
+ * If a ColdScrollback is attached, rows pushed out of the top of the circular
+ * buffer are archived in it instead of being lost.  Its rows come before the
+ * rest of the transcript in the external coordinate system, and are
+ * read-only.
  */
 class UnicodeTranscript {
     private static final String TAG = "UnicodeTranscript";
@@ -54,11 +65,45 @@ class UnicodeTranscript {
 
     private int mScreenFirstRow = 0;
 
+    /**
+     * How far the top of the screen has moved down since this transcript was
+     * created, so that getScrolledRows() + row numbers a row independently
+     * of later scrolling.
+     */
+    private long mScrolledRows = 0;
+
+    /**
+     * Screen rows (in the external coordinate system) whose contents changed
+     * since the last call to takeDirtyRows().
+     */
+    private final BitSet mDirtyRows = new BitSet();
+
     private char[] tmpLine;
     private final StyleRow tmpColor;
 
+    /**
+     * Rows which have scrolled off the screen are packed into this store,
+     * which is created when the first row is packed.  Packed rows have null
+     * entries in mLines and mColor.
+     */
+    private CompactRowStore mPacked;
+    private final boolean mCompact;
+    // Scratch rows into which packed rows are unpacked for reading
+    private char[] mPackedLine;
+    private FullUnicodeLine mPackedFullLine;
+    private StyleRow mPackedColor;
+    private StyleRow mPackedSolidColor;
+    // Storage of the last row packed, recycled for the next new row
+    private char[] mSpareLine;
+    private StyleRow mSpareColor;
+
+    /** Rows which were pushed out of the circular buffer, or null */
+    private ColdScrollback mCold;
+
     private static int mAmbiWidthMode = 1;
     private static int mAmbiWidth = 1;
+    private static CharWidthTable mWidthTable = new CharWidthTable(false);
+    private static boolean mCompactScrollback = true;
 
     public UnicodeTranscript(int columns, int totalRows, int screenRows, int defaultStyle) {
         mColumns = columns;
@@ -68,17 +113,33 @@ public UnicodeTranscript(int columns, int totalRows, int screenRows, int default
         mColor = new StyleRow[totalRows];
         mLineWrap = new boolean[totalRows];
         tmpColor = new StyleRow(defaultStyle, mColumns);
+        mCompact = mCompactScrollback && totalRows > screenRows;
 
         mDefaultStyle = defaultStyle;
+        mDirtyRows.set(0, screenRows);
     }
 
     public static void setAmbiWidth(int width) {
         mAmbiWidthMode = width;
         mAmbiWidth = mAmbiWidthMode > 1 ? 2 : 1;
+        boolean unicode9 = (mAmbiWidthMode == 3);
+        if (mWidthTable.isUnicode9() != unicode9) {
+            mWidthTable = new CharWidthTable(unicode9);
+        }
+    }
+
+    /**
+     * Whether transcripts created from now on keep their scrollback in
+     * packed form.  Packed rows take much less memory, at the cost of
+     * unpacking them whenever they are read.
+     */
+    public static void setCompactScrollback(boolean compact) {
+        mCompactScrollback = compact;
     }
 
     public void setDefaultStyle(int defaultStyle) {
         mDefaultStyle = defaultStyle;
+        mDirtyRows.set(0, mScreenRows);
     }
 
     public int getDefaultStyle() {
@@ -86,11 +147,101 @@ public int getDefaultStyle() {
     }
 
     public int getActiveTranscriptRows() {
+        return mActiveTranscriptRows + getColdRows();
+    }
+
+    /**
+     * Archive rows pushed out of the circular buffer into a cold tier from
+     * now on.  Rows already in the tier become the oldest ones in the
+     * transcript.
+     */
+    void attachColdScrollback(ColdScrollback cold) {
+        cold.setColumns(mColumns);
+        mCold = cold;
+    }
+
+    /**
+     * @return The number of rows in the transcript which are not in the cold
+     *         tier.
+     */
+    int getLiveTranscriptRows() {
         return mActiveTranscriptRows;
     }
 
+    private int getColdRows() {
+        return mCold == null ? 0 : mCold.getRows();
+    }
+
+    /**
+     * Convert a row in the external coordinate system which lies above the
+     * circular buffer into an index into the cold tier.
+     */
+    private int coldIndex(int extRow) {
+        return getColdRows() + mActiveTranscriptRows + extRow;
+    }
+
+    /**
+     * Get the text of a row in the external coordinate system, as lineAt()
+     * does.
+     */
+    private Object lineOf(int extRow) {
+        if (extRow < -mActiveTranscriptRows) {
+            return mCold.getLine(coldIndex(extRow));
+        }
+        return lineAt(externalToInternalRow(extRow));
+    }
+
+    /**
+     * Get the styles of a row in the external coordinate system, as
+     * colorAt() does.  Rows in the cold tier are copied into the same scratch
+     * objects as packed rows, since readers may modify what they are given.
+     */
+    private StyleRow colorOf(int extRow) {
+        if (extRow >= -mActiveTranscriptRows) {
+            return colorAt(externalToInternalRow(extRow));
+        }
+        StyleRow cold = mCold.getLineColor(coldIndex(extRow));
+        if (cold == null) {
+            return null;
+        }
+        if (cold.isSolidStyle()) {
+            if (mPackedSolidColor == null) {
+                mPackedSolidColor = new StyleRow(0, mColumns);
+            }
+            mPackedSolidColor.setSolidStyle(cold.getSolidStyle());
+            return mPackedSolidColor;
+        }
+        if (mPackedColor == null) {
+            mPackedColor = new StyleRow(0, mColumns);
+        }
+        mPackedColor.ensureData();
+        cold.copy(0, mPackedColor, 0, mColumns);
+        return mPackedColor;
+    }
+
+    /**
+     * Add the screen rows changed since the last call to the given set, and
+     * start tracking changes afresh.
+     *
+     * @param rows The set to which the changed rows are added.
+     */
+    public void takeDirtyRows(BitSet rows) {
+        rows.or(mDirtyRows);
+        mDirtyRows.clear();
+    }
+
     public int getActiveRows() {
-        return mActiveTranscriptRows + mScreenRows;
+        return getActiveTranscriptRows() + mScreenRows;
+    }
+
+    /**
+     * @return The number of rows the screen has scrolled by since this
+     *         transcript was created.  Adding it to a row number gives a
+     *         number for the row which doesn't change as more rows scroll
+     *         into the transcript.
+     */
+    long getScrolledRows() {
+        return mScrolledRows;
     }
 
     /**
@@ -127,11 +278,157 @@ private int externalToInternalRow(int extRow) {
         }
     }
 
+    /**
+     * Get the text of a row: a char[], a FullUnicodeLine or null.  Packed
+     * rows are unpacked into a scratch object, which is only good until the
+     * next call.
+     *
+     * @param row The row, in the internal coordinate system.
+     */
+    private Object lineAt(int row) {
+        CompactRowStore packed = mPacked;
+        if (packed == null || !packed.contains(row)) {
+            return mLines[row];
+        }
+        if (!packed.hasText(row)) {
+            return null;
+        }
+        if (packed.isFull(row)) {
+            if (mPackedFullLine == null) {
+                mPackedFullLine = new FullUnicodeLine(mColumns);
+            }
+            packed.loadFullLine(row, mPackedFullLine);
+            return mPackedFullLine;
+        }
+        if (mPackedLine == null) {
+            mPackedLine = new char[mColumns];
+        }
+        packed.loadBasicLine(row, mPackedLine);
+        return mPackedLine;
+    }
+
+    /**
+     * Get the styles of a row, unpacking packed rows into a scratch object
+     * which is only good until the next call.
+     *
+     * @param row The row, in the internal coordinate system.
+     */
+    private StyleRow colorAt(int row) {
+        CompactRowStore packed = mPacked;
+        if (packed == null || !packed.contains(row)) {
+            return mColor[row];
+        }
+        if (!packed.hasColor(row)) {
+            return null;
+        }
+        StyleRow color;
+        if (packed.isSolidColor(row)) {
+            if (mPackedSolidColor == null) {
+                mPackedSolidColor = new StyleRow(0, mColumns);
+            }
+            color = mPackedSolidColor;
+        } else {
+            if (mPackedColor == null) {
+                mPackedColor = new StyleRow(0, mColumns);
+            }
+            color = mPackedColor;
+        }
+        packed.loadColor(row, color);
+        return color;
+    }
+
+    /**
+     * Move a row which has left the screen into the packed store.
+     *
+     * @param row The row, in the internal coordinate system.
+     */
+    private void packRow(int row) {
+        if (!mCompact || (mLines[row] == null && mColor[row] == null)) {
+            return;
+        }
+        if (mPacked == null) {
+            mPacked = new CompactRowStore(mColumns, mTotalRows);
+        }
+        mPacked.store(row, mLines[row], mColor[row]);
+        if (mLines[row] instanceof char[]) {
+            mSpareLine = (char[]) mLines[row];
+        }
+        if (mColor[row] != null) {
+            mSpareColor = mColor[row];
+        }
+        mLines[row] = null;
+        mColor[row] = null;
+    }
+
+    private StyleRow newStyleRow(int style) {
+        StyleRow color = mSpareColor;
+        if (color == null) {
+            return new StyleRow(style, mColumns);
+        }
+        mSpareColor = null;
+        color.setSolidStyle(style);
+        return color;
+    }
+
+    /**
+     * Bring a packed row back into mLines and mColor, so that it can be
+     * modified or moved onto the screen.
+     *
+     * @param row The row, in the internal coordinate system.
+     */
+    private void unpackRow(int row) {
+        CompactRowStore packed = mPacked;
+        if (packed == null || !packed.contains(row)) {
+            return;
+        }
+        int columns = mColumns;
+        if (!packed.hasText(row)) {
+            mLines[row] = null;
+        } else if (packed.isFull(row)) {
+            FullUnicodeLine line = new FullUnicodeLine(columns);
+            packed.loadFullLine(row, line);
+            mLines[row] = line;
+        } else {
+            char[] line = new char[columns];
+            packed.loadBasicLine(row, line);
+            mLines[row] = line;
+        }
+        if (packed.hasColor(row)) {
+            StyleRow color = new StyleRow(0, columns);
+            packed.loadColor(row, color);
+            mColor[row] = color;
+        } else {
+            mColor[row] = null;
+        }
+        packed.remove(row);
+    }
+
+    /**
+     * Move the oldest row of a full circular buffer into the cold tier.
+     *
+     * @param row The row, in the internal coordinate system.
+     */
+    private void archiveRow(int row) {
+        mCold.append(lineAt(row), colorAt(row), mLineWrap[row], mColumns);
+    }
+
+    /**
+     * Drop a packed row whose slot is about to be reused.
+     */
+    private void discardRow(int row) {
+        if (mPacked != null) {
+            mPacked.remove(row);
+        }
+    }
+
     public void setLineWrap(int row) {
         mLineWrap[externalToInternalRow(row)] = true;
     }
 
     public boolean getLineWrap(int row) {
+        if (row < -mActiveTranscriptRows && row >= -getActiveTranscriptRows()) {
+            return mCold.getLineWrap(coldIndex(row));
+        }
         return mLineWrap[externalToInternalRow(row)];
     }
 
@@ -156,6 +453,12 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
 
         int screenRows = mScreenRows;
         int activeTranscriptRows = mActiveTranscriptRows;
+        // Rows of the transcript which may move onto the screen
+        int exposed = Math.min(activeTranscriptRows, Math.max(0, newRows - screenRows));
+        for (int i = 1; i <= exposed; ++i) {
+            unpackRow(externalToInternalRow(-i));
+        }
+
         int shift = screenRows - newRows;
         if (shift < -activeTranscriptRows) {
             // We want to add blank lines at the bottom instead of at the top
@@ -166,6 +469,7 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
             int totalRows = mTotalRows;
             for (int i = 0; i < activeTranscriptRows - shift; ++i) {
                 int index = (screenFirstRow + screenRows + i) % totalRows;
+                discardRow(index);
                 lines[index] = null;
                 color[index] = null;
                 lineWrap[index] = false;
@@ -229,6 +533,7 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
             // The new top of the screen wraps around the top of the array.
             mScreenFirstRow = mTotalRows + mScreenFirstRow + shift;
         }
+        mScrolledRows += shift;
 
         if (mActiveTranscriptRows + shift < 0) {
             mActiveTranscriptRows = 0;
@@ -239,6 +544,15 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
             cursor[1] -= shift;
         }
         mScreenRows = newRows;
+        mDirtyRows.clear();
+        mDirtyRows.set(0, newRows);
+
+        // Pack the rows which left the screen, and any exposed rows which
+        // didn't end up on it after all
+        int unpacked = Math.min(mActiveTranscriptRows, screenRows + exposed);
+        for (int i = 1; i <= unpacked; ++i) {
+            packRow(externalToInternalRow(-i));
+        }
 
         return true;
     }
@@ -310,12 +624,23 @@ public void scroll(int topMargin, int bottomMargin, int style) {
             return;
         }
 
+        mDirtyRows.set(topMargin, bottomMargin);
+
         int screenRows = mScreenRows;
         int totalRows = mTotalRows;
 
+        // The row below the screen is reused for the newly exposed line
+        int reusedRow = (mScreenFirstRow + screenRows) % totalRows;
+        if (mCold != null && mActiveTranscriptRows > 0
+                && mActiveTranscriptRows == totalRows - screenRows) {
+            archiveRow(reusedRow);
+        }
+        discardRow(reusedRow);
+
         if (topMargin == 0 && bottomMargin == screenRows) {
             // Fast path -- scroll the entire screen
             mScreenFirstRow = (mScreenFirstRow + 1) % totalRows;
+            ++mScrolledRows;
             if (mActiveTranscriptRows < totalRows - screenRows) {
                 ++mActiveTranscriptRows;
             }
@@ -323,9 +648,12 @@ public void scroll(int topMargin, int bottomMargin, int style) {
             // Blank the bottom margin
             int blankRow = externalToInternalRow(bottomMargin - 1);
             mLines[blankRow] = null;
-            mColor[blankRow] = new StyleRow(style, mColumns);
+            mColor[blankRow] = newStyleRow(style);
             mLineWrap[blankRow] = false;
 
+            if (mActiveTranscriptRows > 0) {
+                packRow(externalToInternalRow(-1));
+            }
             return;
         }
 
@@ -350,6 +678,7 @@ public void scroll(int topMargin, int bottomMargin, int style) {
 
         // Update the screen location
         mScreenFirstRow = (screenFirstRow + 1) % totalRows;
+        ++mScrolledRows;
         if (mActiveTranscriptRows < totalRows - screenRows) {
             ++mActiveTranscriptRows;
         }
@@ -357,9 +686,12 @@ public void scroll(int topMargin, int bottomMargin, int style) {
         // Blank the bottom margin
         int blankRow = externalToInternalRow(bottomMargin - 1);
         lines[blankRow] = null;
-        color[blankRow] = new StyleRow(style, mColumns);
+        color[blankRow] = newStyleRow(style);
         lineWrap[blankRow] = false;
 
+        if (mActiveTranscriptRows > 0) {
+            packRow(externalToInternalRow(-1));
+        }
         return;
     }
 
@@ -382,6 +714,7 @@ public void blockCopy(int sx, int sy, int w, int h, int dx, int dy) {
                 || dy + h > mScreenRows) {
             throw new IllegalArgumentException();
         }
+        mDirtyRows.set(dy, dy + h);
         Object[] lines = mLines;
         StyleRow[] color = mColor;
         if (sy > dy) {
@@ -523,9 +856,25 @@ public static int charWidth(int codePoint) {
             return 1;
         }
 
-        /* HACK: We're using ASCII ESC to save the location of the cursor
-           across screen resizes, so we need to pretend that it has width 1 */
-        if (codePoint == 27) {
+        if (codePoint < CharWidthTable.END && codePoint >= 0) {
+            int width = mWidthTable.get(codePoint);
+            return width == CharWidthTable.AMBIGUOUS ? mAmbiWidth : width;
+        }
+        return computeCharWidth(codePoint, mAmbiWidth, mAmbiWidthMode == 3);
+    }
+
+    /**
+     * Work out the display width of a code point from the Unicode
+     * properties and the width tables below, as {@link #charWidth} reports
+     * it.
+     *
+     * @param codePoint A Unicode code point.
+     * @param ambiWidth The width to give East Asian ambiguous characters.
+     * @param unicode9 Whether to apply the Unicode 9 rules rather than
+     *        vim's.
+     */
+    static int computeCharWidth(int codePoint, int ambiWidth, boolean unicode9) {
+        if (codePoint > 31 && codePoint < 127) {
             return 1;
         }
 
@@ -559,12 +908,10 @@ public static int charWidth(int codePoint) {
             }
         }
 
-        if (mAmbiWidthMode <= 2) {
-            return vimCharWidth(codePoint);
-        } else if (mAmbiWidthMode == 3) {
-            return unicode9CharWidth(codePoint);
+        if (unicode9) {
+            return unicode9CharWidth(codePoint, ambiWidth);
         } else {
-            return vimCharWidth(codePoint);
+            return vimCharWidth(codePoint, ambiWidth);
         }
     }
 
@@ -936,16 +1283,16 @@ public static int charWidth(int codePoint) {
         {0x1f6f3, 0x1f6f3}
     };
 
-    private static int vimCharWidth(int codePoint) {
-        if (intable(codePoint, ambiguous)) return mAmbiWidth;
+    private static int vimCharWidth(int codePoint, int ambiWidth) {
+        if (intable(codePoint, ambiguous)) return ambiWidth;
         if (intable(codePoint, doublewidth)) return 2;
         if (intable(codePoint, emoji_wide)) return 2;
         return 1;
     }
 
-    private static int unicode9CharWidth(int codePoint) {
+    private static int unicode9CharWidth(int codePoint, int ambiWidth) {
         if (intable(codePoint, doublewidth)) return 2;
-        if (intable(codePoint, ambiguous)) return mAmbiWidth;
+        if (intable(codePoint, ambiguous)) return ambiWidth;
         return 1;
     }
 
@@ -1015,34 +1362,34 @@ public char[] getLine(int row) {
     }
 
     private char[] getLine(int row, int x1, int x2, boolean strictBounds) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
         int columns = mColumns;
-        row = externalToInternalRow(row);
-        if (mLines[row] == null) {
+        Object rowLine = lineOf(row);
+        if (rowLine == null) {
             // Line is blank
             return null;
         }
-        if (mLines[row] instanceof char[]) {
+        if (rowLine instanceof char[]) {
             // Line contains only regular-width BMP characters
             if (x1 == 0 && x2 == columns) {
                 // Want the whole row? Easy.
-                return (char[]) mLines[row];
+                return (char[]) rowLine;
             } else {
                 if (tmpLine == null || tmpLine.length < columns + 1) {
                     tmpLine = new char[columns+1];
                 }
                 int length = x2 - x1;
-                System.arraycopy(mLines[row], x1, tmpLine, 0, length);
+                System.arraycopy(rowLine, x1, tmpLine, 0, length);
                 tmpLine[length] = 0;
                 return tmpLine;
             }
         }
 
         // Figure out how long the array needs to be
-        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        FullUnicodeLine line = (FullUnicodeLine) rowLine;
         char[] rawLine = line.getLine();
 
         if (x1 == 0 && x2 == columns) {
@@ -1093,18 +1440,17 @@ public StyleRow getLineColor(int row) {
     }
 
     private StyleRow getLineColor(int row, int x1, int x2, boolean strictBounds) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
-        row = externalToInternalRow(row);
-        StyleRow color = mColor[row];
+        StyleRow color = colorOf(row);
         StyleRow tmp = tmpColor;
         if (color != null) {
             int columns = mColumns;
-            if (!strictBounds && mLines[row] != null &&
-                    mLines[row] instanceof FullUnicodeLine) {
-                FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+            Object rowLine = strictBounds ? null : lineOf(row);
+            if (rowLine instanceof FullUnicodeLine) {
+                FullUnicodeLine line = (FullUnicodeLine) rowLine;
                 /* If either the start or the end column is in the middle of
                  * an East Asian wide character, include the appropriate column
                  * of style information */
@@ -1126,11 +1472,19 @@ private StyleRow getLineColor(int row, int x1, int x2, boolean strictBounds) {
     }
 
     boolean isBasicLine(int row) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
-        return (mLines[externalToInternalRow(row)] instanceof char[]);
+        if (row < -mActiveTranscriptRows) {
+            return mCold.getLine(coldIndex(row)) instanceof char[];
+        }
+        int intRow = externalToInternalRow(row);
+        CompactRowStore packed = mPacked;
+        if (packed != null && packed.contains(intRow)) {
+            return packed.hasText(intRow) && !packed.isFull(intRow);
+        }
+        return (mLines[intRow] instanceof char[]);
     }
 
     public boolean getChar(int row, int column) {
@@ -1153,19 +1507,19 @@ public boolean getChar(int row, int column, int charIndex) {
      * @return Whether or not there are characters following this one in the column.
      */
     public boolean getChar(int row, int column, int charIndex, char[] out, int offset) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
-        row = externalToInternalRow(row);
+        Object rowLine = lineOf(row);
 
-        if (mLines[row] instanceof char[]) {
+        if (rowLine instanceof char[]) {
             // Fast path: all regular-width BMP chars in the row
-            char[] line = (char[]) mLines[row];
+            char[] line = (char[]) rowLine;
             out[offset] = line[column];
             return false;
         }
 
-        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        FullUnicodeLine line = (FullUnicodeLine) rowLine;
         return line.getChar(column, charIndex, out, offset);
     }
 
@@ -1174,7 +1528,12 @@ private boolean isBasicChar(int codePoint) {
     }
 
     private char[] allocateBasicLine(int row, int columns) {
-        char[] line = new char[columns];
+        char[] line = mSpareLine;
+        if (line != null) {
+            mSpareLine = null;
+        } else {
+            line = new char[columns];
+        }
 
         // Fill the line with blanks
         for (int i = 0; i < columns; ++i) {
@@ -1183,7 +1542,7 @@ private char[] allocateBasicLine(int row, int columns) {
 
         mLines[row] = line;
         if (mColor[row] == null) {
-            mColor[row] = new StyleRow(0, columns);
+            mColor[row] = newStyleRow(0);
         }
         return line;
     }
@@ -1193,7 +1552,7 @@ private FullUnicodeLine allocateFullLine(int row, int columns) {
 
         mLines[row] = line;
         if (mColor[row] == null) {
-            mColor[row] = new StyleRow(0, columns);
+            mColor[row] = newStyleRow(0);
         }
         return line;
     }
@@ -1209,12 +1568,108 @@ public boolean setChar(int column, int row, int codePoint, int style) {
         return true;
     }
 
+    /**
+     * Store a run of printable ASCII characters into a row, starting at the
+     * given column.  Equivalent to calling setChar() for each character, but
+     * much cheaper for "basic" rows, where the characters are copied straight
+     * into the row.
+     *
+     * @param column The column of the first character.
+     * @param row The row to store the characters into.
+     * @param buffer The array containing the characters.
+     * @param offset The index of the first character in the array.
+     * @param count The number of characters to store.
+     * @param style The style to give the characters.
+     */
+    public void setChars(int column, int row, byte[] buffer, int offset, int count, int style) {
+        if (row >= mScreenRows || column < 0 || column + count > mColumns) {
+            Log.e(TAG, "illegal arguments! " + row + " " + column + " " + count + " " + mScreenRows + " " + mColumns);
+            throw new IllegalArgumentException();
+        }
+        int intRow = externalToInternalRow(row);
+        if (row >= 0) {
+            mDirtyRows.set(row);
+        } else {
+            unpackRow(intRow);
+        }
+
+        if (mLines[intRow] == null) {
+            allocateBasicLine(intRow, mColumns);
+        }
+        if (mLines[intRow] instanceof char[]) {
+            // Fast path -- just copy the chars into the array
+            char[] line = (char[]) mLines[intRow];
+            for (int i = 0; i < count; ++i) {
+                line[column + i] = (char) buffer[offset + i];
+            }
+        } else {
+            FullUnicodeLine line = (FullUnicodeLine) mLines[intRow];
+            for (int i = 0; i < count; ++i) {
+                line.setChar(column + i, buffer[offset + i]);
+            }
+        }
+
+        mColor[intRow].set(column, count, style);
+    }
+
+    /**
+     * Store a run of regular-width BMP characters into a row, taking their
+     * styles from the same columns of another row.
+     *
+     * @param column The column of the first character.
+     * @param row The row to store the characters into.
+     * @param text The array containing the characters.
+     * @param offset The index of the first character in the array.
+     * @param count The number of characters to store.
+     * @param colors The styles of the characters, starting at column offset,
+     *        or null if they all have the given style.
+     * @param style The style to give the characters if colors is null.
+     */
+    void setChars(int column, int row, char[] text, int offset, int count, StyleRow colors, int style) {
+        if (row >= mScreenRows || column < 0 || column + count > mColumns) {
+            Log.e(TAG, "illegal arguments! " + row + " " + column + " " + count + " " + mScreenRows + " " + mColumns);
+            throw new IllegalArgumentException();
+        }
+        int intRow = externalToInternalRow(row);
+        if (row >= 0) {
+            mDirtyRows.set(row);
+        } else {
+            unpackRow(intRow);
+        }
+
+        if (mLines[intRow] == null) {
+            allocateBasicLine(intRow, mColumns);
+        }
+        if (mLines[intRow] instanceof char[]) {
+            System.arraycopy(text, offset, (char[]) mLines[intRow], column, count);
+        } else {
+            FullUnicodeLine line = (FullUnicodeLine) mLines[intRow];
+            for (int i = 0; i < count; ++i) {
+                line.setChar(column + i, text[offset + i]);
+            }
+        }
+
+        if (colors == null) {
+            mColor[intRow].set(column, count, style);
+        } else if (colors.isSolidStyle()) {
+            mColor[intRow].set(column, count, colors.getSolidStyle());
+        } else {
+            colors.copy(offset, mColor[intRow], column, count);
+        }
+    }
+
     public boolean setChar(int column, int row, int codePoint) {
         if (row >= mScreenRows || column >= mColumns) {
             Log.e(TAG, "illegal arguments! " + row + " " + column + " " + mScreenRows + " " + mColumns);
             throw new IllegalArgumentException();
         }
-        row = externalToInternalRow(row);
+        if (row >= 0) {
+            mDirtyRows.set(row);
+            row = externalToInternalRow(row);
+        } else {
+            row = externalToInternalRow(row);
+            unpackRow(row);
+        }
 
         /*
          * Whether data contains non-BMP or characters with charWidth != 1
@@ -1312,6 +1767,32 @@ public char[] getLine() {
         return mText;
     }
 
+    /**
+     * Save the column offsets of the line (mColumns chars, the first of which
+     * is the space used) into an array, for a later call to restore().
+     */
+    void saveOffsets(char[] dst, int pos) {
+        short[] offset = mOffset;
+        for (int i = 0; i < mColumns; ++i) {
+            dst[pos + i] = (char) offset[i];
+        }
+    }
+
+    /**
+     * Replace the contents of the line with text and column offsets saved
+     * earlier from a line with the same number of columns.
+     */
+    void restore(char[] src, int textStart, int textLength, int offsetStart) {
+        if (mText.length < textLength) {
+            mText = new char[textLength + mColumns];
+        }
+        System.arraycopy(src, textStart, mText, 0, textLength);
+        short[] offset = mOffset;
+        for (int i = 0; i < mColumns; ++i) {
+            offset[i] = (short) src[offsetStart + i];
+        }
+    }
+
     public int findStartOfColumn(int column) {
         if (column == 0) {
             return 0;
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures how fast something takes pty output, the way a JMH benchmark
+ * would: a few warmup iterations to let the JIT settle, then timed
+ * iterations, each on a fresh target.
+ * <p>
+ * The output is given in reads of {@link #READ_SIZE} bytes, as the reader
+ * thread gets it from the pty, and each read is timed on its own.  Each
+ * iteration feeds the corpus over and over until {@link #ITERATION_BYTES}
+ * have gone through, so that the transcript fills and scrolls as it does in
+ * a long session.
+ */
+final class AppendBenchmark {
+    static final int READ_SIZE = 4096;
+    static final int ITERATION_BYTES = 8 * 1024 * 1024;
+    static final int WARMUP_ITERATIONS = 3;
+    static final int ITERATIONS = 5;
+
+    private static final double MB = 1024 * 1024;
+
+    /** Something which takes pty output */
+    interface Target {
+        void append(byte[] buffer, int offset, int length);
+    }
+
+    interface TargetFactory {
+        Target create();
+    }
+
+    /** The figures of one benchmark */
+    static final class Result {
+        /** Throughput of each timed iteration, in MB/s */
+        final double[] mbPerSecond;
+        /** Bytes allocated per MB of output, or -1 if the VM can't tell */
+        final double allocatedPerMB;
+        /** The 99th percentile of the time taken by one read, in us */
+        final double p99Micros;
+
+        Result(double[] mbPerSecond, double allocatedPerMB, double p99Micros) {
+            this.mbPerSecond = mbPerSecond;
+            this.allocatedPerMB = allocatedPerMB;
+            this.p99Micros = p99Micros;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double value : mbPerSecond) {
+                sum += value;
+            }
+            return sum / mbPerSecond.length;
+        }
+
+        /** The standard deviation of the throughput */
+        double error() {
+            double mean = mean();
+            double sum = 0;
+            for (double value : mbPerSecond) {
+                sum += (value - mean) * (value - mean);
+            }
+            return Math.sqrt(sum / Math.max(1, mbPerSecond.length - 1));
+        }
+
+        @Override
+        public String toString() {
+            String allocated = allocatedPerMB < 0 ? "n/a"
+                    : String.format(Locale.US, "%.0f B", allocatedPerMB);
+            return String.format(Locale.US, "%7.1f +- %5.1f MB/s, %12s/MB allocated, p99 %7.1f us/read",
+                    mean(), error(), allocated, p99Micros);
+        }
+    }
+
+    private AppendBenchmark() {
+    }
+
+    /**
+     * Skip the calling test unless benchmarks were asked for, with
+     * -Pbenchmark.
+     */
+    static void assumeBenchmarking() {
+        assumeTrue("Benchmarks only run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+    }
+
+    /**
+     * @return An emulator with a screen and transcript of the sizes a
+     *         session has, which throws away what it would send back to the
+     *         process.
+     */
+    static TerminalEmulator newEmulator(int columns, int rows) {
+        TermSession session = newSession();
+        ColorScheme scheme = BaseTextRenderer.defaultColorScheme;
+        TranscriptScreen screen = new TranscriptScreen(columns, TermSession.getTranscriptRows(), rows, scheme);
+        TerminalEmulator emulator = new TerminalEmulator(session, screen, columns, rows, scheme);
+        emulator.setDefaultUTF8Mode(true);
+        emulator.setKeyListener(new TermKeyListener(session));
+        return emulator;
+    }
+
+    private static TermSession newSession() {
+        return new TermSession() {
+            @Override
+            public void write(byte[] data, int offset, int count) {
+                // Answers to status queries; nobody is listening
+            }
+        };
+    }
+
+    static TargetFactory emulator() {
+        return new TargetFactory() {
+            @Override
+            public Target create() {
+                final TerminalEmulator emulator = newEmulator(Corpus.COLUMNS, Corpus.ROWS);
+                return new Target() {
+                    @Override
+                    public void append(byte[] buffer, int offset, int length) {
+                        emulator.append(buffer, offset, length);
+                    }
+                };
+            }
+        };
+    }
+
+    static Result run(TargetFactory factory, byte[] data) {
+        int readsPerPass = (data.length + READ_SIZE - 1) / READ_SIZE;
+        int passes = Math.max(1, (ITERATION_BYTES + data.length - 1) / data.length);
+        long[] readNanos = new long[ITERATIONS * passes * readsPerPass];
+        double[] mbPerSecond = new double[ITERATIONS];
+        long allocated = 0;
+        boolean canCountAllocations = true;
+        int reads = 0;
+
+        for (int iteration = -WARMUP_ITERATIONS; iteration < ITERATIONS; iteration++) {
+            Target target = factory.create();
+            boolean timed = iteration >= 0;
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                for (int offset = 0; offset < data.length; offset += READ_SIZE) {
+                    int length = Math.min(READ_SIZE, data.length - offset);
+                    long readStart = System.nanoTime();
+                    target.append(data, offset, length);
+                    if (timed) {
+                        readNanos[reads++] = System.nanoTime() - readStart;
+                    }
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            long allocatedAfter = getAllocatedBytes();
+            if (timed) {
+                mbPerSecond[iteration] = (double) passes * data.length / MB / (nanos / 1e9);
+                if (allocatedBefore < 0 || allocatedAfter < 0) {
+                    canCountAllocations = false;
+                }
+                allocated += allocatedAfter - allocatedBefore;
+            }
+        }
+
+        Arrays.sort(readNanos, 0, reads);
+        double p99 = readNanos[Math.min(reads - 1, (int) Math.ceil(reads * 0.99) - 1)] / 1000.0;
+        double totalMB = (double) ITERATIONS * passes * data.length / MB;
+        return new Result(mbPerSecond, canCountAllocations ? allocated / totalMB : -1, p99);
+    }
+
+    /**
+     * @return The bytes allocated by this thread so far, or -1 if the VM
+     *         doesn't count them.
+     */
+    static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pasted text must not be able to end a bracketed paste early.
+ */
+public class BracketedPasteTest {
+    private static final String START = "\033[200~";
+    private static final String END = "\033[201~";
+
+    @Test
+    public void wrapsText() {
+        assertEquals(START + "ls -l\n" + END, TermSession.bracketPaste("ls -l\n"));
+        assertEquals(START + END, TermSession.bracketPaste(""));
+    }
+
+    @Test
+    public void keepsOtherEscapes() {
+        String text = "\033[1mbold\033[0m \033[200~";
+        assertEquals(START + text + END, TermSession.bracketPaste(text));
+    }
+
+    @Test
+    public void removesEndMarkers() {
+        assertEquals(START + "ab" + END, TermSession.bracketPaste(END + "a" + END + "b" + END));
+    }
+
+    @Test
+    public void removesEndMarkersJoinedByRemovingOthers() {
+        assertEquals(START + "\nrm -rf ~\n" + END,
+                TermSession.bracketPaste("\033[20\033[201~1~\nrm -rf ~\n"));
+        // Nested twice over
+        assertEquals(START + "x" + END,
+                TermSession.bracketPaste("\033[20\033[20\033[201~1~1~x"));
+        assertEquals(START + "x" + END,
+                TermSession.bracketPaste("x\033\033[201~[201~"));
+    }
+}
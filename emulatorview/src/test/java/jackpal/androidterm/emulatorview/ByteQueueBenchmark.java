@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Pushes 1 GB from a producer thread to a consumer thread through {@link
+ * ByteQueue}, and reports the throughput and how many context switches the
+ * two threads went through.  Both sides move {@link #CHUNK_SIZE} bytes at a
+ * time, as the reader thread and the emulator do.
+ * <p>
+ * Context switches are read from /proc/thread-self/status, so they are only
+ * counted on Linux.
+ * <p>
+ * Run with
+ * <pre>
+ * ./gradlew :emulatorview:testDebugUnitTest -Pbenchmark --tests '*ByteQueueBenchmark'
+ * </pre>
+ * As with {@link EmulatorBenchmark}, compare with an older queue by running
+ * the benchmark on the older commit.
+ */
+public class ByteQueueBenchmark {
+    private static final long TOTAL_BYTES = 1L << 30;
+    private static final long WARMUP_BYTES = 64L << 20;
+    private static final int CHUNK_SIZE = 4096;
+    /** The old default queue size, and the one sessions have now */
+    private static final int[] QUEUE_SIZES = { 4 * 1024, 64 * 1024 };
+
+    @Before
+    public void setUp() {
+        AppendBenchmark.assumeBenchmarking();
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        System.out.println("ByteQueue, 1 GB in " + CHUNK_SIZE + " byte chunks");
+        for (int size : QUEUE_SIZES) {
+            String name = (size / 1024) + "K";
+            run(new ByteQueue(size), WARMUP_BYTES);
+            report(name, run(new ByteQueue(size), TOTAL_BYTES));
+        }
+    }
+
+    private static void report(String name, long[] result) {
+        double mbPerSecond = TOTAL_BYTES / (1024.0 * 1024.0) / (result[0] / 1e9);
+        String switches = result[1] < 0 ? "n/a" : Long.toString(result[1]);
+        System.out.println(String.format(Locale.US, "  %-4s %8.1f MB/s, %10s context switches",
+                name, mbPerSecond, switches));
+    }
+
+    /**
+     * @return The nanoseconds taken to move the bytes, and the context
+     *         switches of both threads, or -1 if they can't be counted.
+     */
+    private static long[] run(final ByteQueue queue, final long total) throws Exception {
+        final long[] producerSwitches = new long[1];
+        final Exception[] failure = new Exception[1];
+        Thread producer = new Thread("ByteQueueBenchmark producer") {
+            @Override
+            public void run() {
+                long before = getContextSwitches();
+                byte[] chunk = new byte[CHUNK_SIZE];
+                try {
+                    for (long left = total; left > 0; ) {
+                        int length = (int) Math.min(chunk.length, left);
+                        for (int offset = 0; offset < length; ) {
+                            offset += queue.write(chunk, offset, length - offset);
+                        }
+                        left -= length;
+                    }
+                } catch (InterruptedException e) {
+                    failure[0] = e;
+                }
+                long after = getContextSwitches();
+                producerSwitches[0] = before < 0 || after < 0 ? -1 : after - before;
+            }
+        };
+
+        long consumerBefore = getContextSwitches();
+        long start = System.nanoTime();
+        producer.start();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        for (long left = total; left > 0; ) {
+            left -= queue.read(buffer, 0, (int) Math.min(buffer.length, left));
+        }
+        long nanos = System.nanoTime() - start;
+        long consumerAfter = getContextSwitches();
+        producer.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        long switches = -1;
+        if (consumerBefore >= 0 && consumerAfter >= 0 && producerSwitches[0] >= 0) {
+            switches = consumerAfter - consumerBefore + producerSwitches[0];
+        }
+        return new long[] { nanos, switches };
+    }
+
+    /**
+     * @return The voluntary and involuntary context switches of the calling
+     *         thread so far, or -1 if the system doesn't tell.
+     */
+    private static long getContextSwitches() {
+        long switches = 0;
+        int found = 0;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/thread-self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("voluntary_ctxt_switches:")
+                            || line.startsWith("nonvoluntary_ctxt_switches:")) {
+                        switches += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                        found++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return found == 2 ? switches : -1;
+    }
+}
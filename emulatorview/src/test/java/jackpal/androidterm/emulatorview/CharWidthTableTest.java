@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.fail;
+
+/**
+ * {@link UnicodeTranscript#charWidth} looks widths up in a {@link
+ * CharWidthTable}; they must be the widths {@link
+ * UnicodeTranscript#computeCharWidth} works out, for every code point and in
+ * every ambiguous width mode.
+ */
+public class CharWidthTableTest {
+    private static final int MODES = 5;
+    /** The mode sessions start in */
+    private static final int DEFAULT_MODE = 1;
+
+    @After
+    public void tearDown() {
+        UnicodeTranscript.setAmbiWidth(DEFAULT_MODE);
+    }
+
+    @Test
+    public void tableMatchesComputedWidths() {
+        for (int mode = 0; mode < MODES; mode++) {
+            UnicodeTranscript.setAmbiWidth(mode);
+            int ambiWidth = mode > 1 ? 2 : 1;
+            boolean unicode9 = mode == 3;
+            for (int codePoint = -1; codePoint <= Character.MAX_CODE_POINT; codePoint++) {
+                int expected = UnicodeTranscript.computeCharWidth(codePoint, ambiWidth, unicode9);
+                int actual = UnicodeTranscript.charWidth(codePoint);
+                if (actual != expected) {
+                    fail(String.format("Mode %d: width of U+%04X is %d, should be %d",
+                            mode, codePoint, actual, expected));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The cold tier must stay within its row limit, on disk as well as in
+ * memory, however long the session goes on.
+ */
+public class ColdScrollbackTest {
+    private static final int COLUMNS = 80;
+    /** Enough rows that about half of them have to be spilled */
+    private static final int MAX_ROWS = 40000;
+    private static final int ROWS = 20 * MAX_ROWS;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ColdScrollback mCold;
+
+    @Before
+    public void setUp() throws Exception {
+        ColdScrollback.configure(MAX_ROWS, mFolder.getRoot());
+        mCold = ColdScrollback.create(COLUMNS);
+    }
+
+    @After
+    public void tearDown() {
+        mCold.close();
+        ColdScrollback.configure(0, null);
+    }
+
+    @Test
+    public void spillFileStaysBounded() throws Exception {
+        // Random text barely compresses, so it fills the spill file fast
+        Random random = new Random(1);
+        char[][] recent = new char[ColdScrollback.BLOCK_ROWS][];
+        long largest = 0;
+        long afterCap = 0;
+        for (int row = 0; row < ROWS; row++) {
+            char[] line = new char[COLUMNS];
+            for (int column = 0; column < COLUMNS; column++) {
+                line[column] = (char) ('!' + random.nextInt(94));
+            }
+            recent[row % recent.length] = line;
+            mCold.append(line, null, false, COLUMNS);
+
+            if ((row + 1) % ColdScrollback.BLOCK_ROWS == 0) {
+                long length = mCold.getSpillFileLength();
+                largest = Math.max(largest, length);
+                if (afterCap == 0 && row + 1 >= 2 * MAX_ROWS) {
+                    afterCap = length;
+                }
+            }
+        }
+
+        assertTrue("Nothing was spilled", afterCap > 0);
+        // Each compaction waits for the dropped space to match the used
+        // space, and for a megabyte of it
+        assertTrue("Spill file grew to " + largest + " bytes, " + afterCap
+                + " when the cap was reached", largest <= 2 * afterCap + (2 << 20));
+        assertTrue(mCold.getRows() <= MAX_ROWS + ColdScrollback.BLOCK_ROWS);
+
+        // Rows read back from the compacted file are still right
+        int rows = mCold.getRows();
+        for (int i = 0; i < recent.length; i++) {
+            int index = rows - recent.length + i;
+            assertArrayEquals(recent[(ROWS - recent.length + i) % recent.length],
+                    (char[]) mCold.getLine(index));
+        }
+        Object oldest = mCold.getLine(0);
+        assertEquals(COLUMNS, ((char[]) oldest).length);
+    }
+}
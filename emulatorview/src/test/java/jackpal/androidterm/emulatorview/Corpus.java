@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Recorded pty output to feed the emulator with.
+ * <p>
+ * The corpora were recorded from a pty of 100x35 with TERM=screen-256color
+ * and a UTF-8 locale, and are kept gzipped next to this class:
+ * <ul>
+ * <li>vim: vim with syntax highlighting and line numbers, paging and
+ * scrolling through 7700 lines of C headers</li>
+ * <li>ls-lR: ls -lR --color=always over /usr/lib and /usr/share</li>
+ * <li>cc: gcc -Wall -Wextra with coloured diagnostics over 40 files full of
+ * mistakes</li>
+ * <li>cjk: cat of Japanese text, with some Chinese and Korean</li>
+ * <li>box: cat of tables, trees and frames drawn with box drawing
+ * characters, as psql, tree and friends print them</li>
+ * <li>tmux: tmux redrawing a shell pane, a top pane and a log pane split by
+ * box drawing borders, and its status line every second.  This one is
+ * written by a script in the form tmux writes it, as tmux itself
+ * wasn't at hand to record.</li>
+ * </ul>
+ * Output logged on a device with a {@link SessionLogger} in {@link
+ * SessionLogger#FORMAT_RAW} can be benchmarked too, by giving its path with
+ * -Pbenchmark.log.
+ */
+final class Corpus {
+    static final String VIM = "vim";
+    static final String LS_LR = "ls-lR";
+    static final String CC = "cc";
+    static final String CJK = "cjk";
+    static final String TMUX = "tmux";
+    static final String BOX = "box";
+
+    static final String[] ALL = { VIM, LS_LR, CC, CJK, TMUX, BOX };
+
+    /** The size of the terminal the corpora were recorded at */
+    static final int COLUMNS = 100;
+    static final int ROWS = 35;
+
+    private Corpus() {
+    }
+
+    static byte[] load(String name) throws IOException {
+        InputStream in = Corpus.class.getResourceAsStream("corpus/" + name + ".gz");
+        if (in == null) {
+            throw new IOException("No corpus " + name);
+        }
+        return readFully(new GZIPInputStream(in));
+    }
+
+    /**
+     * @return The session log given with -Pbenchmark.log, or null.
+     */
+    static File getLog() {
+        String path = System.getProperty("benchmark.log");
+        return path != null ? new File(path) : null;
+    }
+
+    static byte[] loadLog(File log) throws IOException {
+        return readFully(SessionLogger.openReplay(log, SessionLogger.FORMAT_RAW, false));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
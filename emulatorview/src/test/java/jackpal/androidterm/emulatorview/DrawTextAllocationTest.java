@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Drawing a frame mustn't allocate: {@link TranscriptScreen#drawText} runs
+ * for every row of every frame, and garbage there turns into GC pauses
+ * while scrolling.  The screen is drawn through a canvas which only counts
+ * what it is asked to draw.
+ */
+public class DrawTextAllocationTest {
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+    private static final int WARMUP_FRAMES = 1000;
+    private static final int FRAMES = 10000;
+
+    /** A canvas which draws nothing, and counts the calls */
+    private static final class CountingCanvas extends Canvas {
+        int texts;
+        int rects;
+
+        @Override
+        public void drawText(char[] text, int index, int count, float x, float y, Paint paint) {
+            texts++;
+        }
+
+        @Override
+        public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+            rects++;
+        }
+    }
+
+    @Test
+    public void drawingAFrameDoesNotAllocate() throws Exception {
+        assumeTrue("The VM doesn't count allocations", AppendBenchmark.getAllocatedBytes() >= 0);
+
+        TerminalEmulator emulator = AppendBenchmark.newEmulator(COLUMNS, ROWS);
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < ROWS * 10; i++) {
+            output.append("\033[3").append(i % 8).append(";4").append((i / 8) % 8)
+                    .append("mcolor").append(i).append(' ');
+        }
+        byte[] data = output.toString().getBytes(StandardCharsets.UTF_8);
+        emulator.append(data, 0, data.length);
+
+        TranscriptScreen screen = emulator.getScreen();
+        PaintRenderer renderer = new PaintRenderer(12, BaseTextRenderer.defaultColorScheme, "", 0);
+        CountingCanvas canvas = new CountingCanvas();
+
+        drawFrames(screen, renderer, canvas, WARMUP_FRAMES);
+        canvas.texts = 0;
+        canvas.rects = 0;
+        long before = AppendBenchmark.getAllocatedBytes();
+        drawFrames(screen, renderer, canvas, FRAMES);
+        long allocated = AppendBenchmark.getAllocatedBytes() - before;
+
+        assertTrue("Nothing was drawn", canvas.texts >= FRAMES * ROWS);
+        assertTrue("No backgrounds were drawn", canvas.rects >= FRAMES * ROWS);
+        // Reading the counter allocates a few hundred bytes itself, which
+        // comes to nothing per frame; a single object a frame doesn't
+        assertEquals("Bytes allocated per frame", 0, allocated / FRAMES);
+    }
+
+    /**
+     * Draw every row, with the cursor on row 5 and a selection on row 7, as
+     * EmulatorView does.
+     */
+    private static void drawFrames(TranscriptScreen screen, TextRenderer renderer,
+            Canvas canvas, int frames) {
+        for (int frame = 0; frame < frames; frame++) {
+            for (int row = 0; row < ROWS; row++) {
+                screen.drawText(row, canvas, 0, (row + 1) * 16, renderer,
+                        row == 5 ? 3 : -1, row == 7 ? 2 : -1, row == 7 ? 30 : -1, "", 0, null);
+            }
+        }
+    }
+}
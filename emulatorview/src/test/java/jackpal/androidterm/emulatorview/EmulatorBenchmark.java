@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Throughput of the emulator over the recorded corpora: MB/s, bytes
+ * allocated per MB, and the 99th percentile time of a read.  This covers
+ * {@link TerminalEmulator#append}, and through it the escape sequence
+ * parser, emit() and the screen's setChar().
+ * <p>
+ * Run with
+ * <pre>
+ * ./gradlew :emulatorview:testDebugUnitTest -Pbenchmark --tests '*EmulatorBenchmark'
+ * </pre>
+ * and add -Pbenchmark.log=&lt;file&gt; to also replay a raw log recorded on
+ * a device with a {@link SessionLogger}.
+ * <p>
+ * Only the emulator in the tree is benchmarked.  To see what a change did,
+ * run the benchmark on the commit before it too, for instance in a
+ * <code>git worktree</code> of that commit with this directory copied in,
+ * and compare the two runs.
+ */
+public class EmulatorBenchmark {
+    @Before
+    public void setUp() {
+        AppendBenchmark.assumeBenchmarking();
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        System.out.println("TerminalEmulator.append, " + Corpus.COLUMNS + "x" + Corpus.ROWS
+                + ", " + AppendBenchmark.READ_SIZE + " byte reads");
+        for (String name : Corpus.ALL) {
+            report(name, Corpus.load(name));
+        }
+        File log = Corpus.getLog();
+        if (log != null) {
+            report(log.getName(), Corpus.loadLog(log));
+        }
+    }
+
+    private static void report(String name, byte[] data) {
+        AppendBenchmark.Result result = AppendBenchmark.run(AppendBenchmark.emulator(), data);
+        System.out.println(String.format("  %-8s %s", name, result));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Snapshots must show what the emulator shows: the alternate screen while a
+ * program uses it, and the scrollback rows asked for, from the same moment
+ * as the screen rows.
+ */
+public class ScreenSnapshotTest {
+    private static final int COLUMNS = 20;
+    private static final int ROWS = 5;
+
+    private TerminalEmulator mEmulator;
+
+    @Before
+    public void setUp() {
+        mEmulator = AppendBenchmark.newEmulator(COLUMNS, ROWS);
+        for (int i = 0; i < 12; i++) {
+            append("main " + i + "\r\n");
+        }
+    }
+
+    @Test
+    public void capturesTheAlternateScreen() {
+        ScreenSnapshot main = ScreenSnapshot.capture(mEmulator, 0, null);
+        assertEquals("main 8", text(main, 0));
+
+        append("\033[?1047h\033[H\033[2Jvim");
+        ScreenSnapshot alt = ScreenSnapshot.capture(mEmulator, 0, main);
+        assertEquals("vim", text(alt, 0));
+        for (int row = 1; row < ROWS; row++) {
+            assertEquals("", text(alt, row));
+        }
+        BitSet dirty = new BitSet();
+        alt.collectDirtyRows(main, dirty);
+        assertEquals(ROWS, dirty.cardinality());
+
+        append("\033[?1047l");
+        ScreenSnapshot back = ScreenSnapshot.capture(mEmulator, 0, alt);
+        assertEquals("main 8", text(back, 0));
+    }
+
+    @Test
+    public void capturesScrollback() {
+        TranscriptScreen screen = mEmulator.getScreen();
+        ScreenSnapshot snapshot = ScreenSnapshot.capture(mEmulator, -3, null);
+        assertEquals(-3, snapshot.getFirstRow());
+        for (int row = -3; row < ROWS; row++) {
+            assertEquals(live(screen, row), text(snapshot, row));
+        }
+        assertEquals("main 5", text(snapshot, -3));
+        assertNull(snapshot.getLine(-4));
+
+        // Scrolling moves the captured scrollback along with the screen
+        append("main 12\r\n");
+        ScreenSnapshot next = ScreenSnapshot.capture(mEmulator, -3, snapshot);
+        assertEquals("main 6", text(next, -3));
+        assertEquals("main 12", text(next, ROWS - 2));
+        assertTrue(next.collectDirtyRows(snapshot, new BitSet()));
+    }
+
+    @Test
+    public void leavesScrollbackWhichDoesNotExistBlank() {
+        ScreenSnapshot snapshot = ScreenSnapshot.capture(mEmulator, -100, null);
+        int oldest = -mEmulator.getScreen().getActiveTranscriptRows();
+        assertEquals("main 0", text(snapshot, oldest));
+        assertNull(snapshot.getLine(oldest - 1));
+    }
+
+    @Test
+    public void sharesUnchangedRows() {
+        ScreenSnapshot first = ScreenSnapshot.capture(mEmulator, -2, null);
+        ScreenSnapshot second = ScreenSnapshot.capture(mEmulator, -2, first);
+        for (int row = -2; row < ROWS; row++) {
+            assertTrue(first.getLine(row) == second.getLine(row));
+        }
+        assertFalse(second.collectDirtyRows(first, new BitSet()));
+    }
+
+    private void append(String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        mEmulator.append(data, 0, data.length);
+    }
+
+    private static String text(ScreenSnapshot snapshot, int row) {
+        char[] line = snapshot.getLine(row);
+        return line == null ? "" : new String(line).trim();
+    }
+
+    private static String live(TranscriptScreen screen, int row) {
+        char[] line = screen.getScriptLine(row);
+        if (line == null) {
+            return "";
+        }
+        int length = 0;
+        while (length < line.length && line[length] != 0) {
+            length++;
+        }
+        return new String(line, 0, length).trim();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A resize which changes the number of columns rewraps the transcript with
+ * {@link TranscriptReflow}.  The text of the old rows must end up where
+ * writing it to an emulator of the new size would have put it, styles and
+ * cursor included, so output after the resize carries on where it should.
+ */
+public class TranscriptReflowTest {
+    private static final int COLUMNS = 40;
+    private static final int ROWS = 24;
+
+    private static final String[] WORDS = {
+        "foo", "bar", "x", "quux", "0123456789", "日本語", "漢字", "é",
+        "\033[31mred\033[m", "\033[1;44mbold on blue\033[m", "┌──┐",
+    };
+
+    @Test
+    public void narrower() {
+        check(23, ROWS, 1);
+    }
+
+    @Test
+    public void wider() {
+        check(57, ROWS, 2);
+    }
+
+    @Test
+    public void oddWidthsAndFewerRows() {
+        // Odd widths leave wide characters a column short at the wrap
+        for (int columns = 3; columns < 2 * COLUMNS; columns += 6) {
+            check(columns, 10, columns);
+        }
+    }
+
+    @Test
+    public void shortTranscript() {
+        check(17, ROWS, 4, 5);
+    }
+
+    private static void check(int columns, int rows, long seed) {
+        check(columns, rows, seed, 400);
+    }
+
+    private static void check(int columns, int rows, long seed, int lines) {
+        Random random = new Random(seed);
+        // Leave the cursor partway along a line
+        String before = text(random, lines) + "prompt$";
+        String after = " ls" + "\r\n" + text(random, 3) + "more";
+
+        TerminalEmulator resized = AppendBenchmark.newEmulator(COLUMNS, ROWS);
+        append(resized, before);
+        String old = styledText(resized.getScreen());
+        resized.updateSize(columns, rows);
+        String what = columns + "x" + rows + ", seed " + seed;
+        TerminalEmulator written = AppendBenchmark.newEmulator(columns, rows);
+        append(written, old);
+        assertSame(what, written, resized);
+
+        append(resized, after);
+        append(written, after);
+        assertSame(what + ", after more output", written, resized);
+    }
+
+    private static String text(Random random, int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            int words = random.nextInt(8) == 0 ? 30 : random.nextInt(6);
+            for (int j = 0; j < words; j++) {
+                if (j > 0) {
+                    text.append(' ');
+                }
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            text.append("\r\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return The text of the rows of a screen, as SGR sequences and text to
+     *         write, without the blank rows below the cursor.  Trailing
+     *         blanks of lines are dropped, as a reflow drops them, unless
+     *         they have a style of their own, such as the background a row
+     *         scrolled in during a colored run was blanked with.
+     */
+    private static String styledText(TranscriptScreen screen) {
+        GrowableIntArray colors = new GrowableIntArray(1024);
+        String text = screen.getTranscriptText(colors);
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == '\n') {
+            end--;
+        }
+        StringBuilder builder = new StringBuilder();
+        int style = -1;
+        for (int start = 0; start < end; ) {
+            int lineEnd = text.indexOf('\n', start);
+            if (lineEnd < 0 || lineEnd > end) {
+                lineEnd = end;
+            }
+            int last = lineEnd;
+            while (last > start && text.charAt(last - 1) == ' '
+                    && colors.at(last - 1) == TextStyle.kNormalTextStyle) {
+                last--;
+            }
+            for (int i = start; i < last; i++) {
+                if (colors.at(i) != style) {
+                    style = colors.at(i);
+                    TranscriptScreen.appendSGR(builder, style);
+                }
+                builder.append(text.charAt(i));
+            }
+            if (lineEnd < end) {
+                builder.append("\r\n");
+            }
+            start = lineEnd + 1;
+        }
+        return builder.toString();
+    }
+
+    private static void append(TerminalEmulator emulator, String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        emulator.append(data, 0, data.length);
+    }
+
+    private static void assertSame(String what, TerminalEmulator expected, TerminalEmulator actual) {
+        GrowableIntArray expectedColors = new GrowableIntArray(1024);
+        GrowableIntArray actualColors = new GrowableIntArray(1024);
+        String expectedText = trimmedText(expected.getScreen(), expectedColors);
+        String actualText = trimmedText(actual.getScreen(), actualColors);
+        if (!expectedText.equals(actualText)) {
+            // Show the lines around the first difference, rather than all of them
+            int at = 0;
+            while (at < Math.min(expectedText.length(), actualText.length())
+                    && expectedText.charAt(at) == actualText.charAt(at)) {
+                at++;
+            }
+            int from = Math.max(0, expectedText.lastIndexOf('\n', Math.max(0, at - 1)));
+            assertEquals(what + ", text at " + at,
+                    expectedText.substring(from, Math.min(expectedText.length(), at + 80)),
+                    actualText.substring(from, Math.min(actualText.length(), at + 80)));
+        }
+        for (int i = 0; i < expectedColors.length(); i++) {
+            // A blank which wasn't written keeps the style its row was blanked
+            // with, which a reflow doesn't carry over
+            if (expectedText.charAt(i) != ' ' && expectedColors.at(i) != actualColors.at(i)) {
+                assertEquals(what + ", style at " + i, expectedColors.at(i), actualColors.at(i));
+            }
+        }
+        assertEquals(what + ", cursor row", expected.getCursorRow(), actual.getCursorRow());
+        assertEquals(what + ", cursor column", expected.getCursorCol(), actual.getCursorCol());
+    }
+
+    /**
+     * @return The text of the rows of a screen, with the style of each char
+     *         in colors.  Rows written with blanks at the end keep them,
+     *         while a reflow drops them, so they are left out.
+     */
+    private static String trimmedText(TranscriptScreen screen, GrowableIntArray colors) {
+        GrowableIntArray allColors = new GrowableIntArray(1024);
+        String text = screen.getTranscriptText(allColors);
+        StringBuilder builder = new StringBuilder();
+        int blanks = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : '\n';
+            if (c == ' ') {
+                blanks++;
+                continue;
+            }
+            if (c != '\n') {
+                for (int j = i - blanks; j < i; j++) {
+                    builder.append(' ');
+                    colors.append(allColors.at(j));
+                }
+            }
+            blanks = 0;
+            if (i < text.length()) {
+                builder.append(c);
+                colors.append(allColors.at(i));
+            }
+        }
+        return builder.toString();
+    }
+}
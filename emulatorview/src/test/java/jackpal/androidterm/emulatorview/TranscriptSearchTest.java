@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link TranscriptSearch} reads the transcript a chunk of rows at a time,
+ * from the screen upwards, and searches the screen again as output arrives.
+ * Whatever the chunks, it must find the matches that searching each logical
+ * line of the whole transcript at once finds.
+ */
+public class TranscriptSearchTest {
+    private static final int COLUMNS = 40;
+    private static final int ROWS = 24;
+    private static final int LINES = 2000;
+    private static final long TIMEOUT_MS = 10000;
+
+    private static final String[] WORDS = {
+        "foo", "fooo", "bar", "baz", "qux", "x", "ab", "12", "345",
+        "日本語", "漢字", "été", "café", "┌──┐",
+    };
+
+    private static final String[] PATTERNS = {
+        "fo+", "ba[rz]", "[a-z]+ [0-9]+", "日本", "é", "x$", "^ab", "o b",
+    };
+
+    private TermSession mSession;
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mSession = new TermSession();
+        mSession.setIOListener(new TermSession.IOListener() {
+            @Override
+            public void onInputSpace(TermSession session) {
+            }
+
+            @Override
+            public void onOutputReady(TermSession session) {
+            }
+        });
+        mSession.setDefaultUTF8Mode(true);
+        mSession.initializeEmulator(COLUMNS, ROWS);
+        mRandom = new Random(1);
+        append(LINES);
+    }
+
+    @Test
+    public void findsWhatBruteForceFinds() throws Exception {
+        for (String regex : PATTERNS) {
+            Pattern pattern = Pattern.compile(regex);
+            TranscriptSearch search = new TranscriptSearch(mSession, pattern,
+                    new SearchCallback() {
+                        @Override
+                        public void onSearchUpdate(int matches, boolean done) {
+                        }
+                    }, new Handler());
+            search.start();
+            try {
+                long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+                while (!search.isDone() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertTrue("Search for " + regex + " didn't finish", search.isDone());
+                List<String> expected = bruteForce(pattern);
+                assertTrue("Nothing matches " + regex, expected.size() > 0);
+                assertEquals(regex, expected, matches(search));
+
+                // New output scrolls the screen, and is searched too
+                append(100);
+                search.onTranscriptChanged();
+                expected = bruteForce(pattern);
+                List<String> actual = matches(search);
+                while (!expected.equals(actual) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                    actual = matches(search);
+                }
+                assertEquals(regex + " after new output", expected, actual);
+            } finally {
+                search.stop();
+            }
+        }
+    }
+
+    /**
+     * Append lines of random words, some long enough to wrap several times.
+     */
+    private void append(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            int words = mRandom.nextInt(10) == 0 ? 40 : mRandom.nextInt(8);
+            for (int j = 0; j < words; j++) {
+                if (j > 0) {
+                    text.append(mRandom.nextInt(5) == 0 ? "  " : " ");
+                }
+                text.append(WORDS[mRandom.nextInt(WORDS.length)]);
+            }
+            text.append("\r\n");
+        }
+        byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (mSession.getEmulatorLock()) {
+            mSession.getEmulator().append(data, 0, data.length);
+        }
+    }
+
+    private static List<String> matches(TranscriptSearch search) {
+        // Selecting goes round the matches in order, wrapping around at the
+        // end, from wherever the current one is
+        List<TranscriptSearch.Match> selected = new ArrayList<TranscriptSearch.Match>();
+        int oldest = 0;
+        for (int i = search.getMatchCount(); i > 0; i--) {
+            TranscriptSearch.Match match = search.select(1);
+            TranscriptSearch.Match first = selected.isEmpty() ? null : selected.get(oldest);
+            if (first != null && (match.mStartRow < first.mStartRow
+                    || (match.mStartRow == first.mStartRow && match.mStartColumn < first.mStartColumn))) {
+                oldest = selected.size();
+            }
+            selected.add(match);
+        }
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < selected.size(); i++) {
+            result.add(toString(selected.get((oldest + i) % selected.size())));
+        }
+        return result;
+    }
+
+    private static String toString(TranscriptSearch.Match match) {
+        return match.mStartRow + ":" + match.mStartColumn + "-" + match.mEndRow + ":" + match.mEndColumn;
+    }
+
+    /**
+     * Join the rows of the whole transcript into logical lines, keeping the
+     * cells each char came from, and match the pattern against each line.
+     */
+    private List<String> bruteForce(Pattern pattern) {
+        List<String> result = new ArrayList<String>();
+        synchronized (mSession.getEmulatorLock()) {
+            TranscriptScreen screen = mSession.getEmulator().getScreen();
+            long scrolled = screen.getScrolledRows();
+            int first = -screen.getActiveTranscriptRows();
+            StringBuilder line = new StringBuilder();
+            List<long[]> cells = new ArrayList<long[]>();
+            for (int row = first; row < ROWS; row++) {
+                char[] text = screen.getScriptLine(row);
+                int column = 0;
+                long[] cell = null;
+                for (int i = 0; text != null && i < text.length && text[i] != 0; ) {
+                    int codePoint = Character.codePointAt(text, i);
+                    int width = UnicodeTranscript.charWidth(codePoint);
+                    if (cell == null || width > 0) {
+                        if (column >= COLUMNS) {
+                            break;
+                        }
+                        int end = column + Math.max(width, 1);
+                        cell = new long[] { scrolled + row, column, Math.min(end, COLUMNS) };
+                        column = end;
+                    }
+                    for (int j = 0; j < Character.charCount(codePoint); j++) {
+                        line.append(text[i + j]);
+                        cells.add(cell);
+                    }
+                    i += Character.charCount(codePoint);
+                }
+                if (!screen.getScriptLineWrap(row) || row == ROWS - 1) {
+                    int length = line.length();
+                    while (length > 0 && line.charAt(length - 1) == ' ') {
+                        length--;
+                    }
+                    Matcher matcher = pattern.matcher(line.substring(0, length));
+                    while (matcher.find()) {
+                        if (matcher.end() > matcher.start()) {
+                            long[] start = cells.get(matcher.start());
+                            long[] end = cells.get(matcher.end() - 1);
+                            result.add(start[0] + ":" + start[1] + "-" + end[0] + ":" + end[2]);
+                        }
+                    }
+                    line.setLength(0);
+                    cells.clear();
+                }
+            }
+        }
+        return result;
+    }
+}
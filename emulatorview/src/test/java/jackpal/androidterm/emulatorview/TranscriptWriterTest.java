@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A transcript written out must say whether it is all there: a session which
+ * finishes partway leaves only the rows written so far.
+ */
+public class TranscriptWriterTest {
+    private static final int LINES = 1000;
+
+    private TermSession mSession;
+
+    @Before
+    public void setUp() {
+        mSession = new TermSession();
+        mSession.setIOListener(new TermSession.IOListener() {
+            @Override
+            public void onInputSpace(TermSession session) {
+            }
+
+            @Override
+            public void onOutputReady(TermSession session) {
+            }
+        });
+        mSession.initializeEmulator(20, 5);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            text.append("line ").append(i).append("\r\n");
+        }
+        byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+        mSession.getEmulator().append(data, 0, data.length);
+    }
+
+    @Test
+    public void writesWholeTranscript() throws IOException {
+        StringWriter out = new StringWriter();
+        assertTrue(mSession.writeTranscript(out, false));
+        assertEquals(mSession.getTranscriptText(), out.toString());
+    }
+
+    @Test
+    public void reportsSessionFinishingPartway() throws IOException {
+        StringWriter out = new StringWriter() {
+            @Override
+            public StringWriter append(CharSequence text) {
+                super.append(text);
+                mSession.finish();
+                return this;
+            }
+        };
+        assertFalse(mSession.writeTranscript(out, false));
+        assertTrue(out.toString().startsWith("line 0\n"));
+        assertFalse(out.toString().contains("line " + (LINES - 1)));
+    }
+}
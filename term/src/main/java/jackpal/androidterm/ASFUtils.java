@@ -5,6 +5,7 @@
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.webkit.MimeTypeMap;
 
@@ -12,17 +13,34 @@
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.documentfile.provider.DocumentFile;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ASFUtils {
     static AlertDialog mProcessingDialog = null;
-    static private boolean mCANCEL = false;
+    static private volatile boolean mCANCEL = false;
 
     static public void backupToTreeUri(final AppCompatActivity activity, final Uri rootUri, final String path) {
         if (rootUri == null) return;
@@ -35,6 +53,7 @@ static public void backupToTreeUri(final AppCompatActivity activity, final Uri r
             }
             final AlertDialog dlg = createProcessingDialog(activity);
             mProcessingDialog = dlg;
+            mCANCEL = false;
             showDialog(activity, dlg);
             try {
                 new Thread() {
@@ -86,50 +105,333 @@ static private void alertDialog(AppCompatActivity activity, String message) {
         });
     }
 
+    /*
+     * Back up a directory tree incrementally.
+     *
+     * Each destination directory is listed once, with a single query.  A
+     * manifest of the size, modification time and MD5 of every file backed up
+     * to this destination is kept in the app's files dir, so a file whose
+     * size and time haven't changed isn't copied again, and nor is one which
+     * was only touched.  Files are copied by a small pool of threads, while
+     * this thread walks the tree and makes the directories.
+     */
     static private void doBackupToTreeUri(AppCompatActivity activity, String rootPath, DocumentFile docRoot) throws Exception {
-        File dir = new File(rootPath);
-        File[] list = dir.listFiles();
-        if (list != null) {
-            setDialogMessage(activity, mProcessingDialog, rootPath);
-            for (File file : list) {
-                if (!ASFUtils.isSymlink(file)) {
-                    if (mCANCEL) return;
+        final ContentResolver resolver = activity.getContentResolver();
+        final Uri treeUri = docRoot.getUri();
+        final File manifestFile = getBackupManifestFile(activity, treeUri, rootPath);
+        final Map<String, BackupEntry> manifest = loadBackupManifest(manifestFile);
+        final Map<String, BackupEntry> backedUp = new ConcurrentHashMap<>();
+        final BackupProgress progress = new BackupProgress(activity);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final ExecutorService pool = Executors.newFixedThreadPool(BACKUP_THREADS);
+        final Semaphore slots = new Semaphore(BACKUP_THREADS + BACKUP_QUEUE);
+        boolean complete = false;
+        try {
+            final ArrayDeque<BackupDirectory> pending = new ArrayDeque<>();
+            pending.add(new BackupDirectory(new File(rootPath), "", DocumentsContract.getDocumentId(treeUri), false));
+            while (!pending.isEmpty() && !mCANCEL) {
+                final BackupDirectory dir = pending.removeFirst();
+                final File[] list = dir.file.listFiles();
+                if (list == null) continue;
+                progress.setDirectory(dir.file.toString());
+                final Uri dirUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, dir.documentId);
+                final Map<String, BackupTarget> targets = dir.created ? new HashMap<>() : listBackupTargets(resolver, treeUri, dir.documentId);
+                for (final File file : list) {
+                    if (mCANCEL) break;
+                    if (ASFUtils.isSymlink(file)) continue;
+                    final String name = file.getName();
+                    final String path = dir.path.isEmpty() ? name : dir.path + "/" + name;
+                    final BackupTarget target = targets.get(name);
                     if (file.isDirectory()) {
-                        String name = file.getName();
-                        DocumentFile newDir = docRoot.findFile(name);
-                        if (newDir == null) newDir = docRoot.createDirectory(name);
-                        if (newDir != null) {
-                            Uri newRooturi = newDir.getUri();
-                            DocumentFile newDocRoot = DocumentFile.fromTreeUri(activity, newRooturi);
-                            doBackupToTreeUri(activity, file.toString(), newDocRoot);
-                        }
-                    } else {
-                        String name = file.getName();
-                        String ext = name.substring(name.lastIndexOf("."));
-                        ext = ext.toLowerCase();
-                        ext = ext.replaceAll("(html?)#.*", "$1");
-                        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(ext);
-                        DocumentFile dstDoc = docRoot.findFile(name);
-                        File src = new File(rootPath + "/" + name);
-                        if (dstDoc == null || src.lastModified() > dstDoc.lastModified()) {
-                            if (dstDoc == null)
-                                dstDoc = docRoot.createFile(mimeType != null ? mimeType : "application/octet-stream", name);
-                            if (dstDoc != null) {
-                                InputStream is = new FileInputStream(src);
-                                OutputStream os = activity.getContentResolver().openOutputStream(dstDoc.getUri());
-                                cpStream(is, os);
-                                setLastModified(dstDoc, activity, src.lastModified());
+                        if (target != null && target.isDirectory) {
+                            pending.add(new BackupDirectory(file, path, target.documentId, false));
+                        } else {
+                            Uri newDir = DocumentsContract.createDocument(resolver, dirUri, DocumentsContract.Document.MIME_TYPE_DIR, name);
+                            if (newDir != null) {
+                                pending.add(new BackupDirectory(file, path, DocumentsContract.getDocumentId(newDir), true));
                             }
                         }
+                        continue;
                     }
+                    final long size = file.length();
+                    final long mtime = file.lastModified();
+                    final BackupEntry entry = manifest.get(path);
+                    final boolean exists = target != null && !target.isDirectory;
+                    if (exists && entry == null && target.size == size && target.lastModified >= mtime) {
+                        // Backed up before there was a manifest.  Only trusted when the
+                        // provider reports the size, as a copy cut short is left behind
+                        // with its time set after the source's.
+                        backedUp.put(path, new BackupEntry(size, mtime, ""));
+                        continue;
+                    }
+                    if (exists && entry != null && entry.size == size && target.sizeMatches(size) && entry.mtime == mtime) {
+                        backedUp.put(path, entry);
+                        continue;
+                    }
+                    slots.acquire();
+                    progress.queued();
+                    pool.execute(() -> {
+                        try {
+                            if (mCANCEL) return;
+                            if (exists && entry != null && entry.size == size && target.sizeMatches(size) &&
+                                    !entry.hash.isEmpty() && entry.hash.equals(hashFile(file))) {
+                                // Only touched
+                                backedUp.put(path, new BackupEntry(size, mtime, entry.hash));
+                            } else {
+                                // Forget the old copy, in case this one is cut short
+                                manifest.remove(path);
+                                Uri uri = exists ? DocumentsContract.buildDocumentUriUsingTree(treeUri, target.documentId)
+                                        : DocumentsContract.createDocument(resolver, dirUri, getBackupMimeType(name), name);
+                                if (uri == null) throw new IOException("Failed to create " + path);
+                                String hash = backupFile(resolver, file, uri);
+                                if (hash == null) return;
+                                setLastModified(uri, activity, mtime);
+                                backedUp.put(path, new BackupEntry(size, mtime, hash));
+                            }
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, new IOException(file + ": " + e.getMessage()));
+                        } finally {
+                            progress.done();
+                            slots.release();
+                        }
+                    });
                 }
             }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            complete = !mCANCEL;
+        } finally {
+            pool.shutdownNow();
+            if (!complete) {
+                // Keep what is known about the files not reached, for the next backup
+                for (Map.Entry<String, BackupEntry> e : manifest.entrySet()) {
+                    if (!backedUp.containsKey(e.getKey())) backedUp.put(e.getKey(), e.getValue());
+                }
+            }
+            saveBackupManifest(manifestFile, backedUp);
+        }
+        if (failure.get() != null) throw failure.get();
+    }
+
+    // Files copied at once by a backup, and the most files waiting to be copied
+    private static final int BACKUP_THREADS = 4;
+    private static final int BACKUP_QUEUE = 64;
+    private static final String BACKUP_MANIFEST_DIR = "backup_manifests";
+    private static final int BACKUP_MANIFEST_MAGIC = 0x424b4d46; // "BKMF"
+    private static final int BACKUP_MANIFEST_VERSION = 1;
+
+    static private class BackupDirectory {
+        final File file;
+        final String path;
+        final String documentId;
+        final boolean created;
+
+        BackupDirectory(File file, String path, String documentId, boolean created) {
+            this.file = file;
+            this.path = path;
+            this.documentId = documentId;
+            this.created = created;
+        }
+    }
+
+    // A document already in a backup directory
+    static private class BackupTarget {
+        final String documentId;
+        final boolean isDirectory;
+        final long size;
+        final long lastModified;
+
+        BackupTarget(String documentId, boolean isDirectory, long size, long lastModified) {
+            this.documentId = documentId;
+            this.isDirectory = isDirectory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        // Not every provider reports sizes
+        boolean sizeMatches(long size) {
+            return this.size < 0 || this.size == size;
+        }
+    }
+
+    // What the manifest knows about a file backed up before
+    static private class BackupEntry {
+        final long size;
+        final long mtime;
+        final String hash;
+
+        BackupEntry(long size, long mtime, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+    }
+
+    static private class BackupProgress {
+        private static final long INTERVAL_MS = 250;
+
+        private final AppCompatActivity mActivity;
+        private final AtomicInteger mQueued = new AtomicInteger();
+        private final AtomicInteger mDone = new AtomicInteger();
+        private volatile String mDirectory = "";
+        private long mLastUpdate;
+
+        BackupProgress(AppCompatActivity activity) {
+            mActivity = activity;
+        }
+
+        void setDirectory(String directory) {
+            mDirectory = directory;
+            update();
+        }
+
+        void queued() {
+            mQueued.incrementAndGet();
+        }
+
+        void done() {
+            mDone.incrementAndGet();
+            update();
+        }
+
+        private synchronized void update() {
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastUpdate < INTERVAL_MS) return;
+            mLastUpdate = now;
+            setDialogMessage(mActivity, mProcessingDialog, mDirectory + "\n   " + mDone.get() + " / " + mQueued.get());
+        }
+    }
+
+    static private Map<String, BackupTarget> listBackupTargets(ContentResolver resolver, Uri treeUri, String documentId) {
+        Map<String, BackupTarget> targets = new HashMap<>();
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
+        Cursor cursor = resolver.query(childrenUri, new String[]{
+                        DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                        DocumentsContract.Document.COLUMN_MIME_TYPE,
+                        DocumentsContract.Document.COLUMN_SIZE,
+                        DocumentsContract.Document.COLUMN_LAST_MODIFIED},
+                null, null, null);
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                long size = cursor.isNull(3) ? -1 : cursor.getLong(3);
+                long mtime = cursor.isNull(4) ? 0 : cursor.getLong(4);
+                targets.put(cursor.getString(0), new BackupTarget(cursor.getString(1), isDirectory(cursor.getString(2)), size, mtime));
+            }
+        } finally {
+            closeQuietly(cursor);
+        }
+        return targets;
+    }
+
+    /*
+     * Copy a file to a document, returning the MD5 of what was copied, or
+     * null if the backup was cancelled first.
+     */
+    static private String backupFile(ContentResolver resolver, File src, Uri uri) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        OutputStream os;
+        try {
+            os = resolver.openOutputStream(uri, "wt");
+        } catch (IllegalArgumentException | FileNotFoundException e) {
+            // Not every provider can truncate
+            os = resolver.openOutputStream(uri, "w");
+        }
+        if (os == null) throw new IOException("Failed to open " + uri);
+        try (InputStream is = new FileInputStream(src)) {
+            byte[] buf = new byte[64 * 1024];
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                if (mCANCEL) return null;
+                md5.update(buf, 0, len);
+                os.write(buf, 0, len);
+            }
+        } finally {
+            os.close();
+        }
+        return toHex(md5.digest());
+    }
+
+    static private String hashFile(File file) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        try (InputStream is = new FileInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                md5.update(buf, 0, len);
+            }
+        }
+        return toHex(md5.digest());
+    }
+
+    static private String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    static private String getBackupMimeType(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) return "application/octet-stream";
+        String ext = name.substring(dot + 1).toLowerCase();
+        ext = ext.replaceAll("(html?)#.*", "$1");
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(ext);
+        return mimeType != null ? mimeType : "application/octet-stream";
+    }
+
+    // One manifest per source directory and destination tree
+    static private File getBackupManifestFile(Context context, Uri treeUri, String rootPath) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        String key = treeUri.toString() + "\0" + rootPath;
+        File dir = new File(context.getFilesDir(), BACKUP_MANIFEST_DIR);
+        return new File(dir, toHex(md5.digest(key.getBytes("UTF-8"))));
+    }
+
+    static private Map<String, BackupEntry> loadBackupManifest(File file) {
+        Map<String, BackupEntry> manifest = new ConcurrentHashMap<>();
+        if (!file.isFile()) return manifest;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != BACKUP_MANIFEST_MAGIC || in.readInt() != BACKUP_MANIFEST_VERSION) return manifest;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                String hash = in.readUTF();
+                manifest.put(path, new BackupEntry(size, mtime, hash));
+            }
+        } catch (IOException e) {
+            // Start again without it
+            manifest.clear();
+        }
+        return manifest;
+    }
+
+    static private void saveBackupManifest(File file, Map<String, BackupEntry> manifest) {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) return;
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(BACKUP_MANIFEST_MAGIC);
+            out.writeInt(BACKUP_MANIFEST_VERSION);
+            out.writeInt(manifest.size());
+            for (Map.Entry<String, BackupEntry> e : manifest.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().mtime);
+                out.writeUTF(e.getValue().hash);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return;
         }
+        if (!temp.renameTo(file)) temp.delete();
     }
 
-    static private void setLastModified(DocumentFile docFile, Context context, long time) {
+    static private void setLastModified(Uri uri, Context context, long time) {
         try {
-            Uri uri = docFile.getUri();
             String path = UriToPath.getPath(context, uri);
             if (path != null) {
                 new File(path).setLastModified(time);
@@ -169,6 +471,7 @@ static public void restoreHomeFromTreeUri(final AppCompatActivity activity, fina
         }
         final AlertDialog dlg = createProcessingDialog(activity);
         mProcessingDialog = dlg;
+        mCANCEL = false;
         String message = rootUri.getPath();
         if (message != null) setDialogMessage(activity, mProcessingDialog, message);
         showDialog(activity, dlg);
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies and moves files and directory trees.
+ * <p>
+ * File contents are copied with {@link FileChannel#transferTo}, which the
+ * kernel does without passing the data through the Java heap.  The files of
+ * a tree are copied by a small pool of threads, while its directories and
+ * symbolic links are made in order by the calling thread.  Copies keep the
+ * permission bits of what they copy, but not its owner or times.  A move is
+ * a rename unless the target is on another file system.
+ */
+public class FileCopier {
+    private static final int MAX_THREADS = 4;
+
+    private FileCopier() {
+    }
+
+    /**
+     * Get a file in a directory which doesn't exist yet, with the given name
+     * if possible, or else with a number added to it as in "name (1).txt".
+     */
+    public static File buildUniqueFile(File parent, String name) {
+        File file = new File(parent, name);
+        if (!exists(file)) {
+            return file;
+        }
+        String base = name;
+        String extension = "";
+        final int lastDot = name.lastIndexOf('.');
+        if (lastDot > 0) {
+            base = name.substring(0, lastDot);
+            extension = name.substring(lastDot);
+        }
+        for (int i = 1; ; i++) {
+            file = new File(parent, base + " (" + i + ")" + extension);
+            if (!exists(file)) {
+                return file;
+            }
+        }
+    }
+
+    /**
+     * Copy the contents of a file.
+     */
+    public static void copyFile(File source, File target) throws IOException {
+        try (FileInputStream in = new FileInputStream(source);
+             FileOutputStream out = new FileOutputStream(target)) {
+            final FileChannel inChannel = in.getChannel();
+            final FileChannel outChannel = out.getChannel();
+            final long size = inChannel.size();
+            long position = 0;
+            while (position < size) {
+                final long count = inChannel.transferTo(position, size - position, outChannel);
+                if (count <= 0) {
+                    break;
+                }
+                position += count;
+            }
+        }
+    }
+
+    /**
+     * Copy a file, or a directory and everything in it.  Symbolic links in a
+     * directory are copied as links rather than followed.  If the copy
+     * fails, nothing is still writing to the target when this returns, so
+     * the caller can remove it.
+     *
+     * @param source the file or directory to copy
+     * @param target where to put the copy, which must not exist yet
+     */
+    public static void copy(File source, File target) throws IOException {
+        if (!source.isDirectory()) {
+            copyFile(source, target);
+            copyMode(target, stat(source).st_mode);
+            return;
+        }
+        final String sourcePath = source.getCanonicalPath();
+        final String targetPath = target.getCanonicalPath();
+        if (targetPath.equals(sourcePath) || targetPath.startsWith(sourcePath + "/")) {
+            throw new IOException("Can't copy " + source + " into itself");
+        }
+
+        final int threads = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final List<Future<Void>> copies = new ArrayList<>();
+        // Directories get their modes last, in case they don't let us write
+        final List<File> dirsMade = new ArrayList<>();
+        final List<Integer> dirModes = new ArrayList<>();
+        try {
+            final ArrayDeque<File[]> pending = new ArrayDeque<>();
+            pending.add(new File[]{source, target});
+            while (!pending.isEmpty()) {
+                final File[] dirs = pending.removeFirst();
+                if (!dirs[1].mkdir()) {
+                    throw new IOException("Failed to create " + dirs[1]);
+                }
+                dirsMade.add(dirs[1]);
+                dirModes.add(stat(dirs[0]).st_mode);
+                final String[] names = dirs[0].list();
+                if (names == null) {
+                    throw new IOException("Failed to list " + dirs[0]);
+                }
+                for (String name : names) {
+                    final File from = new File(dirs[0], name);
+                    final File to = new File(dirs[1], name);
+                    final StructStat stat = lstat(from);
+                    if (OsConstants.S_ISLNK(stat.st_mode)) {
+                        try {
+                            Os.symlink(Os.readlink(from.getPath()), to.getPath());
+                        } catch (ErrnoException e) {
+                            throw new IOException("Failed to copy link " + from + ": " + e.getMessage());
+                        }
+                    } else if (OsConstants.S_ISDIR(stat.st_mode)) {
+                        pending.add(new File[]{from, to});
+                    } else {
+                        copies.add(pool.submit(() -> {
+                            copyFile(from, to);
+                            copyMode(to, stat.st_mode);
+                            return null;
+                        }));
+                    }
+                }
+            }
+            for (Future<Void> copy : copies) {
+                copy.get();
+            }
+            for (int i = dirsMade.size() - 1; i >= 0; i--) {
+                copyMode(dirsMade.get(i), dirModes.get(i));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted copying " + source);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to copy " + source + ": " + cause);
+        } finally {
+            pool.shutdownNow();
+            awaitTermination(pool);
+        }
+    }
+
+    /**
+     * Wait for the copies still running to stop, as the caller may delete
+     * the target as soon as we return.
+     */
+    private static void awaitTermination(ExecutorService pool) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Move a file or a directory, by renaming it if the target is on the same
+     * file system, or else by copying it and deleting the source.
+     *
+     * @param source the file or directory to move
+     * @param target where to move it, which must not exist yet
+     */
+    public static void move(File source, File target) throws IOException {
+        try {
+            Os.rename(source.getPath(), target.getPath());
+            return;
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EXDEV) {
+                throw new IOException("Failed to move " + source + ": " + e.getMessage());
+            }
+        }
+        try {
+            copy(source, target);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(target);
+            throw e;
+        }
+        FileUtils.forceDelete(source);
+    }
+
+    private static boolean exists(File file) {
+        try {
+            Os.lstat(file.getPath());
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private static void copyMode(File file, int mode) throws IOException {
+        try {
+            Os.chmod(file.getPath(), mode & 0777);
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to set the mode of " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static StructStat stat(File file) throws IOException {
+        try {
+            return Os.stat(file.getPath());
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to stat " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static StructStat lstat(File file) throws IOException {
+        try {
+            return Os.lstat(file.getPath());
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to stat " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.DocumentsContract.Document;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of the files under a directory, with the metadata a documents
+ * provider needs to list them (name, size, modification time and MIME type).
+ * <p>
+ * The index is built by one walk of the tree, saved to a file, and kept
+ * current from inotify events through a {@link RecursiveFileObserver}, so
+ * that searches and recent document queries don't have to walk or stat the
+ * tree themselves.  A saved index is served as soon as it is loaded, while
+ * the tree is walked again in the background to pick up changes made while
+ * it wasn't being watched.  Without a saved index, queries are answered from
+ * the files walked so far until the walk is done; {@link #isReady} tells
+ * the two apart.
+ */
+public class FileMetadataIndex {
+    private static final String TAG = "FileMetadataIndex";
+
+    private static final int FILE_MAGIC = 0x46494458; // "FIDX"
+    private static final int FILE_VERSION = 1;
+
+    private static final int EVENT_MASK = FileObserver.CREATE | FileObserver.DELETE |
+            FileObserver.DELETE_SELF | FileObserver.MOVED_FROM | FileObserver.MOVED_TO |
+            FileObserver.CLOSE_WRITE | FileObserver.ATTRIB;
+
+    // How many entries the first walk finds before they are added to the index
+    private static final int PUBLISH_BATCH = 1000;
+
+    // How long to collect changes before saving the index again
+    private static final long SAVE_DELAY_MS = 10 * 1000;
+
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    private static final Map<String, String> sTypesByExtension = new ConcurrentHashMap<>();
+
+    /**
+     * The indexed metadata of one file or directory.
+     */
+    public static class Entry {
+        public final String path;
+        public final String name;
+        public final long size;
+        public final long lastModified;
+        public final String mimeType;
+
+        Entry(String path, long size, long lastModified, String mimeType) {
+            this.path = path;
+            this.name = path.substring(path.lastIndexOf('/') + 1);
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mimeType = mimeType;
+        }
+
+        public boolean isDirectory() {
+            return Document.MIME_TYPE_DIR.equals(mimeType);
+        }
+
+        public File getFile() {
+            return new File(path);
+        }
+    }
+
+    private final File mRoot;
+    private final String mRootPath;
+    private final File mIndexFile;
+
+    // Guarded by this; replaced wholesale only by a load, a complete walk or a stop
+    private TreeMap<String, Entry> mEntries = new TreeMap<>();
+    private volatile boolean mReady;
+    private volatile Runnable mOnReady;
+
+    private HandlerThread mThread;
+    private volatile Handler mHandler;
+    private RecursiveFileObserver mObserver;
+    private boolean mSaveScheduled;
+
+    public FileMetadataIndex(File root, File indexFile) {
+        mRoot = root;
+        mRootPath = root.getAbsolutePath();
+        mIndexFile = indexFile;
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * Set what to run, on the index thread, each time the index becomes
+     * ready after being started.
+     */
+    public void setOnReadyListener(Runnable listener) {
+        mOnReady = listener;
+    }
+
+    /**
+     * Load or build the index in the background and start keeping it
+     * current.  Does nothing if the index is already started.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean loaded = load();
+                if (loaded) {
+                    setReady();
+                }
+                // Watch before walking, so that nothing changed during the walk is missed
+                mObserver = new RecursiveFileObserver(mRootPath, EVENT_MASK,
+                        new RecursiveFileObserver.EventListener() {
+                            @Override
+                            public void onEvent(int event, File file) {
+                                postEvent(event, file);
+                            }
+                        }) {
+                    @Override
+                    public void onEvent(int event, String path) {
+                        // Handled by the listener, without logging every event
+                    }
+                };
+                mObserver.startWatching();
+                TreeMap<String, Entry> entries = new TreeMap<>();
+                // With nothing loaded, serve what has been walked so far meanwhile
+                walk(mRoot, entries, !loaded);
+                synchronized (FileMetadataIndex.this) {
+                    mEntries = entries;
+                }
+                setReady();
+                scheduleSave();
+            }
+        });
+    }
+
+    /**
+     * Stop keeping the index current, saving it first if it has changed, and
+     * let go of the entries.  {@link #start} loads them again.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        final HandlerThread thread = mThread;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mObserver != null) {
+                    mObserver.stopWatching();
+                }
+                if (mSaveScheduled) {
+                    save();
+                }
+                synchronized (FileMetadataIndex.this) {
+                    // Unless started again meanwhile
+                    if (mThread == null) {
+                        mEntries = new TreeMap<>();
+                        mReady = false;
+                    }
+                }
+                thread.quit();
+            }
+        });
+        mThread = null;
+        mHandler = null;
+    }
+
+    /**
+     * @return Whether the index has been loaded or built, rather than holding
+     *         only the files walked so far.
+     */
+    public boolean isReady() {
+        return mReady;
+    }
+
+    // Called on the index thread
+    private void setReady() {
+        mReady = true;
+        Runnable listener = mOnReady;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Find the files under a directory whose names contain a string, ignoring
+     * case, in path order.
+     *
+     * @param parent     the directory to search
+     * @param query      the string to look for in file names
+     * @param skipHidden whether to leave out dot files and directories at the
+     *                   top of the index
+     * @param limit      the most entries to return
+     */
+    public List<Entry> search(File parent, String query, boolean skipHidden, int limit) {
+        List<Entry> result = new ArrayList<>();
+        int length = query.length();
+        synchronized (this) {
+            for (Entry entry : entriesUnder(parent)) {
+                if (entry.isDirectory() || (skipHidden && isHidden(entry))) {
+                    continue;
+                }
+                String name = entry.name;
+                for (int i = 0; i + length <= name.length(); ++i) {
+                    if (name.regionMatches(true, i, query, 0, length)) {
+                        result.add(entry);
+                        break;
+                    }
+                }
+                if (result.size() >= limit) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the most recently modified files under a directory, newest first.
+     *
+     * @param parent the directory to search
+     * @param count  the most entries to return
+     */
+    public List<Entry> recent(File parent, int count) {
+        if (count <= 0) {
+            return new ArrayList<>();
+        }
+        // Keep only the newest count entries seen so far, with the oldest of
+        // them at the head to be replaced
+        PriorityQueue<Entry> newest = new PriorityQueue<>(count, (i, j) ->
+                Long.compare(i.lastModified, j.lastModified));
+        synchronized (this) {
+            for (Entry entry : entriesUnder(parent)) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                if (newest.size() < count) {
+                    newest.add(entry);
+                } else if (entry.lastModified > newest.peek().lastModified) {
+                    newest.poll();
+                    newest.add(entry);
+                }
+            }
+        }
+        List<Entry> result = new ArrayList<>(newest.size());
+        while (!newest.isEmpty()) {
+            result.add(newest.poll());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    // Must be called with the index locked
+    private Collection<Entry> entriesUnder(File parent) {
+        String path = parent.getAbsolutePath();
+        if (path.equals(mRootPath)) {
+            return mEntries.values();
+        }
+        // '/' + 1 is '0', so this is every path under the directory
+        return mEntries.subMap(path + "/", path + "0").values();
+    }
+
+    private boolean isHidden(Entry entry) {
+        return entry.path.startsWith(mRootPath + "/.");
+    }
+
+    private void postEvent(final int event, final File file) {
+        Handler handler = mHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                onEvent(event, file);
+            }
+        });
+    }
+
+    // Called on the index thread
+    private void onEvent(int event, File file) {
+        String path = file.getAbsolutePath();
+        if (!path.startsWith(mRootPath + "/")) {
+            return;
+        }
+        switch (event) {
+            case FileObserver.DELETE:
+            case FileObserver.DELETE_SELF:
+            case FileObserver.MOVED_FROM:
+                synchronized (this) {
+                    mEntries.remove(path);
+                    mEntries.subMap(path + "/", path + "0").clear();
+                }
+                break;
+            case FileObserver.CREATE:
+            case FileObserver.MOVED_TO:
+                // A new directory may already have children, and a moved one will
+                TreeMap<String, Entry> entries = new TreeMap<>();
+                walk(file, entries, false);
+                synchronized (this) {
+                    mEntries.remove(path);
+                    mEntries.subMap(path + "/", path + "0").clear();
+                    mEntries.putAll(entries);
+                }
+                break;
+            case FileObserver.CLOSE_WRITE:
+            case FileObserver.ATTRIB:
+                Entry entry = stat(file);
+                synchronized (this) {
+                    if (entry != null) {
+                        mEntries.put(path, entry);
+                    } else {
+                        mEntries.remove(path);
+                    }
+                }
+                break;
+            default:
+                return;
+        }
+        scheduleSave();
+    }
+
+    private static Entry stat(File file) {
+        long lastModified = file.lastModified();
+        if (lastModified == 0 && !file.exists()) {
+            return null;
+        }
+        if (file.isDirectory()) {
+            return new Entry(file.getAbsolutePath(), 0, lastModified, Document.MIME_TYPE_DIR);
+        }
+        return new Entry(file.getAbsolutePath(), file.length(), lastModified,
+                getTypeForName(file.getName()));
+    }
+
+    /*
+     * Add top and everything under it to entries, and to the index as well
+     * in batches if publish is set.  Directories are entered once each, so a
+     * symlink loop can't keep the walk going.
+     */
+    private void walk(File top, Map<String, Entry> entries, boolean publish) {
+        Set<String> visited = new HashSet<>();
+        ArrayDeque<File> pending = new ArrayDeque<>();
+        List<Entry> batch = publish ? new ArrayList<>(PUBLISH_BATCH) : null;
+        pending.add(top);
+        while (!pending.isEmpty()) {
+            File file = pending.removeFirst();
+            Entry entry = stat(file);
+            if (entry == null) {
+                continue;
+            }
+            entries.put(entry.path, entry);
+            if (batch != null) {
+                batch.add(entry);
+                if (batch.size() >= PUBLISH_BATCH) {
+                    publish(batch);
+                }
+            }
+            if (!entry.isDirectory()) {
+                continue;
+            }
+            try {
+                if (!visited.add(file.getCanonicalPath())) {
+                    continue;
+                }
+            } catch (IOException e) {
+                continue;
+            }
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    pending.add(child);
+                }
+            }
+        }
+        if (batch != null) {
+            publish(batch);
+        }
+    }
+
+    private void publish(List<Entry> batch) {
+        synchronized (this) {
+            for (Entry entry : batch) {
+                mEntries.put(entry.path, entry);
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Get the MIME type of a file from the extension of its name.  Lookups
+     * are cached by extension, since a tree holds many files of few types.
+     *
+     * @param name the file name
+     * @return the MIME type, or application/octet-stream if it isn't known
+     */
+    public static String getTypeForName(String name) {
+        final int lastDot = name.lastIndexOf('.');
+        if (lastDot < 0) {
+            return DEFAULT_MIME_TYPE;
+        }
+        final String extension = name.substring(lastDot + 1);
+        String mime = sTypesByExtension.get(extension);
+        if (mime == null) {
+            mime = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+            if (mime == null) {
+                mime = DEFAULT_MIME_TYPE;
+            }
+            sTypesByExtension.put(extension, mime);
+        }
+        return mime;
+    }
+
+    // Called on the index thread
+    private void scheduleSave() {
+        if (mSaveScheduled || mHandler == null) {
+            return;
+        }
+        mSaveScheduled = true;
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY_MS);
+    }
+
+    // Called on the index thread
+    private void save() {
+        mSaveScheduled = false;
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries.values());
+        }
+        File temp = new File(mIndexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(mRootPath);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeUTF(entry.mimeType);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save " + mIndexFile + ": " + e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(mIndexFile)) {
+            Log.w(TAG, "Failed to replace " + mIndexFile);
+            temp.delete();
+        }
+    }
+
+    // Called on the index thread
+    private boolean load() {
+        if (!mIndexFile.isFile()) {
+            return false;
+        }
+        TreeMap<String, Entry> entries = new TreeMap<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mIndexFile)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION ||
+                    !in.readUTF().equals(mRootPath)) {
+                return false;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String mimeType = in.readUTF();
+                entries.put(path, new Entry(path, size, lastModified, mimeType));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load " + mIndexFile + ": " + e);
+            return false;
+        }
+        synchronized (this) {
+            mEntries = entries;
+        }
+        return true;
+    }
+}
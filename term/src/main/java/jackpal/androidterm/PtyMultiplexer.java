@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jackpal.androidterm.emulatorview.TermSession;
+
+/**
+ * Does the pty I/O of all shell sessions on one thread, in place of the
+ * reader and writer threads each session would otherwise have, and, on
+ * Android 12 and later, notices their processes exiting, in place of a
+ * watcher thread per process.
+ * <p>
+ * The thread waits in epoll on the pty masters, which are made
+ * non-blocking, and on a pidfd for each process where the kernel has them
+ * (Android 12 and later).  Each pty is read once each time round, straight
+ * into its session's input queue, so that one busy session can't starve
+ * the others, and only while its session has room for input; output is
+ * written as far as the pty takes it, and the rest when the pty becomes
+ * writable.  Sessions tell the thread about new output and room for input
+ * through a wake pipe, so nothing but the session's own queues is ever
+ * shared with it.
+ * <p>
+ * Without pidfds, which is before Android 12 or when pidfd_open() fails,
+ * {@link Client#start} says so and the session keeps its own watcher
+ * thread, blocked in waitpid(), so there the thread count still grows by
+ * one per session.
+ */
+final class PtyMultiplexer {
+    /**
+     * Callback to be invoked, on the multiplexer thread, when the process of
+     * a session exits.
+     */
+    interface ExitListener {
+        /**
+         * @param result The exit status of the process, as returned by
+         *               {@link TermExec#waitFor}.
+         */
+        void onProcessExit(int result);
+    }
+
+    // epoll_ctl() operations and epoll events, as the kernel numbers them
+    private static final int EPOLL_CTL_ADD = 1;
+    private static final int EPOLL_CTL_DEL = 2;
+    private static final int EPOLL_CTL_MOD = 3;
+    private static final int EPOLLIN = 0x001;
+    private static final int EPOLLOUT = 0x004;
+    private static final int EPOLLERR = 0x008;
+    private static final int EPOLLHUP = 0x010;
+
+    // Token of the wake pipe; clients have their number shifted left one,
+    // with the low bit set for the pidfd
+    private static final int WAKE_TOKEN = -1;
+
+    private static final int SIGNAL_INPUT_SPACE = 1;
+    private static final int SIGNAL_OUTPUT_READY = 2;
+
+    // Size of the buffer output is written to a pty from
+    private static final int BUFFER_SIZE = 4096;
+
+    private static PtyMultiplexer sInstance;
+    private static boolean sUnavailable;
+
+    private final int mEpollFd;
+    private final int mWakeReadFd;
+    private final int mWakeWriteFd;
+    private final AtomicBoolean mWakePending = new AtomicBoolean();
+    private final ConcurrentLinkedQueue<Client> mSignalled = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Integer, Client> mClients = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextClient = new AtomicInteger();
+
+    static {
+        System.loadLibrary("jackpal-androidterm5");
+    }
+
+    /**
+     * @return The multiplexer, which is started on first use, or null if it
+     *         couldn't be started, in which case sessions should do their
+     *         own I/O.
+     */
+    static synchronized PtyMultiplexer getInstance() {
+        if (sInstance == null && !sUnavailable) {
+            try {
+                sInstance = new PtyMultiplexer();
+            } catch (IOException e) {
+                Log.e(TermDebug.LOG_TAG, "Failed to start pty multiplexer: " + e.getMessage());
+                sUnavailable = true;
+            }
+        }
+        return sInstance;
+    }
+
+    private PtyMultiplexer() throws IOException {
+        int[] wakeFds = new int[2];
+        mEpollFd = nativeCreate(wakeFds);
+        mWakeReadFd = wakeFds[0];
+        mWakeWriteFd = wakeFds[1];
+
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+        thread.setName("PtyMultiplexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Have the multiplexer do the I/O of a session, from when {@link
+     * Client#start} is called.  This must be called before the session's
+     * emulator is initialized.
+     *
+     * @param session The session.
+     * @param fd The pty master of the session, which is made non-blocking.
+     * @param pid The process attached to the pty.
+     * @param exitListener Told when the process exits.
+     * @return The {@link Client} for the session, or null if the pty can't
+     *         be multiplexed.
+     */
+    Client attach(TermSession session, int fd, int pid, ExitListener exitListener) {
+        try {
+            nativeSetNonBlocking(fd);
+        } catch (IOException e) {
+            Log.e(TermDebug.LOG_TAG, "Failed to multiplex pty: " + e.getMessage());
+            return null;
+        }
+        Client client = new Client(session, fd, pid, exitListener,
+                mNextClient.getAndIncrement() << 1);
+        session.setIOListener(client);
+        return client;
+    }
+
+    private void loop() {
+        long[] events = new long[32];
+        while (true) {
+            int count;
+            try {
+                count = nativeWait(mEpollFd, events);
+            } catch (IOException e) {
+                Log.e(TermDebug.LOG_TAG, "Pty multiplexer stopped: " + e.getMessage());
+                return;
+            }
+            boolean woken = false;
+            for (int i = 0; i < count; ++i) {
+                int token = (int) (events[i] >> 32);
+                int mask = (int) events[i];
+                if (token == WAKE_TOKEN) {
+                    woken = true;
+                    continue;
+                }
+                Client client = mClients.get(token >> 1);
+                if (client == null) {
+                    continue;
+                }
+                if ((token & 1) != 0) {
+                    client.processExited();
+                } else {
+                    client.ready(mask);
+                }
+            }
+            if (woken) {
+                // Clear the flag first, so that signals from here on wake us again
+                mWakePending.set(false);
+                nativeClearWake(mWakeReadFd);
+                Client client;
+                while ((client = mSignalled.poll()) != null) {
+                    client.signalled();
+                }
+            }
+        }
+    }
+
+    /**
+     * A session whose I/O is done by the multiplexer.  Apart from {@link
+     * #start} and {@link #close}, and the {@link TermSession.IOListener}
+     * callbacks, everything happens on the multiplexer thread.
+     */
+    final class Client implements TermSession.IOListener {
+        private final TermSession mSession;
+        private final int mFd;
+        private final int mPid;
+        private final ExitListener mExitListener;
+        private final int mToken;
+        private final AtomicInteger mSignals = new AtomicInteger();
+        private final TermSession.InputReader mReader = new TermSession.InputReader() {
+            @Override
+            public int read(byte[] buffer, int offset, int count) {
+                int read = nativeRead(mFd, buffer, offset, count);
+                // nativeRead() returns 0 at EOF and -1 if there's nothing
+                // to read yet, the other way round from InputReader
+                return read == 0 ? -1 : (read == -1 ? 0 : read);
+            }
+        };
+
+        private int mPidFd = -1;
+        private boolean mClosed;
+
+        // Events the pty is registered for, or -1 if it isn't registered
+        private int mEvents = -1;
+        private boolean mWantInput = true;
+        private boolean mInputEnded;
+        private boolean mHungUp;
+
+        // Output taken from the session which the pty hasn't taken yet
+        private final byte[] mOutput = new byte[BUFFER_SIZE];
+        private int mOutputStart;
+        private int mOutputEnd;
+        private boolean mWantOutput;
+        private boolean mOutputFailed;
+
+        private Client(TermSession session, int fd, int pid, ExitListener exitListener,
+                       int token) {
+            mSession = session;
+            mFd = fd;
+            mPid = pid;
+            mExitListener = exitListener;
+            mToken = token;
+        }
+
+        /**
+         * Start doing the I/O of the session.  Call after the session's
+         * emulator is initialized.
+         *
+         * @return Whether the exit of the process will be reported to the
+         *         {@link ExitListener}.  If not, the caller has to wait for
+         *         it itself.
+         */
+        boolean start() {
+            mClients.put(mToken >> 1, this);
+            boolean watching;
+            synchronized (this) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                    // Older kernels may not have pidfd_open(), and older
+                    // seccomp policies kill the app for calling it
+                    mPidFd = nativePidfdOpen(mPid);
+                    if (mPidFd != -1) {
+                        try {
+                            nativeControl(mEpollFd, EPOLL_CTL_ADD, mPidFd, mToken | 1, EPOLLIN);
+                        } catch (IOException e) {
+                            nativeClose(mPidFd);
+                            mPidFd = -1;
+                        }
+                    }
+                }
+                // Checked here, as the process may exit as soon as we let go
+                watching = mPidFd != -1;
+                updateEvents();
+            }
+            // Anything written before now
+            signal(SIGNAL_OUTPUT_READY);
+            return watching;
+        }
+
+        /**
+         * Stop doing the I/O of the session.  Once this returns, the
+         * multiplexer doesn't touch the pty, which can then be closed.
+         */
+        void close() {
+            synchronized (this) {
+                mClosed = true;
+                if (mEvents != -1) {
+                    try {
+                        nativeControl(mEpollFd, EPOLL_CTL_DEL, mFd, 0, 0);
+                    } catch (IOException e) {
+                        // The pty is gone anyway
+                    }
+                    mEvents = -1;
+                }
+                if (mPidFd != -1) {
+                    // Keep watching the process, so that it is reaped
+                    return;
+                }
+            }
+            mClients.remove(mToken >> 1);
+        }
+
+        @Override
+        public void onInputSpace(TermSession session) {
+            signal(SIGNAL_INPUT_SPACE);
+        }
+
+        @Override
+        public void onOutputReady(TermSession session) {
+            signal(SIGNAL_OUTPUT_READY);
+        }
+
+        private void signal(int what) {
+            int old;
+            do {
+                old = mSignals.get();
+            } while (!mSignals.compareAndSet(old, old | what));
+            if (old == 0) {
+                mSignalled.add(this);
+                if (!mWakePending.getAndSet(true)) {
+                    nativeWake(mWakeWriteFd);
+                }
+            }
+        }
+
+        private synchronized void signalled() {
+            int signals = mSignals.getAndSet(0);
+            if (mClosed) {
+                return;
+            }
+            if ((signals & SIGNAL_INPUT_SPACE) != 0) {
+                mWantInput = true;
+            }
+            if ((signals & SIGNAL_OUTPUT_READY) != 0) {
+                writeOutput();
+            }
+            updateEvents();
+        }
+
+        private synchronized void ready(int events) {
+            if (mClosed) {
+                return;
+            }
+            mHungUp = (events & (EPOLLHUP | EPOLLERR)) != 0;
+            if ((events & (EPOLLIN | EPOLLHUP | EPOLLERR)) != 0 && mWantInput && !mInputEnded) {
+                readInput();
+            }
+            if ((events & EPOLLOUT) != 0) {
+                writeOutput();
+            }
+            updateEvents();
+        }
+
+        /* Do one read, so that other ptys get their turn */
+        private void readInput() {
+            if (mSession.getInputSpace() == 0) {
+                // The session tells us when it has drained some
+                mWantInput = false;
+                return;
+            }
+            int read;
+            try {
+                read = mSession.receiveInput(mReader);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read == -1) {
+                // EOF -- the process side of the pty is closed, so nobody
+                // reads output any more either
+                mInputEnded = true;
+                mOutputFailed = true;
+                mSession.receiveEndOfInput();
+            }
+        }
+
+        private void writeOutput() {
+            while (true) {
+                if (mOutputStart == mOutputEnd) {
+                    mOutputStart = 0;
+                    mOutputEnd = mSession.takeOutput(mOutput, 0, mOutput.length);
+                    if (mOutputEnd == 0) {
+                        mWantOutput = false;
+                        return;
+                    }
+                }
+                if (mOutputFailed) {
+                    mOutputStart = mOutputEnd;
+                    continue;
+                }
+                int written;
+                try {
+                    written = nativeWrite(mFd, mOutput, mOutputStart, mOutputEnd - mOutputStart);
+                } catch (IOException e) {
+                    // We don't really care if the receiver isn't listening
+                    mOutputFailed = true;
+                    continue;
+                }
+                if (written < 0) {
+                    // Pty is full -- carry on when it's writable
+                    mWantOutput = true;
+                    return;
+                }
+                mOutputStart += written;
+            }
+        }
+
+        /* Register the pty for the events we can act on now */
+        private void updateEvents() {
+            int events = 0;
+            if (mWantInput && !mInputEnded) {
+                events |= EPOLLIN;
+            }
+            if (mWantOutput && !mOutputFailed) {
+                events |= EPOLLOUT;
+            }
+            if (mHungUp && (events & EPOLLIN) == 0) {
+                // A hung up pty is always ready; don't listen until we
+                // can read it
+                events = 0;
+            }
+            if (events == mEvents || (events == 0 && mEvents == -1)) {
+                return;
+            }
+            try {
+                if (events == 0) {
+                    nativeControl(mEpollFd, EPOLL_CTL_DEL, mFd, 0, 0);
+                    mEvents = -1;
+                } else {
+                    int op = mEvents == -1 ? EPOLL_CTL_ADD : EPOLL_CTL_MOD;
+                    nativeControl(mEpollFd, op, mFd, mToken, events);
+                    mEvents = events;
+                }
+            } catch (IOException e) {
+                Log.e(TermDebug.LOG_TAG, "Failed to update pty events: " + e.getMessage());
+            }
+        }
+
+        private void processExited() {
+            synchronized (this) {
+                if (mPidFd == -1) {
+                    return;
+                }
+                try {
+                    nativeControl(mEpollFd, EPOLL_CTL_DEL, mPidFd, 0, 0);
+                } catch (IOException e) {
+                    // Closing it takes care of it anyway
+                }
+                nativeClose(mPidFd);
+                mPidFd = -1;
+                if (mClosed) {
+                    mClients.remove(mToken >> 1);
+                }
+            }
+            int result = nativeReap(mPid);
+            Log.i(TermDebug.LOG_TAG, "Subprocess exited: " + result);
+            mExitListener.onProcessExit(result);
+        }
+    }
+
+    private static native int nativeCreate(int[] wakeFds) throws IOException;
+
+    private static native void nativeControl(int epfd, int op, int fd, int token, int events)
+            throws IOException;
+
+    private static native int nativeWait(int epfd, long[] events) throws IOException;
+
+    private static native void nativeWake(int fd);
+
+    private static native void nativeClearWake(int fd);
+
+    private static native int nativeRead(int fd, byte[] buffer, int offset, int count);
+
+    private static native int nativeWrite(int fd, byte[] buffer, int offset, int count)
+            throws IOException;
+
+    private static native void nativeSetNonBlocking(int fd) throws IOException;
+
+    private static native int nativePidfdOpen(int pid);
+
+    private static native int nativeReap(int pid);
+
+    private static native void nativeClose(int fd);
+}
@@ -4,8 +4,12 @@
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 public class RecursiveFileObserver extends FileObserver {
@@ -52,15 +56,25 @@ void startWatching(String path) {
 
     @Override
     public void startWatching() {
+        startWatchingTree(mPath);
+    }
+
+    private void startWatchingTree(String root) {
         Stack<String> stack = new Stack<>();
-        stack.push(mPath);
+        Set<String> visited = new HashSet<>();
+        stack.push(root);
 
-        // Recursively watch all child directories
+        // Recursively watch all child directories, once each even if symlinks loop
         while (!stack.empty()) {
             String parent = stack.pop();
+            File path = new File(parent);
+            try {
+                if (!visited.add(path.getCanonicalPath())) continue;
+            } catch (IOException e) {
+                continue;
+            }
             startWatching(parent);
 
-            File path = new File(parent);
             File[] files = path.listFiles();
             if (files != null) {
                 for (File file : files) {
@@ -85,6 +99,20 @@ void stopWatching(String path) {
         }
     }
 
+    private void stopWatchingTree(String root) {
+        String prefix = root + "/";
+        synchronized (mObservers) {
+            Iterator<Map.Entry<String, FileObserver>> it = mObservers.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, FileObserver> entry = it.next();
+                if (entry.getKey().equals(root) || entry.getKey().startsWith(prefix)) {
+                    entry.getValue().stopWatching();
+                    it.remove();
+                }
+            }
+        }
+    }
+
     @Override
     public void stopWatching() {
         synchronized (mObservers) {
@@ -180,10 +208,16 @@ public void onEvent(int event, String path) {
                     RecursiveFileObserver.this.stopWatching(filePath);
                     break;
                 case CREATE:
+                case MOVED_TO:
+                    // A directory may have gained children before it was watched
                     if (watch(file)) {
-                        RecursiveFileObserver.this.startWatching(file.getAbsolutePath());
+                        RecursiveFileObserver.this.startWatchingTree(file.getAbsolutePath());
                     }
                     break;
+                case MOVED_FROM:
+                    // Watches follow the inode, so drop them rather than report the old paths
+                    RecursiveFileObserver.this.stopWatchingTree(file.getAbsolutePath());
+                    break;
             }
 
             RecursiveFileObserver.this.onEvent(event, file.toString());
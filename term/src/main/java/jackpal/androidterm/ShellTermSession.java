@@ -43,6 +43,7 @@
 public class ShellTermSession extends GenericTermSession {
     private int mProcId;
     private final Thread mWatcherThread;
+    private final PtyMultiplexer.Client mMuxClient;
 
     private final String mInitialCommand;
 
@@ -80,6 +81,16 @@ public void run() {
             }
         };
         mWatcherThread.setName("Process watcher");
+
+        // Share one I/O thread with the other sessions, if we can
+        PtyMultiplexer mux = PtyMultiplexer.getInstance();
+        mMuxClient = mux == null ? null : mux.attach(this, mTermFd.getFd(), mProcId,
+                new PtyMultiplexer.ExitListener() {
+                    @Override
+                    public void onProcessExit(int result) {
+                        mMsgHandler.sendMessage(mMsgHandler.obtainMessage(PROCESS_EXITED, result));
+                    }
+                });
     }
 
     static private boolean mFirst = true;
@@ -139,7 +150,11 @@ private void initializeSession() throws IOException {
     public void initializeEmulator(int columns, int rows) {
         super.initializeEmulator(columns, rows);
 
-        mWatcherThread.start();
+        // Without a pidfd to watch (before Android 12), the multiplexer
+        // can't tell when the process exits, so it still needs a thread
+        if (mMuxClient == null || !mMuxClient.start()) {
+            mWatcherThread.start();
+        }
         sendInitialCommand(mInitialCommand);
         if (mPostCmd != null) {
             sendInitialCommand(mPostCmd);
@@ -298,6 +313,10 @@ private void onProcessExit(int result) {
     @Override
     public void finish() {
         hangupProcessGroup();
+        if (mMuxClient != null) {
+            // Before the pty is closed, so its fd isn't used after that
+            mMuxClient.close();
+        }
         super.finish();
     }
 
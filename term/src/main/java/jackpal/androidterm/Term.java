@@ -135,6 +135,7 @@
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.regex.PatternSyntaxException;
 
 import jackpal.androidterm.emulatorview.EmulatorView;
 import jackpal.androidterm.emulatorview.TermSession;
@@ -161,6 +162,7 @@ public class Term extends AppCompatActivity implements UpdateCallback, SharedPre
     public static final int REQUEST_COPY_DOCUMENT_TREE_RESTORE_TO_HOME = 13;
     public static final int REQUEST_WEBVIEW_ACTIVITY = 15;
     public static final int REQUEST_HTML_LOG_ACTIVITY = REQUEST_WEBVIEW_ACTIVITY + 1;
+    public static final int REQUEST_SAVE_TRANSCRIPT = REQUEST_HTML_LOG_ACTIVITY + 1;
     public static final int WEBVIEW_DEFAULT_FONT_SIZE = 140;
     private static final String WEBVIEW_FONT_SIZE = "mWebViewFontSize";
     private static final String WEBVIEW_HTML_LOG_FONT_SIZE = "mHtmlLogWebViewFontSize";
@@ -248,6 +250,9 @@ public class Term extends AppCompatActivity implements UpdateCallback, SharedPre
     private boolean mHideFunctionBar = false;
     private boolean mFatalTroubleShooting = false;
     private boolean mKeepScreenEnableAuto = false;
+    private Snackbar mFindSnackbar;
+    private EmulatorView mFindView;
+    private boolean mFindDone;
     private final View.OnKeyListener mKeyListener = new View.OnKeyListener() {
         public boolean onKey(View v, int keyCode, KeyEvent event) {
             onLastKey();
@@ -1632,7 +1637,7 @@ private void doScreenMenu() {
         } else {
             screenLockItem = getString(R.string.enable_keepscreen);
         }
-        final String[] items = {getString(R.string.copy_share_current_screen), getString(R.string.copy_share_screen_buffer), screenLockItem, getString(R.string.dialog_title_orientation_preference), getString(R.string.reset)};
+        final String[] items = {getString(R.string.copy_share_current_screen), getString(R.string.copy_share_screen_buffer), getString(R.string.find_in_scrollback), screenLockItem, getString(R.string.dialog_title_orientation_preference), getString(R.string.reset)};
         new AlertDialog.Builder(this)
                 .setTitle(getString(R.string.screen))
                 .setItems(items, (dialog, which) -> {
@@ -1645,6 +1650,8 @@ private void doScreenMenu() {
                         doHideSoftKeyboard();
                         String strings = Objects.requireNonNull(getCurrentEmulatorView()).getTranscriptText().trim();
                         showTextInWebview("html_log", strings);
+                    } else if (getString(R.string.find_in_scrollback).equals(items[which])) {
+                        doFindInScrollback();
                     } else if ((getString(R.string.disable_keepscreen).equals(items[which])) || (getString(R.string.enable_keepscreen).equals(items[which]))) {
                         if (keepScreen) mKeepScreenEnableAuto = false;
                         doToggleKeepScreen();
@@ -1658,6 +1665,74 @@ private void doScreenMenu() {
                 .show();
     }
 
+    private void doFindInScrollback() {
+        final EmulatorView view = getCurrentEmulatorView();
+        if (view == null) return;
+        LayoutInflater inflater = LayoutInflater.from(this);
+        View layout = inflater.inflate(R.layout.find_in_scrollback, null);
+        final EditText query = layout.findViewById(R.id.find_query);
+        final CheckBox regex = layout.findViewById(R.id.find_regex);
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.find_in_scrollback))
+                .setView(layout)
+                .setPositiveButton(android.R.string.ok, (d, m) -> {
+                    String text = query.getText().toString();
+                    if (text.isEmpty()) return;
+                    stopFindInScrollback();
+                    try {
+                        view.startSearch(text, regex.isChecked(), true, (matches, done) -> {
+                            mFindDone = done;
+                            showFindSnackbar(view, matches, done);
+                        });
+                    } catch (PatternSyntaxException e) {
+                        showSnackbar(getString(R.string.find_bad_regex));
+                        return;
+                    }
+                    mFindView = view;
+                    mFindDone = false;
+                    showFindSnackbar(view, 0, false);
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void showFindSnackbar(final EmulatorView view, int matches, boolean done) {
+        String message = getString(done ? R.string.find_matches : R.string.find_matches_searching, matches);
+        if (mFindSnackbar != null) {
+            mFindSnackbar.setText(message);
+            return;
+        }
+        final Snackbar snackbar = Snackbar.make(findViewById(R.id.term_coordinator_layout_top), message, Snackbar.LENGTH_INDEFINITE);
+        snackbar.setAction(getString(R.string.find_older), v -> view.findPrevious());
+        snackbar.addCallback(new Snackbar.Callback() {
+            @Override
+            public void onDismissed(Snackbar s, int event) {
+                if (mFindSnackbar != s) return;
+                mFindSnackbar = null;
+                if (event == DISMISS_EVENT_ACTION) {
+                    // Keep the search going until the bar is swiped away
+                    showFindSnackbar(view, view.getSearchMatchCount(), mFindDone);
+                } else {
+                    stopFindInScrollback();
+                }
+            }
+        });
+        mFindSnackbar = snackbar;
+        snackbar.show();
+    }
+
+    private void stopFindInScrollback() {
+        if (mFindView != null) {
+            mFindView.stopSearch();
+            mFindView = null;
+        }
+        if (mFindSnackbar != null) {
+            Snackbar snackbar = mFindSnackbar;
+            mFindSnackbar = null;
+            snackbar.dismiss();
+        }
+    }
+
     private void doWindowMenu() {
         final String[] items = {getString(R.string.new_window), getString(R.string.close_window)};
         new AlertDialog.Builder(this)
@@ -2518,6 +2593,11 @@ void doOnActivityResult(int request, int result, Intent data) {
                     pv.setInt(fontSizeId, webViewSize);
                 }
                 break;
+            case REQUEST_SAVE_TRANSCRIPT:
+                if (result == RESULT_OK && data != null && data.getData() != null) {
+                    doSaveTranscript(data.getData());
+                }
+                break;
             case REQUEST_DOCUMENT_TREE:
                 if (result == RESULT_OK && data != null) {
                     try {
@@ -3464,10 +3544,10 @@ private void doShareAll() {
     }
 
     private void doCopyAll() {
-        final String[] items = {getString(R.string.copy_screen_current), getString(R.string.copy_screen_buffer)};
+        final String[] items = {getString(R.string.copy_screen_current), getString(R.string.copy_screen_buffer), getString(R.string.save_screen_buffer)};
         new AlertDialog.Builder(this)
                 .setTitle(getString(R.string.copy_screen))
-                .setItems(items, (dialog, which) -> doCopyAll(which))
+                .setItems(items, (dialog, which) -> doCopyAll(which == 2 ? 4 : which))
                 .setNegativeButton(android.R.string.cancel, null)
                 .show();
     }
@@ -3495,12 +3575,51 @@ private void doCopyAll(int mode) {
             str = view.getTranscriptText().trim();
             doShareIntentText(str);
             return;
+        } else if (mode == 4) {
+            saveTranscript();
+            return;
         } else {
             return;
         }
         showSnackbar(mes);
     }
 
+    private void saveTranscript() {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_TITLE, "transcript.txt");
+        intent = getDocumentsuiIntent(this.getApplicationContext(), intent);
+        if (checkImplicitIntent(this, intent))
+            doStartActivityForResult(intent, REQUEST_SAVE_TRANSCRIPT);
+    }
+
+    /**
+     * Write the screen buffer of the current session to a document in the
+     * background.  The buffer is streamed out rather than built up into a
+     * String first, so even a large one can be saved.
+     */
+    private void doSaveTranscript(final Uri uri) {
+        final TermSession session = getCurrentTermSession();
+        if (session == null) return;
+        new Thread(() -> {
+            String mes;
+            try (OutputStream os = getContentResolver().openOutputStream(uri)) {
+                if (os == null) throw new FileNotFoundException(uri.toString());
+                if (session.writeTranscript(os, false)) {
+                    mes = getString(R.string.toast_transcript_saved);
+                } else {
+                    mes = getString(R.string.toast_transcript_saved_partial);
+                }
+            } catch (Exception e) {
+                Log.e(TermDebug.LOG_TAG, "Saving transcript: " + e);
+                mes = getString(R.string.toast_transcript_save_error);
+            }
+            final String message = mes;
+            runOnUiThread(() -> showSnackbar(message));
+        }, "Save transcript").start();
+    }
+
     private void showTextInWebview(String htmlTemplate, String strings) {
         strings = strings.replaceAll("&", "&amp;");
         strings = strings.replaceAll("<", "&lt;");
@@ -3585,7 +3704,7 @@ private void doTermPaste() {
         CharSequence paste = clip.getText();
         if (paste == null) return;
         TermSession session = getCurrentTermSession();
-        if (session != null) session.write(paste.toString());
+        if (session != null) session.paste(paste);
     }
 
     private void doWarningBeforePaste() {
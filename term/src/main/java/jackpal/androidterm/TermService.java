@@ -57,6 +57,7 @@
 import androidx.preference.PreferenceManager;
 
 import jackpal.androidterm.compat.ServiceForegroundCompat;
+import jackpal.androidterm.emulatorview.EmulatorView;
 import jackpal.androidterm.emulatorview.TermSession;
 import jackpal.androidterm.libtermexec.v1.ITerminal;
 import jackpal.androidterm.util.SessionList;
@@ -67,6 +68,7 @@
 public class TermService extends Service implements TermSession.FinishCallback {
     public static int TermServiceState = -1;
     private static final int RUNNING_NOTIFICATION = 1;
+    private static final int COLD_SCROLLBACK_ROWS = 100000;
     private ServiceForegroundCompat compat;
 
     private SessionList mTermSessions;
@@ -154,6 +156,9 @@ public void onCreate() {
         mLD_LIBRARY_PATH = mAPPFILES + "/usr/lib";
         File tmpdir = new File(mTMPDIR);
         if (!tmpdir.exists()) tmpdir.mkdir();
+        // Keep scrollback beyond the in-memory transcript compressed, with
+        // the oldest part spilled to tmp
+        EmulatorView.setColdScrollback(COLD_SCROLLBACK_ROWS, tmpdir);
 
         mVERSION_FILES_DIR = mAPPFILES;
 
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Downscaled images for document thumbnails, kept in a directory as a
+ * least recently used cache of bounded size.
+ * <p>
+ * A thumbnail is keyed by the path, modification time and length of its
+ * image, and by the size it was made for, so an image that changes gets a
+ * new thumbnail and the old one ages out.  Sizes are rounded up to a power of
+ * two, so that callers asking for slightly different sizes share thumbnails.
+ */
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+
+    private static final int MIN_SIZE = 64;
+    private static final int JPEG_QUALITY = 90;
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    // Guarded by this; -1 until the directory has been measured
+    private long mBytes = -1;
+
+    public ThumbnailCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Get a thumbnail of an image, making it if it isn't cached.
+     *
+     * @param image  the image file
+     * @param width  the width the thumbnail is wanted at
+     * @param height the height the thumbnail is wanted at
+     * @param signal cancels making the thumbnail, or null
+     * @return the thumbnail file, or null if the image can't be decoded or
+     * is already no bigger than the thumbnail would be
+     */
+    public File get(File image, int width, int height, CancellationSignal signal)
+            throws IOException {
+        final int size = roundUpSize(Math.max(width, height));
+        final File thumbnail = new File(mDir, getKey(image, size));
+        if (thumbnail.isFile()) {
+            // The modification time orders the cache for eviction
+            thumbnail.setLastModified(System.currentTimeMillis());
+            return thumbnail;
+        }
+
+        final Bitmap bitmap = decode(image, size, signal);
+        if (bitmap == null) {
+            return null;
+        }
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Failed to create " + mDir);
+        }
+        final File temp = File.createTempFile("thumb", ".tmp", mDir);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            if (bitmap.hasAlpha()) {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } else {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            bitmap.recycle();
+        }
+        final long length = temp.length();
+        if (!temp.renameTo(thumbnail)) {
+            temp.delete();
+            throw new IOException("Failed to store " + thumbnail);
+        }
+        added(thumbnail, length);
+        return thumbnail;
+    }
+
+    /*
+     * Decode an image subsampled by the largest power of two which keeps
+     * both its sides at least size, then scale it down to fit in size.
+     */
+    private static Bitmap decode(File image, int size, CancellationSignal signal) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0 ||
+                Math.max(options.outWidth, options.outHeight) <= size) {
+            return null;
+        }
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= size &&
+                options.outHeight / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeFile(image.getPath(), options);
+        if (bitmap == null) {
+            return null;
+        }
+
+        final float scale = (float) size / Math.max(width, height) * sampleSize;
+        if (scale < 1) {
+            if (signal != null && signal.isCanceled()) {
+                bitmap.recycle();
+                signal.throwIfCanceled();
+            }
+            final Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+                bitmap = scaled;
+            }
+        }
+        return bitmap;
+    }
+
+    private static int roundUpSize(int size) {
+        if (size <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static String getKey(File image, int size) {
+        final String key = image.getAbsolutePath() + "\0" + image.lastModified() + "\0" +
+                image.length() + "\0" + size;
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            final StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(String.format("%02x", b & 0xff));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(key.hashCode()) + "_" + size;
+        }
+    }
+
+    /*
+     * Account for a new thumbnail, and if the cache has grown too big, delete
+     * the least recently used other thumbnails until it is down to three
+     * quarters of its limit.
+     */
+    private synchronized void added(File thumbnail, long length) {
+        if (mBytes < 0) {
+            mBytes = 0;
+            final File[] files = mDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    mBytes += file.length();
+                }
+            }
+        } else {
+            mBytes += length;
+        }
+        if (mBytes <= mMaxBytes) {
+            return;
+        }
+
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i, Integer j) {
+                return Long.compare(lastModified[i], lastModified[j]);
+            }
+        });
+        for (Integer i : order) {
+            if (mBytes <= mMaxBytes / 4 * 3) {
+                break;
+            }
+            if (files[i].equals(thumbnail)) {
+                continue;
+            }
+            final long fileLength = files[i].length();
+            if (files[i].delete()) {
+                mBytes -= fileLength;
+            } else {
+                Log.w(TAG, "Failed to delete " + files[i]);
+            }
+        }
+    }
+}
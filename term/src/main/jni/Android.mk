@@ -9,6 +9,7 @@ LOCAL_C_INCLUDES += $(SRC_PATH)
 LOCAL_SRC_FILES := \
     $(SRC_PATH)/common.cpp \
     $(SRC_PATH)/fileCompat.cpp \
+    $(SRC_PATH)/ptyMultiplexer.cpp \
     $(SRC_PATH)/termExec.cpp \
 
 LOCAL_LDLIBS := -llog
@@ -33,6 +33,7 @@
 #include "common.h"
 #include "termExec.h"
 #include "fileCompat.h"
+#include "ptyMultiplexer.h"
 
 #define LOG_TAG "libjackpal-androidterm"
 
@@ -91,6 +92,11 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
         goto bail;
     }
 
+    if (init_PtyMultiplexer(env) != JNI_TRUE) {
+        LOGE("ERROR: init of PtyMultiplexer failed");
+        goto bail;
+    }
+
     result = JNI_VERSION_1_4;
 
     bail:
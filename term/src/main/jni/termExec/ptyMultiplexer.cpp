@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "common.h"
+
+#define LOG_TAG "PtyMultiplexer"
+
+#include <sys/epoll.h>
+#include <sys/syscall.h>
+#include <sys/wait.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+
+#include "ptyMultiplexer.h"
+
+#ifndef __NR_pidfd_open
+#define __NR_pidfd_open 434
+#endif
+
+// Most events returned by one call to nativeWait()
+#define MAX_EVENTS 32
+
+static void throwIOException(JNIEnv *env, const char *message) {
+    env->ThrowNew(env->FindClass("java/io/IOException"), message);
+}
+
+static int setNonBlocking(int fd) {
+    int flags = fcntl(fd, F_GETFL);
+    if (flags == -1) {
+        return -1;
+    }
+    return fcntl(fd, F_SETFL, flags | O_NONBLOCK);
+}
+
+/*
+ * Create an epoll instance, and a pipe to wake it up with, which is
+ * registered with the token -1.  Returns the epoll fd, and puts the read
+ * and write ends of the pipe in wakeFds.
+ */
+static jint create(JNIEnv *env, jclass clazz, jintArray wakeFds) {
+    int epfd = epoll_create(MAX_EVENTS);
+    if (epfd == -1) {
+        throwIOException(env, "Failed to create epoll instance");
+        return -1;
+    }
+    fcntl(epfd, F_SETFD, FD_CLOEXEC);
+
+    int pipeFds[2];
+    if (pipe(pipeFds) == -1) {
+        close(epfd);
+        throwIOException(env, "Failed to create wake pipe");
+        return -1;
+    }
+    for (int i = 0; i < 2; ++i) {
+        fcntl(pipeFds[i], F_SETFD, FD_CLOEXEC);
+        setNonBlocking(pipeFds[i]);
+    }
+
+    struct epoll_event event;
+    event.events = EPOLLIN;
+    event.data.u64 = (uint32_t) -1;
+    if (epoll_ctl(epfd, EPOLL_CTL_ADD, pipeFds[0], &event) == -1) {
+        close(pipeFds[0]);
+        close(pipeFds[1]);
+        close(epfd);
+        throwIOException(env, "Failed to register wake pipe");
+        return -1;
+    }
+
+    jint fds[2] = { pipeFds[0], pipeFds[1] };
+    env->SetIntArrayRegion(wakeFds, 0, 2, fds);
+    return epfd;
+}
+
+static void control(JNIEnv *env, jclass clazz, jint epfd, jint op, jint fd, jint token,
+                    jint events) {
+    struct epoll_event event;
+    event.events = events;
+    event.data.u64 = (uint32_t) token;
+    if (epoll_ctl(epfd, op, fd, &event) == -1) {
+        throwIOException(env, "epoll_ctl failed");
+    }
+}
+
+/*
+ * Wait for events, and store each of them in events as the token of its fd
+ * in the high 32 bits and the event mask in the low 32 bits.  Returns the
+ * number of events, which is 0 if the wait was interrupted.
+ */
+static jint waitForEvents(JNIEnv *env, jclass clazz, jint epfd, jlongArray events) {
+    struct epoll_event ready[MAX_EVENTS];
+    int max = env->GetArrayLength(events);
+    if (max > MAX_EVENTS) {
+        max = MAX_EVENTS;
+    }
+    int count = epoll_wait(epfd, ready, max, -1);
+    if (count == -1) {
+        if (errno != EINTR) {
+            throwIOException(env, "epoll_wait failed");
+        }
+        return 0;
+    }
+    jlong packed[MAX_EVENTS];
+    for (int i = 0; i < count; ++i) {
+        packed[i] = (jlong) ((ready[i].data.u64 << 32) | (uint32_t) ready[i].events);
+    }
+    env->SetLongArrayRegion(events, 0, count, packed);
+    return count;
+}
+
+static void wake(JNIEnv *env, jclass clazz, jint fd) {
+    char c = 0;
+    // A full pipe is as good as a write
+    while (write(fd, &c, 1) == -1 && errno == EINTR) {
+    }
+}
+
+static void clearWake(JNIEnv *env, jclass clazz, jint fd) {
+    char buffer[64];
+    while (read(fd, buffer, sizeof(buffer)) > 0) {
+    }
+}
+
+/*
+ * Read from a non-blocking fd.  Returns the number of bytes read, -1 if
+ * there is nothing to read yet, or 0 at end of file.  A pty master reports
+ * EIO once the slave side is closed, which is end of file too.
+ */
+static jint readFd(JNIEnv *env, jclass clazz, jint fd, jbyteArray buffer, jint offset,
+                   jint count) {
+    jbyte *bytes = (jbyte *) env->GetPrimitiveArrayCritical(buffer, NULL);
+    if (bytes == NULL) {
+        return 0;
+    }
+    ssize_t n;
+    do {
+        n = read(fd, bytes + offset, count);
+    } while (n == -1 && errno == EINTR);
+    int error = errno;
+    env->ReleasePrimitiveArrayCritical(buffer, bytes, 0);
+    if (n == -1) {
+        if (error == EAGAIN || error == EWOULDBLOCK) {
+            return -1;
+        }
+        if (error != EIO) {
+            LOGW("read failed: %d", error);
+        }
+        return 0;
+    }
+    return (jint) n;
+}
+
+/*
+ * Write to a non-blocking fd.  Returns the number of bytes written, or -1 if
+ * none can be written yet.
+ */
+static jint writeFd(JNIEnv *env, jclass clazz, jint fd, jbyteArray buffer, jint offset,
+                    jint count) {
+    jbyte *bytes = (jbyte *) env->GetPrimitiveArrayCritical(buffer, NULL);
+    if (bytes == NULL) {
+        return 0;
+    }
+    ssize_t n;
+    do {
+        n = write(fd, bytes + offset, count);
+    } while (n == -1 && errno == EINTR);
+    int error = errno;
+    env->ReleasePrimitiveArrayCritical(buffer, bytes, JNI_ABORT);
+    if (n == -1) {
+        if (error == EAGAIN || error == EWOULDBLOCK) {
+            return -1;
+        }
+        throwIOException(env, "write failed");
+        return 0;
+    }
+    return (jint) n;
+}
+
+static void setNonBlockingFd(JNIEnv *env, jclass clazz, jint fd) {
+    if (setNonBlocking(fd) == -1) {
+        throwIOException(env, "Failed to make fd non-blocking");
+    }
+}
+
+/*
+ * Returns a pidfd for a child process, which becomes readable when the
+ * process exits, or -1 if the kernel doesn't have pidfd_open().
+ */
+static jint pidfdOpen(JNIEnv *env, jclass clazz, jint pid) {
+    int fd = syscall(__NR_pidfd_open, pid, 0);
+    if (fd == -1) {
+        return -1;
+    }
+    fcntl(fd, F_SETFD, FD_CLOEXEC);
+    return fd;
+}
+
+/*
+ * Reap a child process which has exited, returning its exit status as
+ * TermExec.waitFor() does.
+ */
+static jint reap(JNIEnv *env, jclass clazz, jint pid) {
+    int status;
+    if (waitpid(pid, &status, 0) == -1) {
+        return 0;
+    }
+    int result = 0;
+    if (WIFEXITED(status)) {
+        result = WEXITSTATUS(status);
+    }
+    return result;
+}
+
+static void closeFd(JNIEnv *env, jclass clazz, jint fd) {
+    close(fd);
+}
+
+static const char *classPathName = "jackpal/androidterm/PtyMultiplexer";
+static JNINativeMethod method_table[] = {
+        {"nativeCreate",         "([I)I",     (void *) create},
+        {"nativeControl",        "(IIIII)V",  (void *) control},
+        {"nativeWait",           "(I[J)I",    (void *) waitForEvents},
+        {"nativeWake",           "(I)V",      (void *) wake},
+        {"nativeClearWake",      "(I)V",      (void *) clearWake},
+        {"nativeRead",           "(I[BII)I",  (void *) readFd},
+        {"nativeWrite",          "(I[BII)I",  (void *) writeFd},
+        {"nativeSetNonBlocking", "(I)V",      (void *) setNonBlockingFd},
+        {"nativePidfdOpen",      "(I)I",      (void *) pidfdOpen},
+        {"nativeReap",           "(I)I",      (void *) reap},
+        {"nativeClose",          "(I)V",      (void *) closeFd},
+};
+
+int init_PtyMultiplexer(JNIEnv *env) {
+    if (!registerNativeMethods(env, classPathName, method_table,
+                               sizeof(method_table) / sizeof(method_table[0]))) {
+        return JNI_FALSE;
+    }
+
+    return JNI_TRUE;
+}
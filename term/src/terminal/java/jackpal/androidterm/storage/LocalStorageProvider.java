@@ -3,39 +3,47 @@
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.ProviderInfo;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.graphics.Point;
+import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsProvider;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.util.Log;
-import android.webkit.MimeTypeMap;
 import androidx.preference.PreferenceManager;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.PriorityQueue;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import org.apache.commons.io.FileUtils;
 
 import jackpal.androidterm.BuildConfig;
+import jackpal.androidterm.FileCopier;
+import jackpal.androidterm.FileMetadataIndex;
 import jackpal.androidterm.R;
+import jackpal.androidterm.ThumbnailCache;
 
 import static android.content.Context.MODE_PRIVATE;
 import static jackpal.androidterm.StaticConfig.SCOPED_STORAGE;
@@ -83,18 +91,121 @@ public class LocalStorageProvider extends DocumentsProvider {
     private static final int MAX_SEARCH_RESULTS = 50;
     private static final int MAX_LAST_MODIFIED = 5;
 
+    private static final String INDEX_FILE_NAME = "documents.index";
+
+    private static final String THUMBNAIL_DIR_NAME = "thumbnails";
+    private static final long MAX_THUMBNAIL_CACHE_BYTES = 16 * 1024 * 1024;
+
+    // Directories with more children than this are listed in two steps: this many are returned
+    // at once, and the whole listing is filled in on a background thread.
+    private static final int CHILDREN_FIRST_BATCH = 500;
+    // How long a listing filled in the background waits for the query that picks it up
+    private static final long LOADED_CHILDREN_TTL_MS = 30 * 1000;
+
     // A file object at the root of the file hierarchy.  Depending on your implementation, the root
     // does not need to be an existing file system directory.  For example, a tag-based document
     // provider might return a directory containing all tags, represented as child directories.
     private File mBaseDir;
 
+    // Metadata of everything under mBaseDir, for searches and recent documents.  It is only
+    // started by the first of those queries, and stopped when memory runs low.
+    private FileMetadataIndex mIndex;
+
+    private ThumbnailCache mThumbnails;
+
+    private String mAuthority;
+
+    // Listings of large directories being filled in, and filled in, by parent document id.
+    // Both are guarded by mLoadedChildren.
+    private final Set<String> mLoadingChildren = new HashSet<String>();
+    private final Map<String, LoadedChildren> mLoadedChildren =
+            new HashMap<String, LoadedChildren>();
+
+    @Override
+    public void attachInfo(Context context, ProviderInfo info) {
+        mAuthority = info.authority;
+        super.attachInfo(context, info);
+    }
+
     @Override
     public boolean onCreate() {
         Log.v(TAG, "onCreate");
         setBaseDir();
+        if (getContext() != null) {
+            mIndex = new FileMetadataIndex(mBaseDir,
+                    new File(getContext().getCacheDir(), INDEX_FILE_NAME));
+            mIndex.setOnReadyListener(new Runnable() {
+                @Override
+                public void run() {
+                    // Have the queries answered from a partial index asked again
+                    if (mAuthority != null) {
+                        getContext().getContentResolver().notifyChange(
+                                DocumentsContract.buildRootsUri(mAuthority), null, false);
+                    }
+                }
+            });
+            mThumbnails = new ThumbnailCache(
+                    new File(getContext().getCacheDir(), THUMBNAIL_DIR_NAME),
+                    MAX_THUMBNAIL_CACHE_BYTES);
+        }
         return true;
     }
 
+    /**
+     * Get the file metadata index, starting it if need be.  Until it has been loaded or built,
+     * it only holds the files walked so far.
+     *
+     * @return the index, or null if there is none
+     */
+    private FileMetadataIndex getIndex() {
+        if (mIndex == null) {
+            return null;
+        }
+        mIndex.start();
+        return mIndex;
+    }
+
+    /**
+     * Make a cursor for results from the index.  If the index isn't ready yet, the cursor
+     * tells the caller more is coming, and the caller re-queries when the index is ready.
+     */
+    private MatrixCursor newIndexCursor(String[] projection, FileMetadataIndex index) {
+        final Bundle extras = new Bundle();
+        final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection)) {
+            @Override
+            public Bundle getExtras() {
+                return extras;
+            }
+        };
+        if (mAuthority != null) {
+            // Watch before looking, so that becoming ready meanwhile isn't missed
+            result.setNotificationUri(getContext().getContentResolver(),
+                    DocumentsContract.buildRootsUri(mAuthority));
+            if (!index.isReady()) {
+                extras.putBoolean(DocumentsContract.EXTRA_LOADING, true);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The index is saved, and loaded again by the next query which needs it
+        if (mIndex != null && (level >= TRIM_MEMORY_BACKGROUND
+                || level == TRIM_MEMORY_RUNNING_CRITICAL)) {
+            mIndex.stop();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (mIndex != null) {
+            mIndex.stop();
+        }
+        super.shutdown();
+    }
+
     private void setBaseDir() {
         try {
             mBaseDir = new File(BASE_DEFAULT_DIR);
@@ -192,49 +303,17 @@ public Cursor queryRecentDocuments(String rootId, String[] projection)
             throws FileNotFoundException {
         Log.v(TAG, "queryRecentDocuments");
 
-        // This example implementation walks a local file structure to find the most recently
-        // modified files.  Other implementations might include making a network call to query a
-        // server.
-
-        // Create a cursor with the requested projection, or the default projection.
-        final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
-
         final File parent = getFileForDocId(rootId);
 
-        // Create a queue to store the most recent documents, which orders by last modified.
-        PriorityQueue<File> lastModifiedFiles = new PriorityQueue<File>(5, new Comparator<File>() {
-            public int compare(File i, File j) {
-                return Long.compare(i.lastModified(), j.lastModified());
-            }
-        });
-
-        // Iterate through all files and directories in the file structure under the root.  If
-        // the file is more recent than the least recently modified, add it to the queue,
-        // limiting the number of results.
-        final LinkedList<File> pending = new LinkedList<File>();
-
-        // Start by adding the parent to the list of files to be processed
-        pending.add(parent);
-
-        // Do while we still have unexamined files
-        while (!pending.isEmpty()) {
-            // Take a file from the list of unprocessed files
-            final File file = pending.removeFirst();
-            if (file.isDirectory()) {
-                // If it's a directory, add all its children to the unprocessed list
-                Collections.addAll(pending, file.listFiles());
-            } else {
-                // If it's a file, add it to the ordered queue.
-                lastModifiedFiles.add(file);
-            }
+        // The index keeps the modification times of all files under the root, so this is a
+        // pass over it keeping the newest few, without a walk or a stat per file.
+        final FileMetadataIndex index = getIndex();
+        if (index == null) {
+            return new MatrixCursor(resolveDocumentProjection(projection));
         }
-
-        // Add the most recent files to the cursor, not exceeding the max number of results.
-        int includedCount = 0;
-        while (includedCount < MAX_LAST_MODIFIED + 1 && !lastModifiedFiles.isEmpty()) {
-            final File file = lastModifiedFiles.remove();
-            includeFile(result, null, file);
-            includedCount++;
+        final MatrixCursor result = newIndexCursor(projection, index);
+        for (FileMetadataIndex.Entry entry : index.recent(parent, MAX_LAST_MODIFIED)) {
+            includeEntry(result, entry);
         }
         return result;
     }
@@ -244,48 +323,19 @@ public Cursor querySearchDocuments(String rootId, String query, String[] project
             throws FileNotFoundException {
         Log.v(TAG, "querySearchDocuments");
 
-        // Create a cursor with the requested projection, or the default projection.
-        final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
         final File parent = getFileForDocId(rootId);
 
-        // This example implementation searches file names for the query and doesn't rank search
-        // results, so we can stop as soon as we find a sufficient number of matches.  Other
-        // implementations might use other data about files, rather than the file name, to
-        // produce a match; it might also require a network call to query a remote server.
-
-        // Iterate through all files in the file structure under the root until we reach the
-        // desired number of matches.
-        final LinkedList<File> pending = new LinkedList<File>();
-
-        // Start by adding the parent to the list of files to be processed
-        pending.add(parent);
-
+        // This implementation searches file names in the index for the query and doesn't rank
+        // search results, so it stops as soon as it finds a sufficient number of matches.
+        final FileMetadataIndex index = getIndex();
+        if (index == null) {
+            return new MatrixCursor(resolveDocumentProjection(projection));
+        }
+        final MatrixCursor result = newIndexCursor(projection, index);
         boolean secureMode = isSecureMode();
-        // Do while we still have unexamined files, and fewer than the max search results
-        while (!pending.isEmpty() && result.getCount() < MAX_SEARCH_RESULTS) {
-            // Take a file from the list of unprocessed files
-            final File file = pending.removeFirst();
-
-            // Avoid folders outside the $HOME folders linked in to symlinks (to avoid e.g. search
-            // through the whole SD card).
-            // boolean isInsideHome;
-            // try {
-            //     isInsideHome = file.getCanonicalPath().startsWith(mBaseDir.getCanonicalPath());
-            // } catch (IOException e) {
-            //     isInsideHome = true;
-            // }
-            // if (!isInsideHome) continue;
-            String filePath = file.getAbsolutePath();
-            if (secureMode && filePath.startsWith(mBaseDir.getAbsolutePath() + "/.")) continue;
-            if (file.isDirectory()) {
-                // If it's a directory, add all its children to the unprocessed list
-                Collections.addAll(pending, file.listFiles());
-            } else {
-                // If it's a file and it matches, add it to the result cursor.
-                if (file.getName().toLowerCase().contains(query)) {
-                    includeFile(result, null, file);
-                }
-            }
+        for (FileMetadataIndex.Entry entry :
+                index.search(parent, query, secureMode, MAX_SEARCH_RESULTS)) {
+            includeEntry(result, entry);
         }
         return result;
     }
@@ -296,7 +346,18 @@ public AssetFileDescriptor openDocumentThumbnail(String documentId, Point sizeHi
             throws FileNotFoundException {
         Log.v(TAG, "openDocumentThumbnail");
 
-        final File file = getFileForDocId(documentId);
+        File file = getFileForDocId(documentId);
+        if (mThumbnails != null && sizeHint != null) {
+            // Hand out a downscaled copy, so the caller doesn't have to decode the whole image
+            try {
+                final File thumbnail = mThumbnails.get(file, sizeHint.x, sizeHint.y, signal);
+                if (thumbnail != null) {
+                    file = thumbnail;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to make a thumbnail of " + file + ": " + e.getMessage());
+            }
+        }
         final ParcelFileDescriptor pfd =
                 ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
         return new AssetFileDescriptor(pfd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
@@ -321,18 +382,122 @@ public Cursor queryChildDocuments(String parentDocumentId, String[] projection,
                 " sortOrder: " +
                 sortOrder);
 
-        final MatrixCursor result = new MatrixCursor(projection != null ? projection : DEFAULT_DOCUMENT_PROJECTION);
+        final String[] columns = resolveDocumentProjection(projection);
         final File parent = getFileForDocId(parentDocumentId);
-        boolean isHome = parent.getAbsolutePath().equals(mBaseDir.getAbsolutePath());
-        boolean secureMode = isSecureMode();
-        for (File file : parent.listFiles()) {
-            if (!secureMode || !(isHome && file.getName().startsWith("."))) {
-                includeFile(result, null, file);
+
+        // A large directory filled in by a previous query is picked up by the query that its
+        // change notification caused.
+        synchronized (mLoadedChildren) {
+            pruneLoadedChildren();
+            LoadedChildren loaded = mLoadedChildren.remove(parentDocumentId);
+            if (loaded != null && loaded.matches(columns)) {
+                return loaded.cursor;
             }
         }
+
+        String[] names = parent.list();
+        if (names == null) {
+            names = new String[0];
+        }
+        boolean isHome = parent.getAbsolutePath().equals(mBaseDir.getAbsolutePath());
+        final boolean hideDotfiles = isHome && isSecureMode();
+        if (names.length <= CHILDREN_FIRST_BATCH || mAuthority == null) {
+            final MatrixCursor result = new MatrixCursor(columns);
+            includeChildren(result, parent, names, 0, names.length, hideDotfiles);
+            return result;
+        }
+
+        // Return the first batch now, telling the caller more is coming, and fill in the rest
+        // in the background.  The caller re-queries when notified.
+        final Bundle extras = new Bundle();
+        extras.putBoolean(DocumentsContract.EXTRA_LOADING, true);
+        final MatrixCursor result = new MatrixCursor(columns) {
+            @Override
+            public Bundle getExtras() {
+                return extras;
+            }
+        };
+        includeChildren(result, parent, names, 0, CHILDREN_FIRST_BATCH, hideDotfiles);
+        final Uri uri = DocumentsContract.buildChildDocumentsUri(mAuthority, parentDocumentId);
+        result.setNotificationUri(getContext().getContentResolver(), uri);
+        loadChildren(parentDocumentId, parent, names, columns, hideDotfiles, uri);
         return result;
     }
 
+    private void loadChildren(final String parentDocumentId, final File parent,
+                              final String[] names, final String[] columns,
+                              final boolean hideDotfiles, final Uri uri) {
+        synchronized (mLoadedChildren) {
+            if (!mLoadingChildren.add(parentDocumentId)) {
+                return;
+            }
+        }
+        new Thread() {
+            @Override
+            public void run() {
+                final MatrixCursor cursor = new MatrixCursor(columns);
+                includeChildren(cursor, parent, names, 0, names.length, hideDotfiles);
+                synchronized (mLoadedChildren) {
+                    pruneLoadedChildren();
+                    // Unless the directory changed while it was being listed
+                    if (mLoadingChildren.remove(parentDocumentId)) {
+                        mLoadedChildren.put(parentDocumentId, new LoadedChildren(columns, cursor));
+                    }
+                }
+                getContext().getContentResolver().notifyChange(uri, null, false);
+            }
+        }.start();
+    }
+
+    /**
+     * Drop the listings which have waited too long to be picked up.  Called with
+     * mLoadedChildren held.
+     */
+    private void pruneLoadedChildren() {
+        Iterator<LoadedChildren> it = mLoadedChildren.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isExpired()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget any listing of a directory, filled in or being filled in, once it has changed.
+     */
+    private void forgetLoadedChildren(File parent) {
+        if (parent == null) {
+            return;
+        }
+        String parentDocumentId = getDocIdForFile(parent);
+        synchronized (mLoadedChildren) {
+            mLoadingChildren.remove(parentDocumentId);
+            mLoadedChildren.remove(parentDocumentId);
+        }
+    }
+
+    /**
+     * A complete listing of a large directory, waiting to be picked up by the next query.
+     */
+    private static class LoadedChildren {
+        final String[] columns;
+        final MatrixCursor cursor;
+        final long time = SystemClock.elapsedRealtime();
+
+        LoadedChildren(String[] columns, MatrixCursor cursor) {
+            this.columns = columns;
+            this.cursor = cursor;
+        }
+
+        boolean matches(String[] columns) {
+            return Arrays.equals(this.columns, columns) && !isExpired();
+        }
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() - time >= LOADED_CHILDREN_TTL_MS;
+        }
+    }
+
     @Override
     public ParcelFileDescriptor openDocument(final String documentId, final String mode,
                                              CancellationSignal signal)
@@ -426,6 +591,7 @@ public String createDocument(String documentId, String mimeType, String displayN
             throw new FileNotFoundException("Failed to create document with name " +
                     displayName +" and documentId " + documentId);
         }
+        forgetLoadedChildren(parent);
         return getDocIdForFile(file);
     }
 
@@ -455,6 +621,7 @@ public String renameDocument(String documentId, String displayName)
             Log.w(TAG, "Rename exception : " + e.getLocalizedMessage() + e.getCause());
             throw new FileNotFoundException("Failed to rename document. Error: " + e.getMessage());
         }
+        forgetLoadedChildren(sourceParentFile);
 
         return getDocIdForFile(destFile);
     }
@@ -464,6 +631,7 @@ public void deleteDocument(String documentId) throws FileNotFoundException {
         Log.v(TAG, "deleteDocument");
         File file = getFileForDocId(documentId);
         deleteFileOrFolder(file);
+        forgetLoadedChildren(file.getAbsoluteFile().getParentFile());
     }
 
     @Override
@@ -495,35 +663,16 @@ public String copyDocument(String sourceDocumentId, String targetParentDocumentI
 
         File parent = getFileForDocId(targetParentDocumentId);
         File oldFile = getFileForDocId(sourceDocumentId);
-        File newFile = new File(parent.getPath(), oldFile.getName());
+        // Never copy over an existing file, which might be the source itself
+        File newFile = FileCopier.buildUniqueFile(parent, oldFile.getName());
         try {
-            // Create the new File to copy into
-            boolean wasNewFileCreated = false;
-            newFile.createNewFile();
-            if (newFile.isFile() && newFile.setWritable(true) && newFile.setReadable(true)) {
-                wasNewFileCreated = true;
-            }
-
-            if (!wasNewFileCreated) {
-                throw new FileNotFoundException("Failed to copy document " + sourceDocumentId +
-                        ". Could not create new file.");
-            }
-
-            // Copy the bytes into the new file
-            try (InputStream inStream = new FileInputStream(oldFile)) {
-                try (OutputStream outStream = new FileOutputStream(newFile)) {
-                    // Transfer bytes from in to out
-                    byte[] buf = new byte[4096]; // ideal range for network: 2-8k, disk: 8-64k
-                    int len;
-                    while ((len = inStream.read(buf)) > 0) {
-                        outStream.write(buf, 0, len);
-                    }
-                }
-            }
+            FileCopier.copy(oldFile, newFile);
         } catch (IOException e) {
+            deleteFileOrFolder(newFile);
             throw new FileNotFoundException("Failed to copy document: " + sourceDocumentId +
                     ". " + e.getMessage());
         }
+        forgetLoadedChildren(parent);
         return getDocIdForFile(newFile);
     }
 
@@ -531,16 +680,24 @@ public String copyDocument(String sourceDocumentId, String targetParentDocumentI
     public String moveDocument(String sourceDocumentId, String sourceParentDocumentId,
                                String targetParentDocumentId) throws FileNotFoundException {
         Log.v(TAG, "moveDocument");
+        if (!isChildDocument(sourceParentDocumentId, sourceDocumentId)) {
+            throw new FileNotFoundException("Failed to move document with id " +
+                    sourceDocumentId + ". Parent is not: " + sourceParentDocumentId);
+        }
+
+        File parent = getFileForDocId(targetParentDocumentId);
+        File oldFile = getFileForDocId(sourceDocumentId);
+        File newFile = FileCopier.buildUniqueFile(parent, oldFile.getName());
         try {
-            // Copy document, insisting that the parent is correct
-            String newDocumentId = copyDocument(sourceDocumentId, sourceParentDocumentId,
-                    targetParentDocumentId);
-            // Remove old document
-            removeDocument(sourceDocumentId,sourceParentDocumentId);
-            return newDocumentId;
-        } catch (FileNotFoundException e) {
-            throw new FileNotFoundException("Failed to move document " + sourceDocumentId);
+            // A rename, unless the target is on another file system
+            FileCopier.move(oldFile, newFile);
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to move document " + sourceDocumentId +
+                    ". " + e.getMessage());
         }
+        forgetLoadedChildren(oldFile.getAbsoluteFile().getParentFile());
+        forgetLoadedChildren(parent);
+        return getDocIdForFile(newFile);
     }
 
     @Override
@@ -583,15 +740,7 @@ private static String getTypeForFile(File file) {
      * @return the MIME data type of a document
      */
     private static String getTypeForName(String name) {
-        final int lastDot = name.lastIndexOf('.');
-        if (lastDot >= 0) {
-            final String extension = name.substring(lastDot + 1);
-            final String mime = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
-            if (mime != null) {
-                return mime;
-            }
-        }
-        return "application/octet-stream";
+        return FileMetadataIndex.getTypeForName(name);
     }
 
     /**
@@ -649,19 +798,145 @@ private void includeFile(MatrixCursor result, String docId, File file)
             file = getFileForDocId(docId);
         }
 
+        final boolean isDirectory = file.isDirectory();
+        final String displayName = file.getName();
+        final String mimeType = getTypeForFile(file);
+        final int flags = getFlagsForFile(isDirectory, file.canWrite(), mimeType);
+
+        final MatrixCursor.RowBuilder row = result.newRow();
+        row.add(Document.COLUMN_DOCUMENT_ID, docId);
+        row.add(Document.COLUMN_DISPLAY_NAME, displayName);
+        row.add(Document.COLUMN_SIZE, file.length());
+        row.add(Document.COLUMN_MIME_TYPE, mimeType);
+        row.add(Document.COLUMN_LAST_MODIFIED, file.lastModified());
+        row.add(Document.COLUMN_FLAGS, flags);
+
+        // Add a custom icon
+        row.add(Document.COLUMN_ICON, R.mipmap.ic_launcher);
+    }
+
+    /**
+     * Add representations of some children of a directory to a cursor.
+     *
+     * @param result       the cursor to modify
+     * @param parent       the directory
+     * @param names        the names of the children
+     * @param from         the index in names of the first child to add
+     * @param to           the index in names after the last child to add
+     * @param hideDotfiles whether to leave out children whose names start with a dot
+     */
+    private void includeChildren(MatrixCursor result, File parent, String[] names, int from,
+                                 int to, boolean hideDotfiles) {
+        final int uid = Os.getuid();
+        for (int i = from; i < to; i++) {
+            if (!hideDotfiles || !names[i].startsWith(".")) {
+                includeStat(result, new File(parent, names[i]), uid);
+            }
+        }
+    }
+
+    /**
+     * Add a representation of a file to a cursor, with all its metadata from a single stat().
+     * A file which can't be stat()ed, like a dangling symlink, is shown with no size or time, as
+     * File would show it.
+     *
+     * @param result the cursor to modify
+     * @param file   the file
+     * @param uid    the uid of this process
+     */
+    private void includeStat(MatrixCursor result, File file, int uid) {
+        boolean isDirectory = false;
+        boolean canWrite = false;
+        long size = 0;
+        long lastModified = 0;
+        try {
+            final StructStat stat = Os.stat(file.getPath());
+            isDirectory = OsConstants.S_ISDIR(stat.st_mode);
+            size = stat.st_size;
+            if (SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                lastModified = stat.st_mtim.tv_sec * 1000 + stat.st_mtim.tv_nsec / 1000000;
+            } else {
+                lastModified = stat.st_mtime * 1000;
+            }
+            // Our own files are writable if their owner can write them.  Only ask access()
+            // about anyone else's.
+            if (stat.st_uid == uid) {
+                canWrite = (stat.st_mode & OsConstants.S_IWUSR) != 0;
+            } else {
+                canWrite = file.canWrite();
+            }
+        } catch (ErrnoException e) {
+            // Leave it as a file with nothing known about it
+        }
+
+        final String displayName = file.getName();
+        final String mimeType = isDirectory ? Document.MIME_TYPE_DIR : getTypeForName(displayName);
+        final int flags = getFlagsForFile(isDirectory, canWrite, mimeType);
+
+        final MatrixCursor.RowBuilder row = result.newRow();
+        row.add(Document.COLUMN_DOCUMENT_ID, getDocIdForFile(file));
+        row.add(Document.COLUMN_DISPLAY_NAME, displayName);
+        row.add(Document.COLUMN_SIZE, size);
+        row.add(Document.COLUMN_MIME_TYPE, mimeType);
+        row.add(Document.COLUMN_LAST_MODIFIED, lastModified);
+        row.add(Document.COLUMN_FLAGS, flags);
+
+        // Add a custom icon
+        row.add(Document.COLUMN_ICON, R.mipmap.ic_launcher);
+    }
+
+    /**
+     * Add a representation of an indexed file to a cursor, using the metadata in the index
+     * rather than asking the file system for it again.
+     *
+     * @param result the cursor to modify
+     * @param entry  the index entry of the file
+     */
+    private void includeEntry(MatrixCursor result, FileMetadataIndex.Entry entry) {
+        final File file = entry.getFile();
+        final int flags = getFlagsForFile(entry.isDirectory(), file.canWrite(), entry.mimeType);
+
+        final MatrixCursor.RowBuilder row = result.newRow();
+        row.add(Document.COLUMN_DOCUMENT_ID, getDocIdForFile(file));
+        row.add(Document.COLUMN_DISPLAY_NAME, entry.name);
+        row.add(Document.COLUMN_SIZE, entry.size);
+        row.add(Document.COLUMN_MIME_TYPE, entry.mimeType);
+        row.add(Document.COLUMN_LAST_MODIFIED, entry.lastModified);
+        row.add(Document.COLUMN_FLAGS, flags);
+
+        // Add a custom icon
+        row.add(Document.COLUMN_ICON, R.mipmap.ic_launcher);
+    }
+
+    /**
+     * Get the document flags for a file.
+     *
+     * @param isDirectory whether the file is a directory
+     * @param canWrite    whether the file is writable
+     * @param mimeType    the MIME type of the file
+     * @return the Document.FLAG_* flags the file supports
+     */
+    private static int getFlagsForFile(boolean isDirectory, boolean canWrite, String mimeType) {
         int flags = 0;
 
-        if (file.isDirectory()) {
+        if (isDirectory) {
             // Request the folder to lay out as a grid rather than a list. This also allows a larger
             // thumbnail to be displayed for each image.
             //            flags |= Document.FLAG_DIR_PREFERS_GRID;
 
             // Add FLAG_DIR_SUPPORTS_CREATE if the file is a writable directory.
-            if (file.isDirectory() && file.canWrite()) {
+            if (canWrite) {
                 flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
                 flags |= Document.FLAG_SUPPORTS_DELETE;
+
+                // Directories are copied and moved with everything in them
+                if (SDK_INT >= Build.VERSION_CODES.N) {
+                    flags |= Document.FLAG_SUPPORTS_REMOVE;
+                    flags |= Document.FLAG_SUPPORTS_MOVE;
+                    flags |= Document.FLAG_SUPPORTS_COPY;
+                }
             }
-        } else if (file.canWrite()) {
+        } else if (canWrite) {
             // If the file is writable set FLAG_SUPPORTS_WRITE and
             // FLAG_SUPPORTS_DELETE
             flags |= Document.FLAG_SUPPORTS_WRITE;
@@ -678,24 +953,12 @@ private void includeFile(MatrixCursor result, String docId, File file)
             }
         }
 
-        final String displayName = file.getName();
-        final String mimeType = getTypeForFile(file);
-
         if (mimeType.startsWith("image/")) {
             // Allow the image to be represented by a thumbnail rather than an icon
             flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
         }
 
-        final MatrixCursor.RowBuilder row = result.newRow();
-        row.add(Document.COLUMN_DOCUMENT_ID, docId);
-        row.add(Document.COLUMN_DISPLAY_NAME, displayName);
-        row.add(Document.COLUMN_SIZE, file.length());
-        row.add(Document.COLUMN_MIME_TYPE, mimeType);
-        row.add(Document.COLUMN_LAST_MODIFIED, file.lastModified());
-        row.add(Document.COLUMN_FLAGS, flags);
-
-        // Add a custom icon
-        row.add(Document.COLUMN_ICON, R.mipmap.ic_launcher);
+        return flags;
     }
 
     /**